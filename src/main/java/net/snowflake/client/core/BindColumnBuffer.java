@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.UTF8JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Columnar buffer of the values of one bind variable in an array bind.
+ *
+ * Values are kept in primitive arrays (long, double) or in a byte arena of
+ * UTF-8 encoded text, with nulls tracked in a bitmap, so that adding a row
+ * to a batch does not allocate per value. The values are converted to the
+ * string form the server expects only when the column is serialized.
+ *
+ * A column starts with the representation of its first non-null value and
+ * is converted to text if a value of another kind is added later.
+ */
+public abstract class BindColumnBuffer implements JsonSerializable
+{
+  private static final int INITIAL_CAPACITY = 16;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // bit set for null values
+  private long[] nulls = new long[1];
+
+  // number of values in the column
+  protected int size = 0;
+
+  /**
+   * Create a column holding the given number of null values, in the
+   * representation suited for the given value.
+   *
+   * @param value first value added to the column
+   * @param nullCount number of nulls preceding the value
+   * @return new column buffer
+   */
+  public static BindColumnBuffer create(Object value, int nullCount)
+  {
+    BindColumnBuffer buffer;
+
+    if (value instanceof Long)
+      buffer = new LongColumn();
+    else if (value instanceof Double)
+      buffer = new DoubleColumn();
+    else
+      buffer = new TextColumn();
+
+    for (int idx = 0; idx < nullCount; idx++)
+      buffer.appendNull();
+
+    return buffer;
+  }
+
+  /**
+   * Add a value to the column
+   *
+   * @param value value to add: Long, Double, String or null
+   * @return the buffer holding the column, which is a new buffer if the
+   *         column had to be converted to another representation
+   */
+  public BindColumnBuffer append(Object value)
+  {
+    if (value == null)
+    {
+      appendNull();
+      return this;
+    }
+
+    if (accepts(value))
+    {
+      appendValue(value);
+      return this;
+    }
+
+    // convert the column to a representation that accepts the value
+    BindColumnBuffer converted;
+    if (nullCount() == size)
+    {
+      converted = create(value, size);
+    }
+    else
+    {
+      converted = new TextColumn();
+      for (int row = 0; row < size; row++)
+        converted.append(isNull(row) ? null : getString(row));
+    }
+
+    return converted.append(value);
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isNull(int row)
+  {
+    return (nulls[row >>> 6] & (1L << row)) != 0;
+  }
+
+  /**
+   * @param row row index
+   * @return value as the string sent to the server, null for null values
+   */
+  public String getString(int row)
+  {
+    if (isNull(row))
+      return null;
+
+    return valueAsString(row);
+  }
+
+  /**
+   * @param row row index
+   * @return value as a long, only valid for non-null values of integral
+   *         columns
+   */
+  public long getLong(int row)
+  {
+    return Long.parseLong(valueAsString(row));
+  }
+
+  private void appendNull()
+  {
+    ensureNullCapacity();
+    nulls[size >>> 6] |= (1L << size);
+    appendDefault();
+  }
+
+  private void ensureNullCapacity()
+  {
+    if ((size >>> 6) >= nulls.length)
+      nulls = Arrays.copyOf(nulls, nulls.length * 2);
+  }
+
+  private int nullCount()
+  {
+    int count = 0;
+    for (long bits : nulls)
+      count += Long.bitCount(bits);
+    return count;
+  }
+
+  /**
+   * Reserve the slot of the next row, the row index is size
+   */
+  protected void reserve()
+  {
+    ensureNullCapacity();
+  }
+
+  abstract boolean accepts(Object value);
+
+  abstract void appendValue(Object value);
+
+  /**
+   * Append a placeholder for a null value
+   */
+  abstract void appendDefault();
+
+  abstract String valueAsString(int row);
+
+  abstract void writeValue(JsonGenerator gen, int row) throws IOException;
+
+  /**
+   * Serialize the column as an array of strings
+   */
+  @Override
+  public void serialize(JsonGenerator gen, SerializerProvider provider)
+      throws IOException
+  {
+    gen.writeStartArray();
+    for (int row = 0; row < size; row++)
+    {
+      if (isNull(row))
+        gen.writeNull();
+      else
+        writeValue(gen, row);
+    }
+    gen.writeEndArray();
+  }
+
+  @Override
+  public void serializeWithType(JsonGenerator gen,
+                                SerializerProvider provider,
+                                TypeSerializer typeSer) throws IOException
+  {
+    serialize(gen, provider);
+  }
+
+  /**
+   * Column of integral values, also used for dates and times bound as
+   * milliseconds or nanoseconds
+   */
+  static final class LongColumn extends BindColumnBuffer
+  {
+    private long[] values = new long[INITIAL_CAPACITY];
+
+    // scratch buffer for writing values without creating strings
+    private final char[] chars = new char[20];
+
+    @Override
+    boolean accepts(Object value)
+    {
+      return value instanceof Long;
+    }
+
+    @Override
+    void appendValue(Object value)
+    {
+      append(((Long) value).longValue());
+    }
+
+    @Override
+    void appendDefault()
+    {
+      append(0L);
+    }
+
+    private void append(long value)
+    {
+      reserve();
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    @Override
+    public long getLong(int row)
+    {
+      return values[row];
+    }
+
+    @Override
+    String valueAsString(int row)
+    {
+      return String.valueOf(values[row]);
+    }
+
+    @Override
+    void writeValue(JsonGenerator gen, int row) throws IOException
+    {
+      long value = values[row];
+
+      if (value == Long.MIN_VALUE)
+      {
+        gen.writeString(String.valueOf(value));
+        return;
+      }
+
+      // write digits from the end of the scratch buffer
+      int pos = chars.length;
+      boolean negative = value < 0;
+      if (negative)
+        value = -value;
+
+      do
+      {
+        chars[--pos] = (char) ('0' + (value % 10));
+        value /= 10;
+      }
+      while (value != 0);
+
+      if (negative)
+        chars[--pos] = '-';
+
+      gen.writeString(chars, pos, chars.length - pos);
+    }
+  }
+
+  /**
+   * Column of floating point values
+   */
+  static final class DoubleColumn extends BindColumnBuffer
+  {
+    private double[] values = new double[INITIAL_CAPACITY];
+
+    @Override
+    boolean accepts(Object value)
+    {
+      return value instanceof Double;
+    }
+
+    @Override
+    void appendValue(Object value)
+    {
+      append(((Double) value).doubleValue());
+    }
+
+    @Override
+    void appendDefault()
+    {
+      append(0.0);
+    }
+
+    private void append(double value)
+    {
+      reserve();
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    @Override
+    String valueAsString(int row)
+    {
+      return String.valueOf(values[row]);
+    }
+
+    @Override
+    void writeValue(JsonGenerator gen, int row) throws IOException
+    {
+      gen.writeString(String.valueOf(values[row]));
+    }
+  }
+
+  /**
+   * Column of text values kept UTF-8 encoded in a single byte arena
+   */
+  static final class TextColumn extends BindColumnBuffer
+  {
+    private byte[] arena = new byte[INITIAL_CAPACITY * 16];
+
+    // end offset of each value in the arena
+    private int[] ends = new int[INITIAL_CAPACITY];
+
+    private int arenaSize = 0;
+
+    @Override
+    boolean accepts(Object value)
+    {
+      return value instanceof String;
+    }
+
+    @Override
+    void appendValue(Object value)
+    {
+      String text = (String) value;
+
+      reserve();
+      if (size == ends.length)
+        ends = Arrays.copyOf(ends, size * 2);
+
+      // at most 3 bytes per UTF-16 char
+      ensureArenaCapacity(arenaSize + text.length() * 3);
+
+      int pos = arenaSize;
+      for (int idx = 0; idx < text.length(); idx++)
+      {
+        char c = text.charAt(idx);
+
+        if (c < 0x80)
+        {
+          arena[pos++] = (byte) c;
+        }
+        else if (c < 0x800)
+        {
+          arena[pos++] = (byte) (0xC0 | (c >> 6));
+          arena[pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if (Character.isHighSurrogate(c) && idx + 1 < text.length() &&
+                 Character.isLowSurrogate(text.charAt(idx + 1)))
+        {
+          int codePoint = Character.toCodePoint(c, text.charAt(++idx));
+          arena[pos++] = (byte) (0xF0 | (codePoint >> 18));
+          arena[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          arena[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          arena[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        else if (Character.isSurrogate(c))
+        {
+          // unpaired surrogate, encoded as '?' like String.getBytes
+          arena[pos++] = '?';
+        }
+        else
+        {
+          arena[pos++] = (byte) (0xE0 | (c >> 12));
+          arena[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          arena[pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+
+      arenaSize = pos;
+      ends[size++] = arenaSize;
+    }
+
+    @Override
+    void appendDefault()
+    {
+      reserve();
+      if (size == ends.length)
+        ends = Arrays.copyOf(ends, size * 2);
+      ends[size++] = arenaSize;
+    }
+
+    private void ensureArenaCapacity(int capacity)
+    {
+      if (capacity > arena.length)
+        arena = Arrays.copyOf(arena, Math.max(capacity, arena.length * 2));
+    }
+
+    private int start(int row)
+    {
+      return row == 0 ? 0 : ends[row - 1];
+    }
+
+    @Override
+    String valueAsString(int row)
+    {
+      int start = start(row);
+      return new String(arena, start, ends[row] - start, UTF8);
+    }
+
+    @Override
+    void writeValue(JsonGenerator gen, int row) throws IOException
+    {
+      if (gen instanceof UTF8JsonGenerator)
+      {
+        int start = start(row);
+        gen.writeUTF8String(arena, start, ends[row] - start);
+      }
+      else
+      {
+        gen.writeString(valueAsString(row));
+      }
+    }
+  }
+}
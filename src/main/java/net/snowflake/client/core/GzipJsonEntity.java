@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.core;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Http entity that serializes a JSON body with Jackson's generator straight
+ * into a gzip stream on top of the connection output stream.
+ *
+ * The body is never materialized as a String or byte array, so large bind
+ * payloads are sent with constant extra memory. The entity is repeatable
+ * since the body is serialized again from the source object for every
+ * write, which lets RestRequest retry the request as before.
+ */
+public class GzipJsonEntity extends AbstractHttpEntity
+{
+  // size of the deflater output buffer
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+  private final ObjectMapper mapper;
+
+  private final Object body;
+
+  public GzipJsonEntity(ObjectMapper mapper, Object body)
+  {
+    this.mapper = mapper;
+    this.body = body;
+    setContentType("application/json");
+  }
+
+  @Override
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  /**
+   * Length of compressed body is not known until it is written, so the
+   * request is sent with chunked transfer encoding.
+   *
+   * @return -1 as content length is unknown
+   */
+  @Override
+  public long getContentLength()
+  {
+    return -1;
+  }
+
+  @Override
+  public boolean isStreaming()
+  {
+    return false;
+  }
+
+  /**
+   * Only used when the content is consumed outside of a request execution,
+   * in which case the compressed body is buffered in memory.
+   *
+   * @return input stream of the gzipped JSON body
+   * @throws IOException if failed to serialize the body
+   */
+  @Override
+  public InputStream getContent() throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    writeTo(baos);
+    return new ByteArrayInputStream(baos.toByteArray());
+  }
+
+  @Override
+  public void writeTo(OutputStream outstream) throws IOException
+  {
+    // the connection output stream is owned by http client, only the gzip
+    // stream and its deflater are released here
+    GZIPOutputStream gzos = new GZIPOutputStream(
+        new CloseShieldOutputStream(outstream), GZIP_BUFFER_SIZE);
+
+    JsonGenerator generator = mapper.getFactory().createGenerator(
+        gzos, JsonEncoding.UTF8);
+
+    try
+    {
+      mapper.writeValue(generator, body);
+    }
+    finally
+    {
+      // closes the gzip stream as well, which writes the trailer
+      generator.close();
+    }
+
+    outstream.flush();
+  }
+}
@@ -53,6 +53,13 @@ public class HttpUtil
    */
   private static HttpClient httpClient = null;
 
+  /**
+   * Client sharing the connections of httpClient that does not decompress
+   * response bodies, so that readers see the bytes that were received,
+   * e.g. to resume a download from the last byte received
+   */
+  private static HttpClient httpClientWithoutDecompression = null;
+
   /** Handle on the static connection manager, to gather statistics mainly */
   private static PoolingHttpClientConnectionManager connectionManager = null;
 
@@ -102,19 +109,30 @@ public class HttpUtil
     connectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
     connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
 
-    httpClient =
-        HttpClientBuilder.create()
-                         .setDefaultRequestConfig(DefaultRequestConfig)
-                         .setConnectionManager(connectionManager)
-                         // Support JVM proxy settings
-                         .useSystemProperties()
-                         .setRedirectStrategy(new DefaultRedirectStrategy())
-                         .setUserAgent("-")     // needed for Okta
-                         .build();
+    // set before httpClient, which tells that both clients are built
+    httpClientWithoutDecompression =
+        createHttpClientBuilder().disableContentCompression().build();
+
+    httpClient = createHttpClientBuilder().build();
 
     return httpClient;
   }
 
+  /**
+   * @return builder of a client with the shared configuration and
+   *         connection manager
+   */
+  private static HttpClientBuilder createHttpClientBuilder()
+  {
+    return HttpClientBuilder.create()
+                            .setDefaultRequestConfig(DefaultRequestConfig)
+                            .setConnectionManager(connectionManager)
+                            // Support JVM proxy settings
+                            .useSystemProperties()
+                            .setRedirectStrategy(new DefaultRedirectStrategy())
+                            .setUserAgent("-");     // needed for Okta
+  }
+
   /**
    * Accessor for the HTTP client singleton.
    *
@@ -136,6 +154,20 @@ public class HttpUtil
     return httpClient;
   }
 
+  /**
+   * Accessor for the HTTP client that does not decompress response bodies.
+   * It shares the connections and configuration of the HTTP client
+   * singleton.
+   *
+   * @return HttpClient object shared across all connections
+   */
+  public static HttpClient getHttpClientWithoutDecompression()
+  {
+    getHttpClient();
+
+    return httpClientWithoutDecompression;
+  }
+
   /**
    * Return a request configuration inheriting from the default request
    * configuration of the shared HttpClient with a different socket timeout.
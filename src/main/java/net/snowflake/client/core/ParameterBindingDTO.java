@@ -1,5 +1,12 @@
 package net.snowflake.client.core;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+
 /**
  * This class represents a binding object passed to server side
  * Created by hyu on 6/15/17.
@@ -9,8 +16,8 @@ public class ParameterBindingDTO
   /** Type of binding */
   private String type;
 
-  /** Value is a String object if it's a single bind,
-   *  otherwise is an array of String
+  /** Value is a String, Long or Double object if it's a single bind,
+   *  otherwise is a BindColumnBuffer holding the values of the batch
    */
   private Object value;
 
@@ -20,11 +27,17 @@ public class ParameterBindingDTO
     this.value = value;
   }
 
+  @JsonSerialize(using = ValueSerializer.class)
   public Object getValue()
   {
     return value;
   }
 
+  public void setValue(Object value)
+  {
+    this.value = value;
+  }
+
   public String getType()
   {
     return type;
@@ -34,4 +47,26 @@ public class ParameterBindingDTO
   {
     this.type = type;
   }
+
+  /**
+   * Serializes single bind values as strings, which is what the server
+   * expects for any type, and array bind columns as arrays of strings.
+   */
+  public static class ValueSerializer extends JsonSerializer<Object>
+  {
+    @Override
+    public void serialize(Object value,
+                          JsonGenerator gen,
+                          SerializerProvider provider) throws IOException
+    {
+      if (value instanceof BindColumnBuffer)
+      {
+        ((BindColumnBuffer) value).serialize(gen, provider);
+      }
+      else
+      {
+        gen.writeString(value.toString());
+      }
+    }
+  }
 }
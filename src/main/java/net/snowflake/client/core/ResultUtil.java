@@ -91,6 +91,7 @@ public class ResultUtil
     String queryId;
     String finalDatabaseName;
     String finalSchemaName;
+    String finalRoleName;
     long statementTypeId;
     boolean totalRowCountTruncated;
     Map<String, Object> parameters = new HashMap<>();
@@ -137,6 +138,11 @@ public class ResultUtil
       return finalSchemaName;
     }
 
+    public String getFinalRoleName()
+    {
+      return finalRoleName;
+    }
+
     public long getStatementTypeId()
     {
       return statementTypeId;
@@ -256,6 +262,10 @@ public class ResultUtil
     JsonNode schemaNode = rootNode.path("data").path("finalSchemaName");
     resultOutput.finalSchemaName = schemaNode.isNull() ? null : schemaNode.asText();
 
+    JsonNode roleNode = rootNode.path("data").path("finalRoleName");
+    resultOutput.finalRoleName = roleNode.isNull() || roleNode.isMissingNode() ?
+        null : roleNode.asText();
+
     resultOutput.statementTypeId = rootNode.path("data").path("statementTypeId").asLong();
 
     resultOutput.totalRowCountTruncated
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.core;
+
+import java.sql.SQLException;
+
+/**
+ * File transfer of a PUT or GET command, as executed by SFStatement.
+ *
+ * The implementation links against the AWS SDK and the crypto classes, so
+ * statements only know it through this interface and create it with the
+ * SFFileTransferAgentFactory loaded on the first file transfer. Processes
+ * that only run queries never load the file transfer classes.
+ */
+public interface SFFileTransferAgent
+{
+  /**
+   * Transfer the files of the command
+   *
+   * @return true if the command is executed
+   * @throws SQLException if failed to transfer the files
+   */
+  boolean execute() throws SQLException;
+
+  /**
+   * @return result set of the status of the transferred files
+   * @throws SQLException if failed to create the result set
+   */
+  Object getResultSet() throws SQLException;
+
+  /**
+   * Cancel the transfers in progress
+   */
+  void cancel();
+}
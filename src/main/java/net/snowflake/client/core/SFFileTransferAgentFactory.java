@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.core;
+
+import java.sql.SQLException;
+
+/**
+ * Factory of the file transfer agents of PUT and GET commands.
+ *
+ * The implementation is loaded by name on the first file transfer of the
+ * process, which is when the AWS SDK and the crypto classes are loaded.
+ */
+public interface SFFileTransferAgentFactory
+{
+  /**
+   * Create the agent of a PUT or GET command, which sends the command to
+   * the server to get the stage information
+   *
+   * @param command PUT or GET command
+   * @param session session of the statement
+   * @param statement statement executing the command
+   * @return file transfer agent
+   * @throws SQLException if the command failed
+   */
+  SFFileTransferAgent create(String command,
+                             SFSession session,
+                             SFStatement statement) throws SQLException;
+}
@@ -117,6 +117,10 @@ public class SFResultSet extends SFBaseResultSet
 
     session.setDatabase(resultOutput.getFinalDatabaseName());
     session.setSchema(resultOutput.getFinalSchemaName());
+    if (resultOutput.getFinalRoleName() != null)
+    {
+      session.setRole(resultOutput.getFinalRoleName());
+    }
     // update the driver/session with common parameters from GS
     SessionUtil.updateSfDriverParamValues(this.parameters, statement.getSession());
 
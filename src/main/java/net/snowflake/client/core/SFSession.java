@@ -9,6 +9,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import net.snowflake.client.jdbc.ErrorCode;
 import net.snowflake.client.jdbc.SnowflakeSQLException;
 import net.snowflake.client.jdbc.SnowflakeUtil;
+import net.snowflake.client.jdbc.TransferGovernor;
+import net.snowflake.client.jdbc.TransferProgressListener;
 import net.snowflake.common.core.ResourceBundleManager;
 import org.apache.http.HttpHeaders;
 import org.apache.http.client.HttpClient;
@@ -20,6 +22,7 @@ import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -193,6 +196,65 @@ public class SFSession
   private SnowflakeType timestampMappedType =
   SnowflakeType.TIMESTAMP_LTZ;
 
+  // max number of batch entries executeBatch sends concurrently for
+  // non-array-bind batches. 1 means the entries are executed one by one.
+  // Only INSERT, UPDATE, DELETE and MERGE entries are sent concurrently, any
+  // other entry is a barrier executed alone. The DML entries between two
+  // barriers must be independent, since they may run in any order.
+  private int batchPipelineDegree = 1;
+
+  // min number of bind values (rows times columns) of an array bind for
+  // which the bindings are uploaded to a stage instead of being sent with
+  // the query. 0 disables stage binding.
+  private int stageArrayBindingThreshold = 0;
+
+  // max number of describe results of prepared statements cached in the
+  // session. 0 disables the cache. The cache is cleared after statements
+  // changing the session, but DDL and parameter changes made by other
+  // sessions are not detected, so it is opt-in.
+  private int describeCacheSize = 0;
+
+  // file of the cache of local file digests used to skip unchanged files
+  // in PUT without overwrite. null disables the cache.
+  private String digestCacheFile = null;
+
+  // max number of files in the digest cache
+  private int digestCacheSize = 100000;
+
+  // directory of the checkpoints of multipart uploads, which allow a later
+  // PUT to resume a failed upload. null keeps checkpoints in memory only.
+  private String uploadCheckpointDirectory = null;
+
+  // priority of the file transfers of the session among the transfers of
+  // the process
+  private TransferGovernor.Priority transferPriority =
+      TransferGovernor.Priority.INTERACTIVE;
+
+  // size in MB above which uncompressed files are split on line boundaries
+  // into chunks that are uploaded as separate objects, so that they are
+  // uploaded and loaded in parallel. 0 disables splitting.
+  private int putSplitSize = 0;
+
+  // number of header lines of the files split by PUT, which are copied to
+  // the start of every chunk so that every chunk can be loaded with the
+  // same SKIP_HEADER. 0 if the files have no header. Both split options
+  // can be overridden for the PUT commands of a statement with
+  // set-sf-property.
+  private int putSplitHeaderLines = 0;
+
+  // name of the codec that compresses the files uploaded by PUT with auto
+  // compression, and its level, -1 for the default level of the codec.
+  // Both can be overridden for the PUT commands of a statement with
+  // set-sf-property.
+  private String putCompressionCodec = "gzip";
+  private int putCompressionLevel = -1;
+
+  // listener of the progress of file transfers, or null
+  private TransferProgressListener transferProgressListener;
+
+  // cache of describe results, created on first use
+  private StatementMetaDataCache describeCache;
+
   /**
    * Add a property
    * If a property is known for connection, add it to connection properties
@@ -213,6 +275,15 @@ public class SFSession
 
     if (connectionProperty != null)
     {
+      // properties given in the connection url or as Properties strings
+      // are converted to the expected type
+      if (propertyValue instanceof String &&
+          connectionProperty.getValueType() != String.class)
+      {
+        propertyValue = convertPropertyValue(connectionProperty,
+                                             (String) propertyValue);
+      }
+
       // check if the value type is as expected
       if (propertyValue != null &&
           !connectionProperty.getValueType().isAssignableFrom(
@@ -263,6 +334,70 @@ public class SFSession
           passcodeInPassword = (propertyValue != null && (Boolean)propertyValue);
           break;
 
+        case BATCH_PIPELINE_DEGREE:
+          if (propertyValue != null)
+            batchPipelineDegree = (Integer) propertyValue;
+          break;
+
+        case STAGE_ARRAY_BINDING_THRESHOLD:
+          if (propertyValue != null)
+            stageArrayBindingThreshold = (Integer) propertyValue;
+          break;
+
+        case DESCRIBE_CACHE_SIZE:
+          if (propertyValue != null)
+            describeCacheSize = (Integer) propertyValue;
+          break;
+
+        case DIGEST_CACHE_FILE:
+          digestCacheFile = (String) propertyValue;
+          break;
+
+        case DIGEST_CACHE_SIZE:
+          if (propertyValue != null)
+            digestCacheSize = (Integer) propertyValue;
+          break;
+
+        case UPLOAD_CHECKPOINT_DIRECTORY:
+          uploadCheckpointDirectory = (String) propertyValue;
+          break;
+
+        case TRANSFER_PRIORITY:
+          if (propertyValue != null)
+          {
+            try
+            {
+              transferPriority = TransferGovernor.Priority.valueOf(
+                  ((String) propertyValue).trim().toUpperCase());
+            }
+            catch (IllegalArgumentException ex)
+            {
+              throw new SFException(ErrorCode.INVALID_PARAMETER_TYPE,
+                  propertyValue, TransferGovernor.Priority.class.getName());
+            }
+          }
+          break;
+
+        case PUT_SPLIT_SIZE:
+          if (propertyValue != null)
+            putSplitSize = (Integer) propertyValue;
+          break;
+
+        case PUT_SPLIT_HEADER_LINES:
+          if (propertyValue != null)
+            putSplitHeaderLines = (Integer) propertyValue;
+          break;
+
+        case PUT_COMPRESSION_CODEC:
+          if (propertyValue != null)
+            putCompressionCodec = (String) propertyValue;
+          break;
+
+        case PUT_COMPRESSION_LEVEL:
+          if (propertyValue != null)
+            putCompressionLevel = (Integer) propertyValue;
+          break;
+
         default:
           break;
       }
@@ -284,6 +419,58 @@ public class SFSession
     }
   }
 
+  /**
+   * Convert a string property value to the value type of a connection
+   * property. Integers and longs are parsed as decimal numbers, booleans
+   * accept true/false and on/off in any case. Other strings are rejected
+   * rather than coerced, so that a typo is not taken for false.
+   *
+   * @param property connection property
+   * @param value string value
+   * @return converted value
+   * @throws SFException if the value can not be converted
+   */
+  static Object convertPropertyValue(SFSessionProperty property,
+                                     String value)
+      throws SFException
+  {
+    try
+    {
+      if (property.getValueType() == Integer.class)
+      {
+        return Integer.valueOf(value.trim());
+      }
+      else if (property.getValueType() == Long.class)
+      {
+        return Long.valueOf(value.trim());
+      }
+      else if (property.getValueType() == Boolean.class)
+      {
+        String trimmed = value.trim();
+
+        if ("true".equalsIgnoreCase(trimmed) || "on".equalsIgnoreCase(trimmed))
+        {
+          return Boolean.TRUE;
+        }
+        else if ("false".equalsIgnoreCase(trimmed) ||
+                 "off".equalsIgnoreCase(trimmed))
+        {
+          return Boolean.FALSE;
+        }
+
+        throw new SFException(ErrorCode.INVALID_PARAMETER_TYPE,
+            value, property.getValueType().getName());
+      }
+    }
+    catch (NumberFormatException ex)
+    {
+      throw new SFException(ErrorCode.INVALID_PARAMETER_TYPE,
+          value, property.getValueType().getName());
+    }
+
+    return value;
+  }
+
   protected String getServerUrl()
   {
     if (connectionPropertiesMap.containsKey(SFSessionProperty.SERVER_URL))
@@ -839,6 +1026,10 @@ public class SFSession
 
   public void setDatabase(String database)
   {
+    if (!Objects.equals(this.database, database))
+    {
+      invalidateDescribeCache();
+    }
     this.database = database;
   }
 
@@ -849,6 +1040,10 @@ public class SFSession
 
   public void setSchema(String schema)
   {
+    if (!Objects.equals(this.schema, schema))
+    {
+      invalidateDescribeCache();
+    }
     this.schema = schema;
   }
 
@@ -859,6 +1054,10 @@ public class SFSession
 
   public void setRole(String role)
   {
+    if (!Objects.equals(this.role, role))
+    {
+      invalidateDescribeCache();
+    }
     this.role = role;
   }
 
@@ -879,8 +1078,158 @@ public class SFSession
 
   public void setTimestampMappedType(SnowflakeType timestampMappedType)
   {
+    if (this.timestampMappedType != timestampMappedType)
+    {
+      invalidateDescribeCache();
+    }
     this.timestampMappedType = timestampMappedType;
   }
 
+  public int getBatchPipelineDegree()
+  {
+    return batchPipelineDegree;
+  }
+
+  public void setBatchPipelineDegree(int batchPipelineDegree)
+  {
+    this.batchPipelineDegree = batchPipelineDegree;
+  }
+
+  public int getStageArrayBindingThreshold()
+  {
+    return stageArrayBindingThreshold;
+  }
+
+  public void setStageArrayBindingThreshold(int stageArrayBindingThreshold)
+  {
+    this.stageArrayBindingThreshold = stageArrayBindingThreshold;
+  }
+
+  public int getDescribeCacheSize()
+  {
+    return describeCacheSize;
+  }
+
+  public void setDescribeCacheSize(int describeCacheSize)
+  {
+    this.describeCacheSize = describeCacheSize;
+  }
+
+  public String getDigestCacheFile()
+  {
+    return digestCacheFile;
+  }
+
+  public void setDigestCacheFile(String digestCacheFile)
+  {
+    this.digestCacheFile = digestCacheFile;
+  }
+
+  public int getDigestCacheSize()
+  {
+    return digestCacheSize;
+  }
+
+  public void setDigestCacheSize(int digestCacheSize)
+  {
+    this.digestCacheSize = digestCacheSize;
+  }
+
+  public String getUploadCheckpointDirectory()
+  {
+    return uploadCheckpointDirectory;
+  }
+
+  public void setUploadCheckpointDirectory(String uploadCheckpointDirectory)
+  {
+    this.uploadCheckpointDirectory = uploadCheckpointDirectory;
+  }
+
+  public TransferGovernor.Priority getTransferPriority()
+  {
+    return transferPriority;
+  }
+
+  public void setTransferPriority(TransferGovernor.Priority transferPriority)
+  {
+    this.transferPriority = transferPriority;
+  }
+
+  public int getPutSplitSize()
+  {
+    return putSplitSize;
+  }
+
+  public void setPutSplitSize(int putSplitSize)
+  {
+    this.putSplitSize = putSplitSize;
+  }
+
+  public int getPutSplitHeaderLines()
+  {
+    return putSplitHeaderLines;
+  }
+
+  public void setPutSplitHeaderLines(int putSplitHeaderLines)
+  {
+    this.putSplitHeaderLines = putSplitHeaderLines;
+  }
+
+  public String getPutCompressionCodec()
+  {
+    return putCompressionCodec;
+  }
+
+  public void setPutCompressionCodec(String putCompressionCodec)
+  {
+    this.putCompressionCodec = putCompressionCodec;
+  }
+
+  public int getPutCompressionLevel()
+  {
+    return putCompressionLevel;
+  }
+
+  public void setPutCompressionLevel(int putCompressionLevel)
+  {
+    this.putCompressionLevel = putCompressionLevel;
+  }
+
+  public TransferProgressListener getTransferProgressListener()
+  {
+    return transferProgressListener;
+  }
+
+  public void setTransferProgressListener(
+      TransferProgressListener transferProgressListener)
+  {
+    this.transferProgressListener = transferProgressListener;
+  }
+
+  /**
+   * @return cache of describe results of the session, null if disabled
+   */
+  synchronized StatementMetaDataCache getDescribeCache()
+  {
+    if (describeCache == null && describeCacheSize > 0)
+    {
+      describeCache = new StatementMetaDataCache(describeCacheSize);
+    }
+    return describeCache;
+  }
+
+  /**
+   * Drop all cached describe results, called when the session context or
+   * parameters change or DDL is executed since cached metadata may be stale
+   * then.
+   */
+  synchronized void invalidateDescribeCache()
+  {
+    if (describeCache != null)
+    {
+      describeCache.clear();
+    }
+  }
+
 
 }
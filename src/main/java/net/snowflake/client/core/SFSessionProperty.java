@@ -30,7 +30,20 @@ public enum SFSessionProperty
   INJECT_SOCKET_TIMEOUT("injectSocketTimeout", false, Integer.class),
   INJECT_CLIENT_PAUSE("injectClientPause", false, Integer.class),
   APP_ID("appId", false, String.class),
-  APP_VERSION("appVersion", false, String.class);
+  APP_VERSION("appVersion", false, String.class),
+  BATCH_PIPELINE_DEGREE("batchPipelineDegree", false, Integer.class),
+  STAGE_ARRAY_BINDING_THRESHOLD("stageArrayBindingThreshold", false,
+      Integer.class),
+  DESCRIBE_CACHE_SIZE("describeCacheSize", false, Integer.class),
+  DIGEST_CACHE_FILE("digestCacheFile", false, String.class),
+  DIGEST_CACHE_SIZE("digestCacheSize", false, Integer.class),
+  UPLOAD_CHECKPOINT_DIRECTORY("uploadCheckpointDirectory", false,
+      String.class),
+  TRANSFER_PRIORITY("transferPriority", false, String.class),
+  PUT_SPLIT_SIZE("putSplitSize", false, Integer.class),
+  PUT_SPLIT_HEADER_LINES("putSplitHeaderLines", false, Integer.class),
+  PUT_COMPRESSION_CODEC("putCompressionCodec", false, String.class),
+  PUT_COMPRESSION_LEVEL("putCompressionLevel", false, Integer.class);
 
   private String propertyKey;
   private boolean required;
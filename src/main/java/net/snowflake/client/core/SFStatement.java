@@ -7,15 +7,16 @@ package net.snowflake.client.core;
 import com.fasterxml.jackson.databind.JsonNode;
 import net.snowflake.client.core.BasicEvent.QueryState;
 import net.snowflake.client.jdbc.ErrorCode;
-import net.snowflake.client.jdbc.SnowflakeFileTransferAgent;
 import net.snowflake.client.jdbc.SnowflakeSQLException;
 import net.snowflake.common.core.SqlState;
 
 import org.apache.http.client.methods.HttpRequestBase;
 
 import java.sql.SQLException;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
@@ -34,6 +35,13 @@ public class SFStatement
 {
   static final SFLogger logger = SFLoggerFactory.getLogger(SFStatement.class);
 
+  // implementation of the file transfers, which is only loaded by the first
+  // PUT or GET command so that the AWS SDK is not loaded for queries
+  private static final String FILE_TRANSFER_AGENT_FACTORY_CLASS =
+      "net.snowflake.client.jdbc.SnowflakeFileTransferAgentFactory";
+
+  private static SFFileTransferAgentFactory fileTransferAgentFactory = null;
+
   private SFSession session;
 
   private SFBaseResultSet resultSet = null;
@@ -55,13 +63,26 @@ public class SFStatement
 
   private boolean isFileTransfer = false;
 
-  private SnowflakeFileTransferAgent transferAgent = null;
+  private SFFileTransferAgent transferAgent = null;
 
   // statement level parameters
   private final Map<String, Object> statementParametersMap =  new HashMap<String, Object>();
 
   final private static int MAX_STATEMENT_PARAMETERS = 1000;
 
+  // connection properties that can be set for the PUT of a single statement
+  private static final Set<SFSessionProperty> FILE_TRANSFER_PROPERTIES =
+      EnumSet.of(SFSessionProperty.PUT_SPLIT_SIZE,
+                 SFSessionProperty.PUT_SPLIT_HEADER_LINES,
+                 SFSessionProperty.PUT_COMPRESSION_CODEC,
+                 SFSessionProperty.PUT_COMPRESSION_LEVEL);
+
+  // PUT options of this statement, which override the connection
+  // properties of the same name. They are used by the client only and are
+  // not sent to the server with the statement parameters.
+  private final Map<SFSessionProperty, Object> fileTransferPropertiesMap =
+      new HashMap<SFSessionProperty, Object>();
+
   /**
    * Add a statement parameter
    *
@@ -91,6 +112,66 @@ public class SFStatement
     }
   }
 
+  /**
+   * Set a PUT option for the file transfers executed by this statement,
+   * overriding the connection property of the same name. Applications set
+   * it by executing set-sf-property followed by the property name and
+   * value, or default to use the connection property again, e.g.
+   * set-sf-property putSplitSize 256
+   *
+   * @param propertyName connection property name, e.g. putSplitSize
+   * @param propertyValue property value, null to use the connection
+   *                      property again
+   * @throws SFException if the property can not be set per statement or
+   *                     the value is of the wrong type
+   */
+  public void setFileTransferProperty(String propertyName,
+                                      Object propertyValue)
+      throws SFException
+  {
+    SFSessionProperty property = SFSessionProperty.lookupByKey(propertyName);
+
+    if (property == null || !FILE_TRANSFER_PROPERTIES.contains(property))
+    {
+      throw new SFException(ErrorCode.FEATURE_UNSUPPORTED,
+          "statement level property " + propertyName);
+    }
+
+    if (propertyValue == null)
+    {
+      fileTransferPropertiesMap.remove(property);
+      return;
+    }
+
+    if (propertyValue instanceof String &&
+        property.getValueType() != String.class)
+    {
+      propertyValue = SFSession.convertPropertyValue(property,
+                                                     (String) propertyValue);
+    }
+
+    if (!property.getValueType().isAssignableFrom(propertyValue.getClass()))
+    {
+      throw new SFException(ErrorCode.INVALID_PARAMETER_TYPE,
+          propertyValue.getClass().getName(),
+          property.getValueType().getName());
+    }
+
+    fileTransferPropertiesMap.put(property, propertyValue);
+  }
+
+  /**
+   * Get a PUT option set for this statement
+   *
+   * @param property connection property
+   * @return value of the property for this statement, null if the
+   *         connection property applies
+   */
+  public Object getFileTransferProperty(SFSessionProperty property)
+  {
+    return fileTransferPropertiesMap.get(property);
+  }
+
   public SFStatement(SFSession session)
   {
     logger.debug(" public SFStatement(SFSession session)");
@@ -125,6 +206,7 @@ public class SFStatement
   private SFBaseResultSet executeQuery(String sql,
                                          Map<String, ParameterBindingDTO>
                                                             parametersBinding,
+                                         String bindStage,
                                          boolean describeOnly)
       throws SQLException, SFException
   {
@@ -141,12 +223,17 @@ public class SFStatement
       return executeFileTransfer(sql);
     }
 
-    return executeQueryInternal(sql, parametersBinding, describeOnly);
+    return executeQueryInternal(sql, parametersBinding, bindStage,
+                                describeOnly);
   }
 
   /**
    * Describe a statement
    *
+   * The result is looked up in the describe cache of the session first, so
+   * that preparing the same statement again in the same context does not
+   * need a round trip to the server.
+   *
    * @param sql statement
    * @return metadata of statement including result set metadata and binding information
    * @throws SQLException if connection is already closed
@@ -154,12 +241,36 @@ public class SFStatement
    */
   public SFStatementMetaData describe(String sql) throws SFException, SQLException
   {
-    SFBaseResultSet baseResultSet = executeQuery(sql, null, true);
+    StatementMetaDataCache cache = session.getDescribeCache();
+    String cacheKey = null;
+
+    if (cache != null)
+    {
+      cacheKey = StatementMetaDataCache.key(sql, session.getDatabase(),
+          session.getSchema(), session.getRole());
+
+      SFStatementMetaData cached = cache.get(cacheKey);
+      if (cached != null)
+      {
+        logger.debug("describe cache hit for statement: {}", sql);
+        return cached;
+      }
+    }
+
+    SFBaseResultSet baseResultSet = executeQuery(sql, null, null, true);
+
+    SFStatementMetaData metaData =
+        new SFStatementMetaData(baseResultSet.getMetaData(),
+                                baseResultSet.getStatementType(),
+                                baseResultSet.getNumberOfBinds(),
+                                baseResultSet.isArrayBindSupported());
+
+    if (cache != null)
+    {
+      cache.put(cacheKey, metaData);
+    }
 
-    return new SFStatementMetaData(baseResultSet.getMetaData(),
-                                   baseResultSet.getStatementType(),
-                                   baseResultSet.getNumberOfBinds(),
-                                   baseResultSet.isArrayBindSupported());
+    return metaData;
   }
 
   /**
@@ -167,6 +278,8 @@ public class SFStatement
    * <p>
    * @param sql sql statement
    * @param parameterBindings binding information
+   * @param bindStage stage location of the binding data, null if the
+   *                  bindings are sent with the query
    * @param describeOnly true if just showing result set metadata
    * @return snowflake query result set
    * @throws SQLException if connection is already closed
@@ -175,6 +288,7 @@ public class SFStatement
   private SFBaseResultSet executeQueryInternal(String sql,
                                                  Map<String, ParameterBindingDTO>
                                                           parameterBindings,
+                                                 String bindStage,
                                                  boolean describeOnly)
       throws SQLException, SFException
   {
@@ -192,7 +306,7 @@ public class SFStatement
     }
 
     Object result = executeHelper(sql, "application/snowflake",
-                                  parameterBindings, describeOnly);
+                                  parameterBindings, bindStage, describeOnly);
 
     if (result == null)
     {
@@ -244,6 +358,17 @@ public class SFStatement
                  System.currentTimeMillis());
     }
 
+    // DDL may change the objects referenced by cached statement descriptions,
+    // and ALTER SESSION, UNSET and other statements that are neither queries
+    // nor DML may change the parameters, e.g. TIMESTAMP_TYPE_MAPPING, that
+    // determine the described types
+    if (!describeOnly &&
+        resultSet.getStatementType() != SFStatementType.SELECT &&
+        !resultSet.getStatementType().isDML())
+    {
+      session.invalidateDescribeCache();
+    }
+
     return resultSet;
   }
 
@@ -299,6 +424,29 @@ public class SFStatement
                                  Map<String, ParameterBindingDTO> bindValues,
                                  boolean describeOnly)
       throws SnowflakeSQLException, SFException
+  {
+    return executeHelper(sql, mediaType, bindValues, null, describeOnly);
+  }
+
+  /**
+   * A helper method to build URL and submit the SQL to snowflake for exec
+   *
+   * @param sql sql statement
+   * @param mediaType media type
+   * @param bindValues map of binding values
+   * @param bindStage stage location of the binding data, null if the
+   *                  bindings are sent with the query
+   * @param describeOnly whether only show the result set metadata
+   * @return raw json response
+   * @throws SFException if query is canceled
+   * @throws SnowflakeSQLException if query is already running
+   */
+  public
+  Object executeHelper(String sql, String mediaType,
+                                 Map<String, ParameterBindingDTO> bindValues,
+                                 String bindStage,
+                                 boolean describeOnly)
+      throws SnowflakeSQLException, SFException
   {
     ScheduledExecutorService executor = null;
 
@@ -337,6 +485,7 @@ public class SFStatement
       stmtInput.setSql(sql)
           .setMediaType(mediaType)
           .setBindValues(bindValues)
+          .setBindStage(bindStage)
           .setDescribeOnly(describeOnly)
           .setServerUrl(session.getServerUrl())
           .setRequestId(requestId)
@@ -561,6 +710,26 @@ public class SFStatement
                                  Map<String, ParameterBindingDTO>
                                      parametersBinding)
       throws SQLException, SFException
+  {
+    return execute(sql, parametersBinding, null);
+  }
+
+  /**
+   * Execute sql with binding data uploaded to a stage location
+   *
+   * @param sql sql statement
+   * @param parametersBinding binding information sent with the query
+   * @param bindStage stage location of the binding data, null if the
+   *                  bindings are sent with the query
+   * @return whether there is result set or not
+   * @throws java.sql.SQLException if failed to execute sql
+   * @throws SFException exception raised from Snowflake components
+   */
+  public SFBaseResultSet execute(String sql,
+                                 Map<String, ParameterBindingDTO>
+                                     parametersBinding,
+                                 String bindStage)
+      throws SQLException, SFException
   {
     sanityCheckQuery(sql);
 
@@ -579,7 +748,7 @@ public class SFStatement
     }
     else
     {
-      return executeQuery(sql, parametersBinding, false);
+      return executeQuery(sql, parametersBinding, bindStage, false);
     }
   }
 
@@ -593,7 +762,7 @@ public class SFStatement
     logger.debug("Entering executeFileTransfer");
 
     isFileTransfer = true;
-    transferAgent = new SnowflakeFileTransferAgent(sql, session, this);
+    transferAgent = getFileTransferAgentFactory().create(sql, session, this);
 
     try
     {
@@ -615,6 +784,43 @@ public class SFStatement
     }
   }
 
+  /**
+   * Load the factory of the file transfer agents on first use
+   *
+   * @return factory of the file transfer agents
+   * @throws SnowflakeSQLException if the file transfer classes cannot be
+   *                               loaded, e.g. if the AWS SDK is not in
+   *                               the class path
+   */
+  private static synchronized SFFileTransferAgentFactory
+      getFileTransferAgentFactory() throws SnowflakeSQLException
+  {
+    if (fileTransferAgentFactory == null)
+    {
+      long startTime = System.nanoTime();
+
+      try
+      {
+        fileTransferAgentFactory = (SFFileTransferAgentFactory)
+            Class.forName(FILE_TRANSFER_AGENT_FACTORY_CLASS).newInstance();
+      }
+      catch (ReflectiveOperationException | LinkageError ex)
+      {
+        logger.error("Failed to load file transfer support: {}",
+            ex.toString());
+
+        throw new SnowflakeSQLException(ex, SqlState.INTERNAL_ERROR,
+            ErrorCode.INTERNAL_ERROR.getMessageCode(),
+            "Failed to load file transfer support: " + ex.toString());
+      }
+
+      logger.debug("Loaded file transfer support in {} ms",
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    return fileTransferAgentFactory;
+  }
+
   public void close() throws SQLException
   {
     logger.debug("public void close()");
@@ -698,7 +904,7 @@ public class SFStatement
     transferAgent = null;
   }
 
-  public void executeSetProperty(final String sql)
+  public void executeSetProperty(final String sql) throws SFException
   {
     logger.debug("setting property");
 
@@ -724,6 +930,15 @@ public class SFStatement
         this.session.setSFSessionProperty("sort", false);
       }
     }
+    else if (tokens.length >= 3 && FILE_TRANSFER_PROPERTIES.contains(
+        SFSessionProperty.lookupByKey(tokens[1])))
+    {
+      logger.debug("setting {} to {} for file transfers", tokens[1],
+          tokens[2]);
+
+      setFileTransferProperty(tokens[1],
+          "default".equalsIgnoreCase(tokens[2]) ? null : tokens[2]);
+    }
   }
 
   protected SFSession getSession()
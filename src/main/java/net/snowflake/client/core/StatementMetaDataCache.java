@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.core;
+
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache of describe results of a session.
+ *
+ * Entries are keyed by the sql text and the database, schema and role the
+ * statement was described in, since the same text can resolve to different
+ * objects in another context. The cache is cleared when the session context
+ * changes or a DDL statement is executed in the session. Changes made by
+ * other sessions are not detected.
+ */
+final class StatementMetaDataCache
+{
+  static final SFLogger logger =
+      SFLoggerFactory.getLogger(StatementMetaDataCache.class);
+
+  private final Map<String, SFStatementMetaData> entries;
+
+  StatementMetaDataCache(final int maxSize)
+  {
+    // access ordered so that the least recently used entry is evicted
+    this.entries = new LinkedHashMap<String, SFStatementMetaData>(
+        16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, SFStatementMetaData> eldest)
+      {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  synchronized SFStatementMetaData get(String key)
+  {
+    return entries.get(key);
+  }
+
+  synchronized void put(String key, SFStatementMetaData metaData)
+  {
+    entries.put(key, metaData);
+  }
+
+  synchronized void clear()
+  {
+    if (!entries.isEmpty())
+    {
+      logger.debug("clearing {} cached statement descriptions",
+          entries.size());
+
+      entries.clear();
+    }
+  }
+
+  /**
+   * @param sql sql text
+   * @param database current database
+   * @param schema current schema
+   * @param role current role
+   * @return cache key of the statement in the given context
+   */
+  static String key(String sql, String database, String schema, String role)
+  {
+    return new StringBuilder(sql.length() + 64)
+        .append(database).append('\u0000')
+        .append(schema).append('\u0000')
+        .append(role).append('\u0000')
+        .append(sql)
+        .toString();
+  }
+}
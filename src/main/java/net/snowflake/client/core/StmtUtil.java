@@ -11,7 +11,6 @@ import net.snowflake.client.jdbc.ErrorCode;
 import net.snowflake.client.jdbc.SnowflakeSQLException;
 import net.snowflake.client.jdbc.SnowflakeUtil;
 import net.snowflake.common.api.QueryInProgressResponse;
-import java.io.ByteArrayOutputStream;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -27,8 +26,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPOutputStream;
-import org.apache.http.entity.ByteArrayEntity;
 
 import net.snowflake.client.log.SFLogger;
 import net.snowflake.client.log.SFLoggerFactory;
@@ -63,6 +60,7 @@ public class StmtUtil
     // default to snowflake (a special json format for snowflake query result
     String mediaType = "application/snowflake";
     Map<String, ParameterBindingDTO> bindValues;
+    String bindStage;
     boolean describeOnly;
     String serverUrl;
     String requestId;
@@ -106,6 +104,12 @@ public class StmtUtil
       return this;
     }
 
+    public StmtInput setBindStage(String bindStage)
+    {
+      this.bindStage = bindStage;
+      return this;
+    }
+
     public StmtInput setDescribeOnly(boolean describeOnly)
     {
       this.describeOnly = describeOnly;
@@ -265,6 +269,10 @@ public class StmtUtil
         if (stmtInput.bindValues != null)
           sqlJsonBody.put("bindings", stmtInput.bindValues);
 
+        // binding data uploaded to a stage instead of sent inline
+        if (stmtInput.bindStage != null)
+          sqlJsonBody.put("bindStage", stmtInput.bindStage);
+
         sqlJsonBody.put("describeOnly", stmtInput.describeOnly);
 
         // add statement parameters
@@ -273,22 +281,15 @@ public class StmtUtil
           sqlJsonBody.put("parameters", stmtInput.parametersMap);
         }
 
-        String json = mapper.writeValueAsString(sqlJsonBody);
-
         if (logger.isDebugEnabled())
         {
-          logger.debug("JSON: {}", json);
+          logger.debug("JSON: {}", mapper.writeValueAsString(sqlJsonBody));
         }
 
-        // SNOW-18057: compress the post body in gzip
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        GZIPOutputStream gzos = new GZIPOutputStream(baos);
-        byte[] bytes = json.getBytes("UTF-8");
-        gzos.write(bytes);
-        gzos.finish();
-        ByteArrayEntity input = new ByteArrayEntity(baos.toByteArray());
-        input.setContentType("application/json");
-        httpRequest.setEntity(input);
+        // SNOW-18057: compress the post body in gzip. The body is streamed
+        // into the gzip output on the connection so that large bindings are
+        // not copied in memory.
+        httpRequest.setEntity(new GzipJsonEntity(mapper, sqlJsonBody));
         httpRequest.addHeader("content-encoding", "gzip");
 
         httpRequest.addHeader("accept", stmtInput.mediaType);
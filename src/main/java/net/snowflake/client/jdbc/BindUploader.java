@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import net.snowflake.client.core.BindColumnBuffer;
+import net.snowflake.client.core.ParameterBindingDTO;
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * Uploads the bind values of an array bind to a temporary stage so that the
+ * statement can be executed against the staged data instead of sending the
+ * bindings with the query.
+ *
+ * Bind values are written as CSV rows, one column per bind variable, split
+ * into files of at most MAX_FILE_SIZE bytes. The rows of a file are
+ * compressed and uploaded while they are written, with a stage output
+ * stream, so that the files are not buffered in memory. Stages that do not
+ * support stage output streams get files buffered in memory and put with
+ * the file transfer agent.
+ */
+final class BindUploader
+{
+  static final SFLogger logger = SFLoggerFactory.getLogger(BindUploader.class);
+
+  // temporary stage of the session that holds the binding data
+  static final String STAGE_NAME = "SYSTEM$BIND";
+
+  private static final String CREATE_STAGE_SQL =
+      "create temporary stage if not exists " + STAGE_NAME +
+      " file_format=(type=csv field_optionally_enclosed_by='\"'" +
+      " date_format='YYYY-MM-DD'" +
+      " time_format='HH24:MI:SS.FF9'" +
+      " timestamp_format='YYYY-MM-DD HH24:MI:SS.FF9 TZH:TZM'" +
+      " binary_format=hex)";
+
+  // max uncompressed size of a single CSV file on the stage
+  private static final int MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final BigInteger NANOS_PER_SECOND =
+      BigInteger.valueOf(1000000000L);
+
+  private final SnowflakeConnectionV1 connection;
+
+  // path under the stage for the data of this upload
+  private final String stagePath;
+
+  private final SimpleDateFormat dateFormat;
+
+  private final SimpleDateFormat timestampFormat;
+
+  // false once a stage output stream could not be opened for the stage,
+  // after which the files are buffered in memory
+  private boolean useStageStream = true;
+
+  BindUploader(SnowflakeConnectionV1 connection)
+  {
+    this.connection = connection;
+    this.stagePath = UUID.randomUUID().toString();
+
+    this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    this.timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    this.timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /**
+   * @return stage location of the uploaded binding data, to be passed as
+   *         the bind stage of the query
+   */
+  String getBindStage()
+  {
+    return "@" + STAGE_NAME + "/" + stagePath;
+  }
+
+  /**
+   * Serialize the array bindings to CSV files and upload them to the stage
+   *
+   * @param bindings map of bind index to array of bind values
+   * @param rowCount number of rows in the array bind
+   * @throws SQLException if failed to create the stage or upload the data
+   */
+  void upload(Map<String, ParameterBindingDTO> bindings, int rowCount)
+      throws SQLException
+  {
+    List<ParameterBindingDTO> columns = new ArrayList<>(bindings.size());
+    for (int idx = 1; idx <= bindings.size(); idx++)
+    {
+      ParameterBindingDTO column = bindings.get(String.valueOf(idx));
+      if (column == null)
+      {
+        throw new SnowflakeSQLException(ErrorCode.INTERNAL_ERROR,
+            "missing binding for index " + idx);
+      }
+      columns.add(column);
+    }
+
+    executeImmediate(CREATE_STAGE_SQL);
+
+    logger.debug("uploading {} rows of bindings to {}",
+        rowCount, getBindStage());
+
+    StringBuilder row = new StringBuilder();
+    int fileCount = 0;
+    long fileSize = 0;
+
+    // file being written, null between files
+    OutputStream file = null;
+    Writer writer = null;
+
+    try
+    {
+      for (int rowIdx = 0; rowIdx < rowCount; rowIdx++)
+      {
+        row.setLength(0);
+        for (int colIdx = 0; colIdx < columns.size(); colIdx++)
+        {
+          if (colIdx > 0)
+            row.append(',');
+
+          appendValue(row, columns.get(colIdx), rowIdx);
+        }
+        row.append('\n');
+
+        if (file == null)
+        {
+          file = openFile(++fileCount);
+          writer = new OutputStreamWriter(file, UTF8);
+        }
+
+        writer.append(row);
+        fileSize += getUTF8Length(row);
+
+        if (fileSize >= MAX_FILE_SIZE)
+        {
+          writer.flush();
+          uploadFile(file, fileCount);
+          file = null;
+          fileSize = 0;
+        }
+      }
+
+      if (file != null)
+      {
+        writer.flush();
+        uploadFile(file, fileCount);
+        file = null;
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new SnowflakeSQLException(ex, ErrorCode.IO_ERROR.getSqlState(),
+          ErrorCode.IO_ERROR.getMessageCode(), ex.getMessage());
+    }
+    finally
+    {
+      // discard the parts of a file that failed in the middle
+      if (file instanceof StageOutputStream)
+      {
+        ((StageOutputStream) file).abort();
+      }
+    }
+  }
+
+  /**
+   * Open the stream of a binding file. The data written to a stage output
+   * stream is compressed and uploaded while it is written. If the stage
+   * does not support stage output streams, e.g. because it is encrypted
+   * with 256 bit keys, the file is buffered in memory.
+   *
+   * @param fileIndex number of the file
+   * @return stream of the file, uploaded by uploadFile
+   * @throws SQLException if failed to start the upload
+   */
+  private OutputStream openFile(int fileIndex) throws SQLException
+  {
+    if (useStageStream)
+    {
+      try
+      {
+        return connection.openStageOutputStream(STAGE_NAME, stagePath,
+            String.valueOf(fileIndex), true);
+      }
+      catch (SnowflakeSQLException ex)
+      {
+        if (ex.getErrorCode() != ErrorCode.FEATURE_UNSUPPORTED.getMessageCode())
+        {
+          throw ex;
+        }
+
+        logger.debug("buffering binding files in memory: {}",
+            ex.getMessage());
+
+        useStageStream = false;
+      }
+    }
+
+    return new FileBuffer();
+  }
+
+  /**
+   * @param text text to encode
+   * @return number of bytes of the text encoded in UTF-8
+   */
+  private static int getUTF8Length(CharSequence text)
+  {
+    int length = 0;
+
+    for (int idx = 0; idx < text.length(); idx++)
+    {
+      char c = text.charAt(idx);
+
+      if (c < 0x80)
+      {
+        length++;
+      }
+      else if (c < 0x800)
+      {
+        length += 2;
+      }
+      else if (Character.isHighSurrogate(c) && idx + 1 < text.length() &&
+          Character.isLowSurrogate(text.charAt(idx + 1)))
+      {
+        // a surrogate pair is one 4 byte code point
+        length += 4;
+        idx++;
+      }
+      else
+      {
+        length += 3;
+      }
+    }
+
+    return length;
+  }
+
+  /**
+   * Remove the uploaded binding data from the stage. Failures are only
+   * logged since the stage is dropped with the session anyway.
+   */
+  void cleanup()
+  {
+    try
+    {
+      executeImmediate("remove " + getBindStage() + "/");
+    }
+    catch (SQLException ex)
+    {
+      logger.debug("Failed to remove binding data from {}: {}",
+          getBindStage(), ex.getMessage());
+    }
+  }
+
+  /**
+   * Finish the upload of a binding file
+   *
+   * @param file stream of the file returned by openFile
+   * @param fileIndex number of the file
+   * @throws SQLException if failed to upload a buffered file
+   * @throws IOException if failed to upload the rest of a streamed file
+   */
+  private void uploadFile(OutputStream file, int fileIndex)
+      throws SQLException, IOException
+  {
+    if (file instanceof FileBuffer)
+    {
+      FileBuffer buffer = (FileBuffer) file;
+
+      logger.debug("uploading binding file {} of {} bytes",
+          fileIndex, buffer.size());
+
+      connection.compressAndUploadStream(STAGE_NAME, stagePath,
+          buffer.getInputStream(), String.valueOf(fileIndex));
+    }
+    else
+    {
+      logger.debug("completing binding file {}", fileIndex);
+
+      file.close();
+    }
+  }
+
+  private void executeImmediate(String sql) throws SQLException
+  {
+    try (Statement statement = connection.createStatement())
+    {
+      statement.execute(sql);
+    }
+  }
+
+  /**
+   * Binding file buffered in memory, which is read by the upload without
+   * copying the buffer
+   */
+  private static final class FileBuffer extends ByteArrayOutputStream
+  {
+    InputStream getInputStream()
+    {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  /**
+   * Append a bind value as a CSV field. Null is written as an empty
+   * unquoted field, any other value is quoted.
+   */
+  private void appendValue(StringBuilder row,
+                           ParameterBindingDTO column,
+                           int rowIdx)
+  {
+    BindColumnBuffer values = (BindColumnBuffer) column.getValue();
+
+    if (values.isNull(rowIdx))
+      return;
+
+    String type = column.getType();
+    String value;
+
+    if (SnowflakeType.DATE.name().equalsIgnoreCase(type))
+    {
+      // milliseconds since epoch
+      value = dateFormat.format(new Date(values.getLong(rowIdx)));
+    }
+    else if (SnowflakeType.TIME.name().equalsIgnoreCase(type))
+    {
+      // nanoseconds since midnight
+      long nanos = values.getLong(rowIdx);
+      value = String.format("%02d:%02d:%02d.%09d",
+          nanos / 3600000000000L,
+          nanos / 60000000000L % 60,
+          nanos / NANOS_PER_SECOND.longValue() % 60,
+          nanos % NANOS_PER_SECOND.longValue());
+    }
+    else if (type != null && type.toUpperCase().startsWith(
+        SnowflakeType.TIMESTAMP.name()))
+    {
+      // nanoseconds since epoch
+      BigInteger[] secondsAndNanos =
+          new BigDecimal(values.getString(rowIdx)).toBigInteger()
+          .divideAndRemainder(NANOS_PER_SECOND);
+
+      long seconds = secondsAndNanos[0].longValue();
+      long nanos = secondsAndNanos[1].longValue();
+      if (nanos < 0)
+      {
+        seconds--;
+        nanos += NANOS_PER_SECOND.longValue();
+      }
+
+      value = timestampFormat.format(new Date(seconds * 1000)) +
+          String.format(".%09d", nanos) + " +00:00";
+    }
+    else
+    {
+      value = values.getString(rowIdx);
+    }
+
+    row.append('"');
+    for (int idx = 0; idx < value.length(); idx++)
+    {
+      char c = value.charAt(idx);
+      if (c == '"')
+        row.append('"');
+      row.append(c);
+    }
+    row.append('"');
+  }
+}
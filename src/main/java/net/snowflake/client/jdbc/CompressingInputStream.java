@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.amazonaws.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Input stream of the compressed content of another input stream.
+ *
+ * Compression is pulled by the reader: every time the compressed bytes of
+ * the previous chunk have been consumed, the next chunk of the source is
+ * read and compressed into a small buffer. The compressed bytes can be
+ * counted and digested on the way, so a consumer such as the S3 uploader
+ * reads compressed data straight from the source without it ever being
+ * materialized in memory or in a temp file.
+ *
+ * In block mode the source is split into blocks that are compressed
+ * concurrently into independent streams, e.g. gzip members, which are
+ * returned in order. This requires a codec whose concatenated streams are a
+ * valid stream, at the cost of a slightly worse compression ratio.
+ *
+ * Reading the same source twice in the same mode with the same compression
+ * produces the same compressed bytes, which allows computing the size and digest of the
+ * compressed data in a first pass and uploading it in a second pass.
+ */
+final class CompressingInputStream extends InputStream
+{
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  // size of the uncompressed blocks in block mode
+  private static final int BLOCK_SIZE = 1 << 20;
+
+  /** ByteArrayOutputStream that exposes its internals. */
+  private static class OutputBuffer extends ByteArrayOutputStream
+  {
+    OutputBuffer(int size)
+    {
+      super(size);
+    }
+
+    byte[] getBuffer()
+    {
+      return buf;
+    }
+  }
+
+  private final InputStream source;
+
+  private final UploadCompression compression;
+
+  private final OutputBuffer compressed;
+
+  // null in block mode
+  private final OutputStream compressingStream;
+
+  // compression workers in block mode, null otherwise, not owned by this
+  // stream
+  private final ExecutorService executor;
+
+  // max number of blocks read ahead in block mode
+  private final int maxPendingBlocks;
+
+  // compressed blocks in order
+  private final Queue<Future<byte[]>> pendingBlocks =
+      new ArrayDeque<Future<byte[]>>();
+
+  private boolean sourceExhausted = false;
+
+  private long blockCount = 0;
+
+  // null if no digest is computed
+  private final MessageDigest digest;
+
+  // base64 encoded digest, computed once since computing it resets the
+  // message digest
+  private String digestText = null;
+
+  private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+  // read position in the compressed buffer
+  private int position = 0;
+
+  // number of compressed bytes produced so far
+  private long count = 0;
+
+  private boolean finished = false;
+
+  /**
+   * @param source source stream, closed when this stream is closed
+   * @param compression compression of the source
+   * @param digest digest to update with the compressed bytes, or null
+   * @throws IOException if failed to write the header of the compressed
+   *                     stream
+   */
+  CompressingInputStream(InputStream source, UploadCompression compression,
+                         MessageDigest digest)
+      throws IOException
+  {
+    this.source = source;
+    this.compression = compression;
+    this.digest = digest;
+    this.compressed = new OutputBuffer(READ_BUFFER_SIZE);
+    this.compressingStream = compression.compress(compressed);
+    this.executor = null;
+    this.maxPendingBlocks = 0;
+
+    // account for the header written by the codec, if any
+    produced();
+  }
+
+  /**
+   * Create a stream in block mode
+   *
+   * @param source source stream, closed when this stream is closed
+   * @param compression compression of the source, whose concatenated
+   *                    streams must be a valid stream
+   * @param digest digest to update with the compressed bytes, or null
+   * @param executor compression workers, which may be shared with other
+   *                 streams and are not stopped when this stream is closed
+   * @param maxPendingBlocks max number of blocks read ahead
+   */
+  CompressingInputStream(InputStream source, UploadCompression compression,
+                         MessageDigest digest, ExecutorService executor,
+                         int maxPendingBlocks)
+  {
+    this.source = source;
+    this.compression = compression;
+    this.digest = digest;
+    this.compressed = new OutputBuffer(0);
+    this.compressingStream = null;
+    this.executor = executor;
+    this.maxPendingBlocks = Math.max(maxPendingBlocks, 1);
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    byte[] single = new byte[1];
+    int bytesRead = read(single, 0, 1);
+    return bytesRead < 0 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0)
+    {
+      return 0;
+    }
+
+    while (position == compressed.size())
+    {
+      if (finished)
+      {
+        return -1;
+      }
+
+      compressed.reset();
+      position = 0;
+
+      compressNextChunk();
+    }
+
+    int bytesRead = Math.min(len, compressed.size() - position);
+    System.arraycopy(compressed.getBuffer(), position, b, off, bytesRead);
+    position += bytesRead;
+
+    return bytesRead;
+  }
+
+  @Override
+  public int available()
+  {
+    return compressed.size() - position;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      source.close();
+    }
+    finally
+    {
+      if (executor != null)
+      {
+        for (Future<byte[]> block : pendingBlocks)
+        {
+          block.cancel(true);
+        }
+        pendingBlocks.clear();
+      }
+      else
+      {
+        // releases the codec, any remaining output goes to the buffer
+        compressingStream.close();
+      }
+    }
+  }
+
+  /**
+   * @return number of compressed bytes produced so far, the compressed
+   *         size once the end of the stream has been reached
+   */
+  long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return base64 encoded digest of the compressed bytes, only valid once
+   *         the end of the stream has been reached. Later calls return the
+   *         same digest.
+   */
+  String getDigest()
+  {
+    if (digest != null && digestText == null)
+    {
+      digestText = Base64.encodeAsString(digest.digest());
+    }
+
+    return digestText;
+  }
+
+  private void compressNextChunk() throws IOException
+  {
+    if (executor != null)
+    {
+      nextBlock();
+      return;
+    }
+
+    int bytesRead = source.read(readBuffer);
+
+    if (bytesRead < 0)
+    {
+      // closing the codec stream finishes the compressed data
+      compressingStream.close();
+      finished = true;
+    }
+    else if (bytesRead > 0)
+    {
+      compressingStream.write(readBuffer, 0, bytesRead);
+    }
+
+    produced();
+  }
+
+  /**
+   * Put the next compressed block in the compressed buffer, after reading
+   * ahead and submitting as many blocks as allowed
+   */
+  private void nextBlock() throws IOException
+  {
+    while (!sourceExhausted && pendingBlocks.size() < maxPendingBlocks)
+    {
+      final byte[] block = readBlock();
+
+      if (block == null)
+      {
+        sourceExhausted = true;
+        break;
+      }
+
+      pendingBlocks.add(executor.submit(new Callable<byte[]>()
+      {
+        @Override
+        public byte[] call() throws IOException
+        {
+          return compressBlock(block, compression);
+        }
+      }));
+    }
+
+    Future<byte[]> next = pendingBlocks.poll();
+
+    if (next == null)
+    {
+      finished = true;
+      return;
+    }
+
+    try
+    {
+      compressed.write(next.get());
+    }
+    catch (InterruptedException ex)
+    {
+      throw new IOException("Interrupted while compressing", ex);
+    }
+    catch (ExecutionException ex)
+    {
+      throw new IOException("Failed to compress block", ex.getCause());
+    }
+
+    produced();
+  }
+
+  /**
+   * @return next block of the source, null at the end of the source
+   */
+  private byte[] readBlock() throws IOException
+  {
+    byte[] block = new byte[BLOCK_SIZE];
+    int length = 0;
+
+    while (length < BLOCK_SIZE)
+    {
+      int bytesRead = source.read(block, length, BLOCK_SIZE - length);
+
+      if (bytesRead < 0)
+      {
+        break;
+      }
+
+      length += bytesRead;
+    }
+
+    // an empty source is compressed as a single empty member
+    if (length == 0 && blockCount > 0)
+    {
+      return null;
+    }
+
+    blockCount++;
+
+    if (length < BLOCK_SIZE)
+    {
+      byte[] lastBlock = new byte[length];
+      System.arraycopy(block, 0, lastBlock, 0, length);
+      return lastBlock;
+    }
+
+    return block;
+  }
+
+  private static byte[] compressBlock(byte[] block,
+                                      UploadCompression compression)
+      throws IOException
+  {
+    ByteArrayOutputStream member =
+        new ByteArrayOutputStream(block.length / 2 + 64);
+
+    OutputStream memberStream = compression.compress(member);
+    memberStream.write(block);
+    memberStream.close();
+
+    return member.toByteArray();
+  }
+
+  /**
+   * Count and digest the bytes in the compressed buffer
+   */
+  private void produced()
+  {
+    count += compressed.size();
+
+    if (digest != null)
+    {
+      digest.update(compressed.getBuffer(), 0, compressed.size());
+    }
+  }
+}
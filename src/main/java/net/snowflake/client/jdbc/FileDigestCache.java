@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of digests of local files, used by PUT without
+ * overwrite to skip hashing files that have not changed since a previous
+ * run.
+ *
+ * Entries are keyed by the canonical path of a file and are only valid for
+ * the size and modification time the digests were computed for. Each entry
+ * holds digests of several kinds (e.g. SHA-256 of the gzip compressed
+ * content, whose kind includes the codec and level of the compression) as
+ * they are computed. The cache is bounded by a number of files
+ * and evicts the least recently used entries.
+ *
+ * The cache is stored as a JSON array in a single file, read when the cache
+ * is opened and replaced atomically when it is saved. Concurrent PUTs in
+ * the same process are serialized on load and save; with several processes
+ * sharing a file the last one to save wins, which at worst loses entries.
+ */
+final class FileDigestCache
+{
+  static final SFLogger logger = SFLoggerFactory.getLogger(FileDigestCache.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  // digest kinds
+  static final String SHA256 = "sha256";
+  static final String MD5 = "md5";
+
+  // files modified more recently than this are not cached, since they may
+  // be modified again within the resolution of the modification time
+  private static final long MIN_FILE_AGE_MILLIS = 2000;
+
+  // lock for reading and writing cache files
+  private static final Object fileLock = new Object();
+
+  private static class Entry
+  {
+    final long size;
+    final long lastModified;
+    final Map<String, String> digests;
+
+    Entry(long size, long lastModified)
+    {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.digests = new HashMap<String, String>(4);
+    }
+  }
+
+  private final File cacheFile;
+
+  private final Map<String, Entry> entries;
+
+  private boolean modified = false;
+
+  private FileDigestCache(File cacheFile, final int maxSize)
+  {
+    this.cacheFile = cacheFile;
+
+    // access ordered so that the least recently used entry is evicted
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+      {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param compression name of the compression of the content, e.g. gzip
+   * @param kind kind of the digest of the compressed content
+   * @return kind of the digest of the compressed content of a file
+   */
+  static String compressed(String compression, String kind)
+  {
+    return compression + "-" + kind;
+  }
+
+  /**
+   * Open the cache stored in a file. A missing or unreadable cache file
+   * results in an empty cache.
+   *
+   * @param cacheFileName cache file name
+   * @param maxSize max number of files in the cache
+   * @return digest cache
+   */
+  static FileDigestCache open(String cacheFileName, int maxSize)
+  {
+    FileDigestCache cache =
+        new FileDigestCache(new File(cacheFileName), maxSize);
+
+    synchronized (fileLock)
+    {
+      if (!cache.cacheFile.exists())
+      {
+        logger.debug("Digest cache file {} does not exist", cacheFileName);
+        return cache;
+      }
+
+      try
+      {
+        JsonNode rootNode = mapper.readTree(cache.cacheFile);
+
+        // entries are stored from least to most recently used
+        for (JsonNode entryNode : rootNode)
+        {
+          Entry entry = new Entry(entryNode.path("size").asLong(),
+              entryNode.path("mtime").asLong());
+
+          Iterator<Map.Entry<String, JsonNode>> digests =
+              entryNode.path("digests").fields();
+          while (digests.hasNext())
+          {
+            Map.Entry<String, JsonNode> digest = digests.next();
+            entry.digests.put(digest.getKey(), digest.getValue().asText());
+          }
+
+          cache.entries.put(entryNode.path("path").asText(), entry);
+        }
+
+        logger.debug("Loaded {} entries from digest cache {}",
+            cache.entries.size(), cacheFileName);
+      }
+      catch (IOException | RuntimeException ex)
+      {
+        logger.warn("Ignoring unreadable digest cache {}: {}",
+            cacheFileName, ex.getMessage());
+
+        cache.entries.clear();
+      }
+    }
+
+    return cache;
+  }
+
+  /**
+   * @param fileName local file name
+   * @param kind digest kind
+   * @return cached digest of the file, null if not cached or if the file
+   *         changed since the digest was computed
+   */
+  synchronized String get(String fileName, String kind)
+  {
+    try
+    {
+      File file = new File(fileName);
+      String path = file.getCanonicalPath();
+      Entry entry = entries.get(path);
+
+      if (entry == null)
+      {
+        return null;
+      }
+
+      if (entry.size != file.length() ||
+          entry.lastModified != file.lastModified())
+      {
+        entries.remove(path);
+        modified = true;
+        return null;
+      }
+
+      return entry.digests.get(kind);
+    }
+    catch (IOException ex)
+    {
+      logger.debug("Failed to resolve {}: {}", fileName, ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Add the digest of a file to the cache
+   *
+   * @param fileName local file name
+   * @param kind digest kind
+   * @param digest digest of the file
+   */
+  synchronized void put(String fileName, String kind, String digest)
+  {
+    try
+    {
+      File file = new File(fileName);
+      long lastModified = file.lastModified();
+
+      if (lastModified == 0 ||
+          lastModified > System.currentTimeMillis() - MIN_FILE_AGE_MILLIS)
+      {
+        return;
+      }
+
+      String path = file.getCanonicalPath();
+      Entry entry = entries.get(path);
+
+      if (entry == null || entry.size != file.length() ||
+          entry.lastModified != lastModified)
+      {
+        entry = new Entry(file.length(), lastModified);
+        entries.put(path, entry);
+      }
+
+      entry.digests.put(kind, digest);
+      modified = true;
+    }
+    catch (IOException ex)
+    {
+      logger.debug("Failed to resolve {}: {}", fileName, ex.getMessage());
+    }
+  }
+
+  /**
+   * Save the cache to its file if it was modified. Failures are only logged
+   * since the cache is an optimization.
+   */
+  synchronized void save()
+  {
+    if (!modified)
+    {
+      return;
+    }
+
+    ArrayNode rootNode = mapper.createArrayNode();
+
+    for (Map.Entry<String, Entry> entry : entries.entrySet())
+    {
+      ObjectNode entryNode = rootNode.addObject();
+      entryNode.put("path", entry.getKey());
+      entryNode.put("size", entry.getValue().size);
+      entryNode.put("mtime", entry.getValue().lastModified);
+
+      ObjectNode digestsNode = entryNode.putObject("digests");
+      for (Map.Entry<String, String> digest :
+           entry.getValue().digests.entrySet())
+      {
+        digestsNode.put(digest.getKey(), digest.getValue());
+      }
+    }
+
+    synchronized (fileLock)
+    {
+      File tempFile = null;
+
+      try
+      {
+        File dir = cacheFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs())
+        {
+          throw new IOException("Failed to create directory " + dir);
+        }
+
+        // write a temp file and rename it so that readers never see a
+        // partially written cache
+        tempFile = File.createTempFile(cacheFile.getName(), ".tmp", dir);
+        mapper.writeValue(tempFile, rootNode);
+
+        Files.move(tempFile.toPath(), cacheFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        modified = false;
+
+        logger.debug("Saved {} entries to digest cache {}",
+            entries.size(), cacheFile);
+      }
+      catch (IOException ex)
+      {
+        logger.warn("Failed to save digest cache {}: {}",
+            cacheFile, ex.getMessage());
+
+        if (tempFile != null && tempFile.exists() && !tempFile.delete())
+        {
+          logger.debug("Failed to delete {}", tempFile);
+        }
+      }
+    }
+  }
+}
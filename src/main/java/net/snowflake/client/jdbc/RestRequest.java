@@ -181,7 +181,9 @@ public class RestRequest
         logger.debug("HTTP response code: {}",
             response.getStatusLine().getStatusCode());
 
-        if (response.getStatusLine().getStatusCode() != 200)
+        // 206 is the response to the range requests resuming a download
+        if (response.getStatusLine().getStatusCode() != 200 &&
+            response.getStatusLine().getStatusCode() != 206)
         {
           logger.debug("Got error response which is not retriable, " +
               "http status={}, request={}",
@@ -284,7 +286,8 @@ public class RestRequest
     if (response == null)
       logger.error("Returning null response for request: {}",
                                httpRequest);
-    else if (response.getStatusLine().getStatusCode() != 200)
+    else if (response.getStatusLine().getStatusCode() != 200 &&
+             response.getStatusLine().getStatusCode() != 206)
       logger.error("Got error response: " +
               "http status={}, request={}",
                                new Object[]{
@@ -10,11 +10,11 @@ import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.MappingJsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
 import net.snowflake.client.core.HttpUtil;
 import net.snowflake.client.jdbc.SnowflakeResultChunk.DownloadState;
 import net.snowflake.common.core.SqlState;
 import org.apache.http.Header;
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
@@ -24,7 +24,9 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.SequenceInputStream;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -61,6 +63,14 @@ public class SnowflakeChunkDownloader
   // SSE-C algorithm value
   private static final String SSE_C_AES = "AES256";
 
+  // max number of times the rest of a chunk is requested after a failure
+  // to read its body
+  private static final int MAX_CHUNK_RESUMES = 10;
+
+  // max backoff before requesting the rest of a chunk
+  private static final int MAX_RESUME_BACKOFF_EXPONENT = 4;
+  private static final long RESUME_BACKOFF_MILLIS = 1000;
+
   // object mapper for deserialize JSON
   private static final ObjectMapper mapper = new ObjectMapper();
 
@@ -509,7 +519,11 @@ public class SnowflakeChunkDownloader
 
           long startTime = System.currentTimeMillis();
 
-          HttpResponse response = getResultChunk(resultChunk.getUrl());
+          HttpGet httpRequest = createChunkRequest(resultChunk.getUrl(),
+              chunkHeadersMap, qrmk, 0, null);
+
+          HttpResponse response = getResultChunk(httpRequest,
+              networkTimeoutInMilli);
 
           /*
            * return error if we don't get a response or the response code
@@ -534,12 +548,13 @@ public class SnowflakeChunkDownloader
           }
 
           InputStream jsonInputStream;
-          final HttpEntity entity = response.getEntity();
           try
           {
-            // read the chunk data
-            InputStream is =
-                  new HttpUtil.HttpInputStream(entity.getContent());
+            // read the chunk data, resuming from the last byte received
+            // if the connection fails
+            InputStream is = new ResumableChunkInputStream(httpRequest,
+                response, resultChunk.getUrl(), chunkHeadersMap, qrmk,
+                networkTimeoutInMilli);
 
             // Determine the format of the response, if it is not
             // either plain text or gzip, raise an error.
@@ -744,46 +759,277 @@ public class SnowflakeChunkDownloader
           resultChunk.ensureRowsComplete();
         }
       }
+    };
+  }
 
-      private HttpResponse getResultChunk(String chunkUrl) throws URISyntaxException, IOException, SnowflakeSQLException
+  /**
+   * Create the request of a result chunk
+   *
+   * @param chunkUrl url of the chunk
+   * @param chunkHeadersMap headers needed to download from s3, or null
+   * @param qrmk Query Result Master Key, used if there are no chunk headers
+   * @param offset offset of the first byte to download
+   * @param eTag ETag the chunk must have, or null
+   * @return request
+   * @throws URISyntaxException if the url is not valid
+   */
+  static HttpGet createChunkRequest(String chunkUrl,
+                                    Map<String, String> chunkHeadersMap,
+                                    String qrmk,
+                                    long offset,
+                                    String eTag)
+      throws URISyntaxException
+  {
+    URIBuilder uriBuilder = new URIBuilder(chunkUrl);
+
+    HttpGet httpRequest = new HttpGet(uriBuilder.build());
+
+    if (chunkHeadersMap != null && chunkHeadersMap.size() != 0)
+    {
+      for (Map.Entry<String, String> entry : chunkHeadersMap.entrySet())
       {
-        URIBuilder uriBuilder = new URIBuilder(chunkUrl);
+        logger.debug("Adding header key={}, value={}",
+                   new Object[]{entry.getKey(),
+                                 entry.getValue()});
+        httpRequest.addHeader(entry.getKey(), entry.getValue());
+      }
+    }
+    // Add SSE-C headers
+    else if (qrmk != null)
+    {
+      httpRequest.addHeader(SSE_C_ALGORITHM, SSE_C_AES);
+      httpRequest.addHeader(SSE_C_KEY, qrmk);
+      logger.debug("Adding SSE-C headers");
+    }
+
+    if (offset > 0)
+    {
+      httpRequest.addHeader("Range", "bytes=" + offset + "-");
+
+      if (eTag != null)
+      {
+        httpRequest.addHeader("If-Match", eTag);
+      }
+    }
 
-        HttpGet httpRequest = new HttpGet(uriBuilder.build());
+    return httpRequest;
+  }
+
+  /**
+   * Send the request of a result chunk. The body of the response is not
+   * decompressed by the client, so that the bytes read from it are the
+   * bytes received, which are counted to resume the download.
+   *
+   * @param httpRequest request of the chunk
+   * @param networkTimeoutInMilli network timeout
+   * @return response
+   * @throws IOException if the request failed
+   * @throws SnowflakeSQLException if the request failed after retries
+   */
+  static HttpResponse getResultChunk(HttpGet httpRequest,
+                                     int networkTimeoutInMilli)
+      throws IOException, SnowflakeSQLException
+  {
+    logger.debug("Fetching result: {}", httpRequest.getURI());
+    HttpClient httpClient = HttpUtil.getHttpClientWithoutDecompression();
+
+    // fetch the result chunk
+    HttpResponse response =
+        RestRequest.execute(httpClient,
+                            httpRequest,
+                            networkTimeoutInMilli / 1000,
+                            0,
+                            null);
+
+    logger.info("Call returned for URL: {}",
+                           httpRequest.getURI());
+    return response;
+  }
+
+  /**
+   * Stream of the body of a result chunk that requests the rest of the body
+   * from the last byte received when reading fails, e.g. when the connection
+   * is reset in the middle of a big chunk. The gzip stream and the parser
+   * reading from it keep their state, so a failure only costs the bytes
+   * that were not received yet. The position is counted in bytes of the
+   * body as received, before decompression, which is what ranged requests
+   * refer to.
+   */
+  static class ResumableChunkInputStream extends InputStream
+  {
+    private final String chunkUrl;
+    private final Map<String, String> chunkHeadersMap;
+    private final String qrmk;
+    private final int networkTimeoutInMilli;
+
+    // ETag of the chunk, so that resumed requests read the same object,
+    // null if unknown
+    private final String eTag;
+
+    private HttpGet httpRequest;
+    private InputStream body;
+
+    // number of bytes of the body received
+    private long position = 0;
+
+    private int resumeCount = 0;
+
+    ResumableChunkInputStream(HttpGet httpRequest,
+                              HttpResponse response,
+                              String chunkUrl,
+                              Map<String, String> chunkHeadersMap,
+                              String qrmk,
+                              int networkTimeoutInMilli) throws IOException
+    {
+      this.httpRequest = httpRequest;
+      this.chunkUrl = chunkUrl;
+      this.chunkHeadersMap = chunkHeadersMap;
+      this.qrmk = qrmk;
+      this.networkTimeoutInMilli = networkTimeoutInMilli;
+
+      Header eTagHeader = response.getFirstHeader("ETag");
+      this.eTag = eTagHeader == null ? null : eTagHeader.getValue();
+
+      this.body = new HttpUtil.HttpInputStream(
+          response.getEntity().getContent());
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      while (true)
+      {
+        try
+        {
+          int b = body.read();
+          if (b >= 0)
+          {
+            position++;
+          }
+          return b;
+        }
+        catch (IOException ex)
+        {
+          resume(ex);
+        }
+      }
+    }
 
-        if (chunkHeadersMap != null && chunkHeadersMap.size() != 0)
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      while (true)
+      {
+        try
         {
-          for (Map.Entry<String, String> entry : chunkHeadersMap.entrySet())
+          int bytesRead = body.read(b, off, len);
+          if (bytesRead > 0)
           {
-            logger.debug("Adding header key={}, value={}",
-                       new Object[]{entry.getKey(),
-                                     entry.getValue()});
-            httpRequest.addHeader(entry.getKey(), entry.getValue());
+            position += bytesRead;
           }
+          return bytesRead;
         }
-        // Add SSE-C headers
-        else if (qrmk != null)
+        catch (IOException ex)
         {
-          httpRequest.addHeader(SSE_C_ALGORITHM, SSE_C_AES);
-          httpRequest.addHeader(SSE_C_KEY, qrmk);
-          logger.debug("Adding SSE-C headers");
+          resume(ex);
         }
+      }
+    }
 
-        logger.debug("Fetching result: {}", resultChunk.getUrl());
-        HttpClient httpClient = HttpUtil.getHttpClient();
+    @Override
+    public int available() throws IOException
+    {
+      return body.available();
+    }
 
-        // fetch the result chunk
-        HttpResponse response =
-            RestRequest.execute(httpClient,
-                                httpRequest,
-                                networkTimeoutInMilli / 1000,
-                                0,
-                                null);
+    @Override
+    public void close() throws IOException
+    {
+      body.close();
+    }
 
-        logger.info("Call returned for URL: {}",
-                               chunkUrl);
-        return response;
+    /**
+     * Request the rest of the chunk from the current position
+     *
+     * @param cause failure to read the body
+     * @throws IOException the failure if the chunk cannot be resumed
+     */
+    private void resume(IOException cause) throws IOException
+    {
+      // the download is cancelled, either by the statement or by the
+      // shutdown of the downloader; a read timeout is still resumed
+      if (Thread.currentThread().isInterrupted() ||
+          (cause instanceof InterruptedIOException &&
+           !(cause instanceof SocketTimeoutException)))
+      {
+        throw cause;
       }
-    };
+
+      if (++resumeCount > MAX_CHUNK_RESUMES)
+      {
+        throw cause;
+      }
+
+      logger.info("Failed to read chunk at byte {}: {}, resuming " +
+          "attempt {}, url={}",
+          new Object[]{position, cause.getMessage(), resumeCount, chunkUrl});
+
+      // drop the connection rather than reading the rest of the body
+      httpRequest.abort();
+
+      try
+      {
+        Thread.sleep(RESUME_BACKOFF_MILLIS <<
+            Math.min(resumeCount - 1, MAX_RESUME_BACKOFF_EXPONENT));
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw cause;
+      }
+
+      HttpResponse response;
+      try
+      {
+        httpRequest = createChunkRequest(chunkUrl, chunkHeadersMap, qrmk,
+            position, eTag);
+        response = getResultChunk(httpRequest, networkTimeoutInMilli);
+      }
+      catch (URISyntaxException | SnowflakeSQLException ex)
+      {
+        throw new IOException("Failed to resume chunk: " + ex.getMessage(),
+            ex);
+      }
+
+      int statusCode = response.getStatusLine().getStatusCode();
+
+      if (statusCode == 206)
+      {
+        // the range must start at the current position
+        Header contentRange = response.getFirstHeader("Content-Range");
+
+        if (contentRange == null || !contentRange.getValue().trim()
+            .startsWith("bytes " + position + "-"))
+        {
+          httpRequest.abort();
+          logger.error("Unexpected range of chunk: {}", contentRange);
+          throw cause;
+        }
+
+        body = new HttpUtil.HttpInputStream(response.getEntity().getContent());
+      }
+      else if (statusCode == 200)
+      {
+        // the range was ignored, skip the bytes already received
+        body = new HttpUtil.HttpInputStream(response.getEntity().getContent());
+        ByteStreams.skipFully(body, position);
+      }
+      else
+      {
+        httpRequest.abort();
+        logger.error("Failed to resume chunk, HTTP status={}", statusCode);
+        throw cause;
+      }
+    }
   }
 }
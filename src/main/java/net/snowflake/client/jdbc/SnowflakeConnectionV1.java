@@ -1618,6 +1618,94 @@ public class SnowflakeConnectionV1 implements Connection
 
     SnowflakeStatementV1 stmt = new SnowflakeStatementV1(this);
 
+    SnowflakeFileTransferAgent transferAgent = null;
+    transferAgent = new SnowflakeFileTransferAgent(
+        getStreamPutCommand(stageName, destPrefix),
+        sfSession, stmt.getSfStatement());
+
+    transferAgent.setSourceStream(inputStream);
+    transferAgent.setDestFileNameForStreamSource(destFileName);
+    transferAgent.setSourceStreamSize(streamSize);
+    transferAgent.setCompressSourceFromStream(compressData);
+    transferAgent.setOverwrite(true);
+    transferAgent.execute();
+
+    stmt.close();
+  }
+
+  /**
+   * Method to open a stream writing a file at a stage location. The data
+   * written to the stream is compressed, encrypted and uploaded in parts by
+   * background threads while it is written, and the file appears in the
+   * stage when the stream is closed. Writes block while all the part buffers
+   * of the stream are being uploaded.
+   *
+   * caller is responsible for closing the stream, or for aborting it if the
+   * data cannot be written completely.
+   *
+   * Stages encrypted with 256 bit keys are not supported, since the parts
+   * are then encrypted by the S3 client, which cannot upload them
+   * concurrently. Use uploadStream for such stages.
+   *
+   * @param stageName
+   *   stage name: e.g. ~ or table name or stage name
+   * @param destPrefix
+   *   path prefix under which the data should be uploaded on the stage
+   * @param destFileName
+   *   destination file name to use
+   * @param compressData
+   *   whether the data should be compressed, in which case the extension of
+   *   the compression is added to the file name. The data is compressed with
+   *   the putCompressionCodec and putCompressionLevel of the connection.
+   * @return stream writing the file
+   * @throws java.sql.SQLException failed to start the upload
+   */
+  public StageOutputStream openStageOutputStream(String stageName,
+                                                 String destPrefix,
+                                                 String destFileName,
+                                                 boolean compressData)
+      throws SQLException
+  {
+    logger.debug("open stage output stream: stageName={}" +
+        ", destPrefix={}, destFileName={}",
+        new Object[]{stageName, destPrefix, destFileName});
+
+    if (stageName == null)
+      throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
+          ErrorCode.INTERNAL_ERROR.getMessageCode(),
+          "stage name is null");
+
+    if (destFileName == null)
+      throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
+          ErrorCode.INTERNAL_ERROR.getMessageCode(),
+          "destination file name is null");
+
+    SnowflakeStatementV1 stmt = new SnowflakeStatementV1(this);
+
+    try
+    {
+      SnowflakeFileTransferAgent transferAgent =
+          new SnowflakeFileTransferAgent(
+              getStreamPutCommand(stageName, destPrefix),
+              sfSession, stmt.getSfStatement());
+
+      return transferAgent.openStageOutputStream(destFileName, compressData);
+    }
+    finally
+    {
+      stmt.close();
+    }
+  }
+
+  /**
+   * @param stageName stage name
+   * @param destPrefix path prefix in the stage, or null
+   * @return PUT command of the stage location, with a placeholder for the
+   *         source file
+   */
+  private static String getStreamPutCommand(String stageName,
+                                            String destPrefix)
+  {
     StringBuilder putCommand = new StringBuilder();
 
     // use a placeholder for source file
@@ -1636,18 +1724,7 @@ public class SnowflakeConnectionV1 implements Connection
       putCommand.append(destPrefix);
     }
 
-    SnowflakeFileTransferAgent transferAgent = null;
-    transferAgent = new SnowflakeFileTransferAgent(putCommand.toString(),
-        sfSession, stmt.getSfStatement());
-
-    transferAgent.setSourceStream(inputStream);
-    transferAgent.setDestFileNameForStreamSource(destFileName);
-    transferAgent.setSourceStreamSize(streamSize);
-    transferAgent.setCompressSourceFromStream(compressData);
-    transferAgent.setOverwrite(true);
-    transferAgent.execute();
-
-    stmt.close();
+    return putCommand.toString();
   }
 
   public void setInjectedDelay(int delay)
@@ -1743,6 +1820,17 @@ public class SnowflakeConnectionV1 implements Connection
     return sfSession;
   }
 
+  /**
+   * Set the listener of the progress of the PUT and GET commands of the
+   * connection, including the uploads of streams.
+   *
+   * @param listener progress listener, null to remove the listener
+   */
+  public void setTransferProgressListener(TransferProgressListener listener)
+  {
+    sfSession.setTransferProgressListener(listener);
+  }
+
   private void appendWarning(SQLWarning w)
   {
     if (sqlWarnings == null)
@@ -22,50 +22,71 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import com.google.common.io.CountingOutputStream;
 import net.snowflake.client.core.SFException;
+import net.snowflake.client.core.SFFileTransferAgent;
 import net.snowflake.client.core.SFFixedViewResultSet;
 import net.snowflake.client.core.SFSession;
+import net.snowflake.client.core.SFSessionProperty;
 import net.snowflake.client.core.SFStatement;
 import net.snowflake.common.core.SqlState;
 import net.snowflake.common.util.ClassUtil;
 import net.snowflake.common.core.S3FileEncryptionMaterial;
 import net.snowflake.common.util.FixedViewColumn;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import net.snowflake.client.log.SFLogger;
 import net.snowflake.client.log.SFLoggerFactory;
 
@@ -74,7 +95,8 @@ import net.snowflake.client.log.SFLoggerFactory;
  *
  * @author jhuang
  */
-public class SnowflakeFileTransferAgent implements SnowflakeFixedView
+public class SnowflakeFileTransferAgent
+    implements SnowflakeFixedView, SFFileTransferAgent
 {
   final static SFLogger logger =
   SFLoggerFactory.getLogger(SnowflakeFileTransferAgent.class);
@@ -95,6 +117,24 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
   // We will allow buffering of upto 128M data before spilling to disk during
   // compression and digest computation
   final static int MAX_BUFFER_SIZE = 1 << 27;
+
+  // max total size of compressed data computed for digest checks that is
+  // kept in memory for the upload of files that are not skipped
+  final static long MAX_RETAINED_COMPRESSED_SIZE = 1L << 28;
+
+  // files bigger than this are compressed in blocks by several threads.
+  // This must not change with the parallelism of a command since the
+  // digest of the compressed data depends on it.
+  final static long BLOCK_COMPRESSION_THRESHOLD = 16 * 1024 * 1024;
+
+  // max number of chunks of a split file, so that chunk numbers always
+  // have SPLIT_CHUNK_NUMBER_FORMAT digits
+  private final static long MAX_SPLIT_CHUNKS = 9999;
+  private final static String SPLIT_CHUNK_NUMBER_FORMAT = "%04d";
+
+  // files bigger than this are digested on memory mapped segments
+  private final static long MIN_MAPPED_FILE_SIZE = 1024 * 1024;
+  private final static long MAPPED_SEGMENT_SIZE = 64 * 1024 * 1024;
   public static final String SRC_FILE_NAME_FOR_STREAM = "stream";
 
   // expired AWS token error code
@@ -111,18 +151,30 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
   // For downloading, it the list of stage file names
   private Set<String> sourceFiles;
 
-  // big source files >=16MB, for which we will not upload them in serial mode
-  // since TransferManager will parallelize upload
+  // sizes of the source files of an upload that were read while expanding
+  // wildcards, so that they are not read again
+  private Map<String, Long> sourceFileSizes;
+
+  // big stage files >16MB, which are downloaded in serial mode since
+  // their ranges are downloaded in parallel
   private Set<String> bigSourceFiles;
 
-  // big source files < 16MB, for which we will upload them in paralle mode
-  // with 4 threads by default
+  // small stage files <=16MB, which are downloaded in parallel mode
   private Set<String> smallSourceFiles;
 
   static final private int BIG_FILE_THRESHOLD = 16 * 1024 * 1024;
 
   private Map<String, FileMetadata> fileMetadataMap;
 
+  // cache of local file digests, null if disabled
+  private FileDigestCache digestCache = null;
+
+  // lock for hashing big files one at a time when filtering existing files
+  private final Object bigFileDigestLock = new Object();
+
+  // size of compressed data currently kept in file metadata
+  private long retainedCompressedSize = 0;
+
   // stage related info
   private String stageLocationType;
   private String stageLocation;
@@ -216,14 +268,33 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
 
   private SnowflakeS3Client s3Client = null;
 
+  // s3 clients of this execution by encryption material, shared by the
+  // transfers of all files and shut down when the execution is done
+  private final Map<String, SnowflakeS3Client> s3Clients =
+      new HashMap<String, SnowflakeS3Client>();
+
   private static final String SOURCE_COMPRESSION_AUTO_DETECT = "auto_detect";
   private static final String SOURCE_COMPRESSION_NONE = "none";
 
   private String sourceCompression = SOURCE_COMPRESSION_AUTO_DETECT;
 
+  // compression of the files that are auto compressed
+  private UploadCompression uploadCompression;
+
+  // metrics and progress listener of the transfers of the command
+  private final TransferMetrics transferMetrics;
+
   private ExecutorService threadExecutor = null;
   private Boolean canceled = false;
 
+  // workers compressing the big files of the command in blocks, shared by
+  // all files so that compression uses at most parallel threads
+  private ExecutorService compressionExecutor = null;
+
+  // throughput of the uploads of this agent, used to plan the part size
+  private final UploadPlanner.ThroughputEstimate uploadThroughput =
+      new UploadPlanner.ThroughputEstimate();
+
   /**
    * Result status enum
    */
@@ -403,6 +474,23 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     public FileCompressionType srcCompressionType;
     public FileCompressionType destCompressionType;
     public boolean isEncrypted = false;
+
+    // compressed size, digest and data of the source file computed by the
+    // digest check of existing files, reused for the upload
+    public InputStreamWithMetadata compressedData;
+
+    // digest of the uncompressed source file computed by the digest check
+    // of existing files, reused for the upload
+    public String sourceDigest;
+
+    // local file the source is a chunk of if the file is split, in which
+    // case srcFileSize is the size of the chunk
+    public String chunkOf;
+    public long chunkOffset;
+
+    // size of the header of the file copied to the start of the chunk,
+    // which is included in srcFileSize
+    public long chunkHeaderSize;
   }
 
   public enum FileCompressionType
@@ -482,25 +570,250 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     // the input stream has been consumed entirely
     FileBackedOutputStream fileBackedOutputStream;
 
+    // source of the data to upload, null if the data is not buffered
+    ByteSource source;
+
     InputStreamWithMetadata(long size, String digest,
                             FileBackedOutputStream fileBackedOutputStream)
     {
       this.size = size;
       this.digest = digest;
       this.fileBackedOutputStream = fileBackedOutputStream;
+      this.source = fileBackedOutputStream == null ? null :
+          fileBackedOutputStream.asByteSource();
+    }
+
+    InputStreamWithMetadata(long size, String digest, ByteSource source)
+    {
+      this.size = size;
+      this.digest = digest;
+      this.source = source;
+    }
+  }
+
+  /**
+   * Source of the compressed content of a file, or of a chunk of a file,
+   * that is too big to be kept in memory. The file is compressed again every
+   * time the source is opened, and the result is verified against the size
+   * and digest of the first compression pass, which were used for the
+   * object metadata.
+   */
+  private static class CompressedFileSource extends ByteSource
+  {
+    private final ByteSource file;
+    private final UploadCompression compression;
+    private final long size;
+    private final String digest;
+    private final ExecutorService compressionExecutor;
+    private final int parallel;
+
+    CompressedFileSource(ByteSource file, UploadCompression compression,
+                         long size, String digest,
+                         ExecutorService compressionExecutor, int parallel)
+    {
+      this.file = file;
+      this.compression = compression;
+      this.size = size;
+      this.digest = digest;
+      this.compressionExecutor = compressionExecutor;
+      this.parallel = parallel;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException
+    {
+      final CompressingInputStream compressedStream;
+
+      try
+      {
+        compressedStream = openCompressingStream(file, compression,
+            digest == null ? null : MessageDigest.getInstance("SHA-256"),
+            compressionExecutor, parallel);
+      }
+      catch (NoSuchAlgorithmException ex)
+      {
+        throw new IOException(ex);
+      }
+
+      return new FilterInputStream(compressedStream)
+      {
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+          int bytesRead = super.read(b, off, len);
+
+          if (bytesRead < 0)
+          {
+            verify();
+          }
+
+          return bytesRead;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+          int value = super.read();
+
+          if (value < 0)
+          {
+            verify();
+          }
+
+          return value;
+        }
+
+        private void verify() throws IOException
+        {
+          if (compressedStream.getCount() != size ||
+              (digest != null &&
+               !digest.equals(compressedStream.getDigest())))
+          {
+            throw new IOException("Compressed content of " + file +
+                " changed since its digest was computed, the file may " +
+                "have been modified during the upload");
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * Compress a file and return the result size, digest and a source of the
+   * compressed data.
+   *
+   * The compressed data is kept in memory if it fits in maxBufferSize,
+   * otherwise it is not kept at all and the file is compressed again while
+   * it is uploaded. In both cases no temp file is written.
+   *
+   * @param file content of the file, or of the chunk of the file, to
+   *             compress
+   * @param compression compression of the file
+   * @param computeDigest whether to compute the digest of the result
+   * @param compressionExecutor compression workers of the command
+   * @param parallel share of the compression workers for the file
+   * @param maxBufferSize max size of compressed data kept in memory
+   * @return result size, digest and source of compressed data
+   * @throws SnowflakeSQLException if encountered exception when compressing
+   */
+  private static InputStreamWithMetadata compressFile(
+          ByteSource file, UploadCompression compression,
+          boolean computeDigest, ExecutorService compressionExecutor,
+          int parallel, long maxBufferSize)
+      throws SnowflakeSQLException
+  {
+    try (CompressingInputStream compressedStream =
+             openCompressingStream(file, compression,
+                 computeDigest ? MessageDigest.getInstance("SHA-256") : null,
+                 compressionExecutor, parallel))
+    {
+      MemoryOutput memory = new MemoryOutput();
+      byte[] buffer = new byte[64 * 1024];
+      int bytesRead;
+
+      while ((bytesRead = compressedStream.read(buffer)) > -1)
+      {
+        if (memory != null)
+        {
+          if (memory.size() + bytesRead > maxBufferSize)
+          {
+            logger.debug("Compressed size of {} exceeds {} bytes, it will " +
+                "be compressed again while uploading", file, maxBufferSize);
+
+            memory = null;
+          }
+          else
+          {
+            memory.write(buffer, 0, bytesRead);
+          }
+        }
+      }
+
+      long size = compressedStream.getCount();
+      String digest = compressedStream.getDigest();
+
+      return new InputStreamWithMetadata(size, digest,
+          memory != null ?
+              ByteSource.wrap(memory.getBuffer()).slice(0, memory.size()) :
+              new CompressedFileSource(file, compression, size, digest,
+                  compressionExecutor, parallel));
+    }
+    catch (IOException | NoSuchAlgorithmException ex)
+    {
+      logger.error("Exception compressing file", ex);
+
+      throw new SnowflakeSQLException(ex, SqlState.INTERNAL_ERROR,
+              ErrorCode.INTERNAL_ERROR.getMessageCode(),
+              "error encountered for compression");
+    }
+  }
+
+  /**
+   * Open a stream of the compressed content of a file. Files bigger than
+   * BLOCK_COMPRESSION_THRESHOLD are compressed in blocks by the compression
+   * workers of the command, like pigz does, into concatenated gzip members
+   * or streams of other codecs that can be concatenated.
+   *
+   * @param file content of the file to compress
+   * @param compression compression of the file
+   * @param digest digest to update with the compressed bytes, or null
+   * @param compressionExecutor compression workers of the command, null to
+   *                            compress in the calling thread
+   * @param parallel share of the compression workers for the file, which
+   *                 bounds the number of blocks read ahead
+   * @return compressing stream
+   * @throws IOException if failed to open the file
+   */
+  private static CompressingInputStream openCompressingStream(
+      ByteSource file, UploadCompression compression, MessageDigest digest,
+      ExecutorService compressionExecutor, int parallel) throws IOException
+  {
+    long fileSize = file.size();
+    InputStream fileStream = file.openStream();
+
+    if (compressionExecutor != null &&
+        fileSize > BLOCK_COMPRESSION_THRESHOLD &&
+        compression.isConcatenable())
+    {
+      logger.debug("Compressing {} in blocks, {} blocks ahead",
+          file, 2 * parallel);
+
+      return new CompressingInputStream(fileStream, compression, digest,
+          compressionExecutor, 2 * parallel);
+    }
+
+    try
+    {
+      return new CompressingInputStream(fileStream, compression, digest);
+    }
+    catch (IOException ex)
+    {
+      fileStream.close();
+      throw ex;
+    }
+  }
+
+  /** ByteArrayOutputStream that exposes its internals. */
+  private static class MemoryOutput extends ByteArrayOutputStream
+  {
+    byte[] getBuffer()
+    {
+      return buf;
     }
   }
 
   /**
-   * Compress an input stream with GZIP and return the result size, digest and
+   * Compress an input stream and return the result size, digest and
    * compressed stream.
    *
    * @param inputStream data input
+   * @param compression compression of the data
    * @return result size, digest and compressed stream
    * @throws SnowflakeSQLException if encountered exception when compressing
    */
-  private static InputStreamWithMetadata compressStreamWithGZIP(
-          InputStream inputStream) throws SnowflakeSQLException
+  private static InputStreamWithMetadata compressStream(
+          InputStream inputStream, UploadCompression compression)
+      throws SnowflakeSQLException
   {
     FileBackedOutputStream tempStream =
           new FileBackedOutputStream(MAX_BUFFER_SIZE, true);
@@ -514,17 +827,16 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
       CountingOutputStream countingStream =
             new CountingOutputStream(digestStream);
 
-      // construct a gzip stream with sync_flush mode
-      GZIPOutputStream gzipStream;
+      // closing the compressing stream finishes the compressed data but
+      // must not close the temp stream
+      OutputStream compressingStream = compression.compress(
+          new CloseShieldOutputStream(countingStream));
 
-      gzipStream = new GZIPOutputStream(countingStream, true);
-
-      IOUtils.copy(inputStream, gzipStream);
+      IOUtils.copy(inputStream, compressingStream);
 
       inputStream.close();
 
-      gzipStream.finish();
-      gzipStream.flush();
+      compressingStream.close();
 
       countingStream.flush();
 
@@ -545,16 +857,18 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
   }
 
     /**
-   * Compress an input stream with GZIP and return the result size, digest and
+   * Compress an input stream and return the result size, digest and
    * compressed stream.
    *
    * @param inputStream
+   * @param compression
    * @return
    * @throws SnowflakeSQLException
    * @deprecated Can be removed when all accounts are encrypted
    */
-  private static InputStreamWithMetadata compressStreamWithGZIPNoDigest(
-          InputStream inputStream) throws SnowflakeSQLException
+  private static InputStreamWithMetadata compressStreamNoDigest(
+          InputStream inputStream, UploadCompression compression)
+      throws SnowflakeSQLException
   {
     try
     {
@@ -564,17 +878,14 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
       CountingOutputStream countingStream =
             new CountingOutputStream(tempStream);
 
-      // construct a gzip stream with sync_flush mode
-      GZIPOutputStream gzipStream;
+      OutputStream compressingStream = compression.compress(
+          new CloseShieldOutputStream(countingStream));
 
-      gzipStream = new GZIPOutputStream(countingStream, true);
-
-      IOUtils.copy(inputStream, gzipStream);
+      IOUtils.copy(inputStream, compressingStream);
 
       inputStream.close();
 
-      gzipStream.finish();
-      gzipStream.flush();
+      compressingStream.close();
 
       countingStream.flush();
 
@@ -594,6 +905,69 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
   }
 
 
+  /**
+   * Compute the digest of a file. The content of big files is digested on
+   * memory mapped segments of the file rather than copied to the heap.
+   *
+   * @param file file to digest
+   * @param algorithm digest algorithm
+   * @return digest of the file
+   * @throws IOException if failed to read the file
+   * @throws NoSuchAlgorithmException if the algorithm is not supported
+   */
+  static byte[] digestFile(File file, String algorithm)
+      throws IOException, NoSuchAlgorithmException
+  {
+    return digestFile(file, 0, Long.MAX_VALUE, algorithm);
+  }
+
+  /**
+   * Compute the digest of a range of a file
+   *
+   * @param file file to digest
+   * @param offset offset of the range
+   * @param length max length of the range, which ends at the end of the
+   *               file at the latest
+   * @param algorithm digest algorithm
+   * @return digest of the range
+   * @throws IOException if failed to read the file
+   * @throws NoSuchAlgorithmException if the algorithm is not supported
+   */
+  static byte[] digestFile(File file, long offset, long length,
+                           String algorithm)
+      throws IOException, NoSuchAlgorithmException
+  {
+    MessageDigest md = MessageDigest.getInstance(algorithm);
+
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ))
+    {
+      long end = offset +
+          Math.max(0, Math.min(length, channel.size() - offset));
+
+      if (end - offset < MIN_MAPPED_FILE_SIZE)
+      {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - offset));
+        while (buffer.hasRemaining() &&
+               channel.read(buffer, offset + buffer.position()) >= 0);
+
+        buffer.flip();
+        md.update(buffer);
+      }
+      else
+      {
+        for (long position = offset; position < end;
+             position += MAPPED_SEGMENT_SIZE)
+        {
+          md.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+              Math.min(MAPPED_SEGMENT_SIZE, end - position)));
+        }
+      }
+    }
+
+    return md.digest();
+  }
+
   private static InputStreamWithMetadata computeDigest(InputStream is,
                                                        boolean resetStream)
           throws NoSuchAlgorithmException, IOException
@@ -619,8 +993,62 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                                             md);
       IOUtils.copy(is, digestStream);
       return new InputStreamWithMetadata(-1,
-          Base64.encodeAsString(digestStream.getMessageDigest().digest()), null);
+          Base64.encodeAsString(digestStream.getMessageDigest().digest()),
+          (FileBackedOutputStream) null);
+    }
+  }
+
+  /**
+   * @param file local file
+   * @param metadata metadata of the file or of a chunk of the file
+   * @return content of the file, or of the chunk, to upload
+   */
+  private static ByteSource getFileContent(File file, FileMetadata metadata)
+  {
+    ByteSource content = com.google.common.io.Files.asByteSource(file);
+
+    if (metadata.chunkOf == null)
+    {
+      return content;
+    }
+
+    ByteSource chunk = content.slice(metadata.chunkOffset,
+        metadata.srcFileSize - metadata.chunkHeaderSize);
+
+    return metadata.chunkHeaderSize == 0 ? chunk :
+        ByteSource.concat(content.slice(0, metadata.chunkHeaderSize), chunk);
+  }
+
+  /**
+   * Compute the digest of the content of a file to upload
+   *
+   * @param file local file
+   * @param metadata metadata of the file or of a chunk of the file
+   * @param algorithm digest algorithm
+   * @return digest of the file, or of the chunk with its header
+   * @throws IOException if failed to read the file
+   * @throws NoSuchAlgorithmException if the algorithm is not supported
+   */
+  private static byte[] digestFileContent(File file, FileMetadata metadata,
+                                          String algorithm)
+      throws IOException, NoSuchAlgorithmException
+  {
+    if (metadata.chunkOf == null)
+    {
+      return digestFile(file, algorithm);
+    }
+
+    if (metadata.chunkHeaderSize == 0)
+    {
+      return digestFile(file, metadata.chunkOffset, metadata.srcFileSize,
+          algorithm);
     }
+
+    DigestOutputStream digestStream = new DigestOutputStream(
+        ByteStreams.nullOutputStream(), MessageDigest.getInstance(algorithm));
+    getFileContent(file, metadata).copyTo(digestStream);
+
+    return digestStream.getMessageDigest().digest();
   }
 
   /**
@@ -641,9 +1069,14 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
    * @param sourceFromStream whether upload source is file or stream
    * @param sourceDataSize upload data size
    * @param parallel number of threads for parallel uploading
+   * @param maxBufferSize max size of compressed data buffered in memory
    * @param srcFile source file name
    * @param encMat not null if encryption is required
    * @param stageRegion region name where stage persists
+   * @param compression compression of the file if requiring compression
+   * @param metrics metrics of the transfers of the command
+   * @param compressionExecutor compression workers of the command, or null
+   * @param throughput throughput estimate refined with the upload, or null
    * @return a callable that uploading file to s3
    */
   public static Callable<Void> getUploadFileCallable(
@@ -659,9 +1092,14 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
           final boolean sourceFromStream,
           final long sourceDataSize,
           final int parallel,
+          final long maxBufferSize,
           final File srcFile,
           final S3FileEncryptionMaterial encMat,
-          final String stageRegion) {
+          final String stageRegion,
+          final UploadCompression compression,
+          final TransferMetrics metrics,
+          final ExecutorService compressionExecutor,
+          final UploadPlanner.ThroughputEstimate throughput) {
     return new Callable<Void>() {
       public Void call() throws Exception {
 
@@ -669,6 +1107,14 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
 
         FileMetadata metadata = fileMetadataMap.get(srcFilePath);
 
+        // this shouldn't happen
+        if (metadata == null)
+        {
+          throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
+                  ErrorCode.INTERNAL_ERROR.getMessageCode(),
+                  "missing file metadata for: " +  srcFilePath);
+        }
+
         InputStream uploadStream = inputStream;
 
         File fileToUpload = null;
@@ -677,9 +1123,11 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         {
           try
           {
-            uploadStream = new FileInputStream(srcFilePath);
+            uploadStream = metadata.chunkOf != null ?
+                getFileContent(srcFile, metadata).openStream() :
+                new FileInputStream(srcFilePath);
           }
-          catch (FileNotFoundException ex)
+          catch (IOException ex)
           {
             metadata.resultStatus = ResultStatus.ERROR;
             metadata.errorDetails = ex.getMessage();
@@ -687,14 +1135,6 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
           }
         }
 
-        // this shouldn't happen
-        if (metadata == null)
-        {
-          throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
-                  ErrorCode.INTERNAL_ERROR.getMessageCode(),
-                  "missing file metadata for: " +  srcFilePath);
-        }
-
         String destFileName = metadata.destFileName;
 
         long uploadSize = sourceDataSize;
@@ -707,18 +1147,66 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         // Temp file that needs to be cleaned up when upload was successful
         FileBackedOutputStream fileBackedOutputStream = null;
 
+        // Source of the data to upload if it is not the source file or the
+        // input stream as is
+        ByteSource uploadSource = null;
+
         // SNOW-16082: we should catpure exception if we fail to compress or
         // calcuate digest.
         try
         {
-          if (requireCompress)
+          if (requireCompress && !sourceFromStream && srcFile != null)
+          {
+            // reuse the compressed data of the digest check if the file was
+            // compared with an existing file
+            InputStreamWithMetadata compressedSizeAndSource =
+                metadata.compressedData;
+            metadata.compressedData = null;
+
+            if (compressedSizeAndSource != null)
+            {
+              logger.debug("Reusing compressed data of digest check for {}",
+                  srcFilePath);
+            }
+            else
+            {
+              long startTime = TransferMetrics.start();
+
+              // files are compressed without temp files, and compressed
+              // again while uploading if too big to be kept in memory
+              compressedSizeAndSource =
+                  compressFile(getFileContent(srcFile, metadata),
+                      compression, encMat != null, compressionExecutor,
+                      parallel, maxBufferSize);
+
+              metrics.phaseCompleted(TransferProgressListener.Phase.COMPRESS,
+                  srcFilePath, metadata.srcFileSize, startTime);
+            }
+
+            uploadSource = compressedSizeAndSource.source;
+
+            // update the size
+            uploadSize = compressedSizeAndSource.size;
+            digest = encMat != null ? compressedSizeAndSource.digest : null;
+
+            logger.debug("New size after compression: {}", uploadSize);
+          }
+          else if (requireCompress)
           {
+            long startTime = TransferMetrics.start();
+            CountingInputStream countingStream =
+                new CountingInputStream(uploadStream);
+
             InputStreamWithMetadata compressedSizeAndStream = (encMat == null ?
-              compressStreamWithGZIPNoDigest(uploadStream) :
-              compressStreamWithGZIP(uploadStream));
+              compressStreamNoDigest(countingStream, compression) :
+              compressStream(countingStream, compression));
+
+            metrics.phaseCompleted(TransferProgressListener.Phase.COMPRESS,
+                srcFilePath, countingStream.getCount(), startTime);
 
             fileBackedOutputStream =
             compressedSizeAndStream.fileBackedOutputStream;
+            uploadSource = compressedSizeAndStream.source;
 
             // update the size
             uploadSize = compressedSizeAndStream.size;
@@ -730,19 +1218,68 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
 
             logger.debug("New size after compression: {}", uploadSize);
           }
+          else if (encMat != null && metadata.chunkOf != null)
+          {
+            // If encryption is on, we store our digest in the metadata.
+            digest = metadata.sourceDigest;
+
+            if (digest == null)
+            {
+              long startTime = TransferMetrics.start();
+
+              digest = Base64.encodeAsString(
+                  digestFileContent(srcFile, metadata, "SHA-256"));
+
+              metrics.phaseCompleted(TransferProgressListener.Phase.DIGEST,
+                  srcFilePath, metadata.srcFileSize, startTime);
+            }
+
+            uploadSource = getFileContent(srcFile, metadata);
+          }
+          else if (encMat != null && !sourceFromStream)
+          {
+            // If encryption is on, we store our digest in the metadata.
+            // Files are uploaded as is, so they are digested without
+            // copying their content.
+            digest = metadata.sourceDigest;
+
+            if (digest == null)
+            {
+              long startTime = TransferMetrics.start();
+
+              digest = Base64.encodeAsString(digestFile(srcFile, "SHA-256"));
+
+              metrics.phaseCompleted(TransferProgressListener.Phase.DIGEST,
+                  srcFilePath, metadata.srcFileSize, startTime);
+            }
+
+            fileToUpload = srcFile;
+          }
           else if (encMat != null)
           {
+            long startTime = TransferMetrics.start();
+            CountingInputStream countingStream =
+                new CountingInputStream(uploadStream);
+
             // If encryption is on, we store our digest in the metadata
-            InputStreamWithMetadata result = computeDigest(uploadStream,
+            InputStreamWithMetadata result = computeDigest(countingStream,
                                                            sourceFromStream);
+
+            metrics.phaseCompleted(TransferProgressListener.Phase.DIGEST,
+                srcFilePath, countingStream.getCount(), startTime);
             digest = result.digest;
             fileBackedOutputStream = result.fileBackedOutputStream;
+            uploadSource = result.source;
 
             if (!sourceFromStream)
               fileToUpload = srcFile;
             else if (result.fileBackedOutputStream.getFile() != null)
               fileToUpload = result.fileBackedOutputStream.getFile();
           }
+          else if (metadata.chunkOf != null)
+          {
+            uploadSource = getFileContent(srcFile, metadata);
+          }
           else
           {
             if (!sourceFromStream && (srcFile !=null))
@@ -762,21 +1299,31 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                     srcFile != null ? srcFile.getName() : "Unknown");
           }
 
+          long startTime = TransferMetrics.start();
+
           // upload it
           if ("LOCAL_FS".equalsIgnoreCase(stageLocationType))
           {
             pushFileToLocal(stageLocation,
                      srcFilePath, destFileName, uploadStream,
-                     fileBackedOutputStream);
+                     uploadSource, fileToUpload);
           }
           else if ("S3".equalsIgnoreCase(stageLocationType))
           {
             pushFileToS3(stageLocation, srcFilePath, destFileName,
-                         uploadStream, fileBackedOutputStream, uploadSize,
+                         uploadStream, uploadSource, uploadSize,
                          digest, metadata.destCompressionType,
                          s3Client, connection, command, parallel, fileToUpload,
+                         sourceFromStream ? null : srcFile,
                          (fileToUpload == null), encMat, stageRegion);
             metadata.isEncrypted = encMat != null;
+
+            if (throughput != null)
+            {
+              throughput.recordUpload(uploadSize,
+                  TimeUnit.NANOSECONDS.toMillis(
+                      System.nanoTime() - startTime), parallel);
+            }
           }
           else
           {
@@ -784,6 +1331,9 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                     ErrorCode.INTERNAL_ERROR.getMessageCode(),
                     "Unknown stage type: " + stageLocationType);
           }
+
+          metrics.phaseCompleted(TransferProgressListener.Phase.UPLOAD,
+              srcFilePath, uploadSize, startTime);
         }
         catch(SnowflakeSimulatedUploadFailure ex)
         {
@@ -851,6 +1401,7 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
    * @param encMat s3 encryption material
    * @param parallel number of parallel threads for downloading
    * @param stageRegion region name where the stage persists
+   * @param metrics metrics of the transfers of the command
    * @return a callable responsible for downloading files
    */
   public static Callable<Void> getDownloadFileCallable(
@@ -865,7 +1416,8 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
           final String command,
           final int parallel,
           final S3FileEncryptionMaterial encMat,
-          final String stageRegion) {
+          final String stageRegion,
+          final TransferMetrics metrics) {
     return new Callable<Void>() {
       public Void call() throws Exception {
 
@@ -885,6 +1437,8 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         logger.debug("Started copying file from: {}:{} file path:{} to {} destName:{}",
                stageLocationType, stageLocation, srcFilePath, localLocation, destFileName);
 
+        long startTime = TransferMetrics.start();
+
         try
         {
           // download it
@@ -934,6 +1488,9 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         // set dest size
         metadata.destFileSize = downloadSize;
 
+        metrics.phaseCompleted(TransferProgressListener.Phase.DOWNLOAD,
+            srcFilePath, downloadSize, startTime);
+
         // mark the file as being uploaded
         metadata.resultStatus = ResultStatus.DOWNLOADED;
 
@@ -950,6 +1507,8 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     this.command = command;
     this.connection = connection;
     this.statement = statement;
+    this.transferMetrics =
+        new TransferMetrics(connection.getTransferProgressListener());
 
     // parse the command
     logger.debug("Start parsing");
@@ -958,7 +1517,7 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
 
     if ("S3".equalsIgnoreCase(stageLocationType))
     {
-      s3Client = createS3Client(stageCredentials, parallel, null, stageRegion);
+      s3Client = getS3Client(null);
     }
   }
 
@@ -1010,7 +1569,19 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
       if (src_locations.length > 0)
         localFilePathFromGS = src_locations[0];
 
-      sourceFiles = expandFileNames(src_locations);
+      long startTime = TransferMetrics.start();
+
+      sourceFileSizes = new HashMap<String, Long>();
+      sourceFiles = expandFileNames(src_locations, sourceFileSizes);
+
+      long listedSize = 0;
+      for (Long fileSize : sourceFileSizes.values())
+      {
+        listedSize += fileSize;
+      }
+
+      transferMetrics.phaseCompleted(TransferProgressListener.Phase.LIST,
+          null, listedSize, startTime);
 
       autoCompress =
       jsonNode.path("data").path("autoCompress").asBoolean(true);
@@ -1317,31 +1888,74 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
       if (commandType == CommandType.UPLOAD)
         processFileCompressionTypes();
 
+      // big files are split before filtering, so that every chunk is
+      // compared with the existing object of the same name
+      int splitSize = getPutOption(SFSessionProperty.PUT_SPLIT_SIZE,
+          connection.getPutSplitSize());
+
+      if (commandType == CommandType.UPLOAD && !sourceFromStream &&
+          splitSize > 0)
+      {
+        splitLargeFiles(splitSize * 1024L * 1024,
+            getPutOption(SFSessionProperty.PUT_SPLIT_HEADER_LINES,
+                connection.getPutSplitHeaderLines()));
+      }
+
       // filter out files that are already existing in the destination
       if (!overwrite)
       {
         logger.debug("Start filtering");
 
-        filterExistingFiles();
-      }
-
-      synchronized (canceled)
-      {
-        if (canceled)
+        if (connection.getDigestCacheFile() != null)
         {
-          logger.debug("File transfer canceled by user");
-          threadExecutor = null;
-          return false;
+          digestCache = FileDigestCache.open(connection.getDigestCacheFile(),
+              connection.getDigestCacheSize());
         }
-      }
 
-      // create target directory for download command
-      if (commandType == CommandType.DOWNLOAD)
-      {
-        File dir = new File(localLocation);
-        if (!dir.exists())
-        {
-          boolean created = dir.mkdirs();
+        long startTime = TransferMetrics.start();
+
+        try
+        {
+          filterExistingFiles();
+        }
+        finally
+        {
+          if (digestCache != null)
+          {
+            digestCache.save();
+          }
+        }
+
+        long skippedSize = 0;
+        for (FileMetadata fileMetadata : fileMetadataMap.values())
+        {
+          if (fileMetadata.resultStatus == ResultStatus.SKIPPED)
+          {
+            skippedSize += fileMetadata.srcFileSize;
+          }
+        }
+
+        transferMetrics.phaseCompleted(TransferProgressListener.Phase.FILTER,
+            null, skippedSize, startTime);
+      }
+
+      synchronized (canceled)
+      {
+        if (canceled)
+        {
+          logger.debug("File transfer canceled by user");
+          threadExecutor = null;
+          return false;
+        }
+      }
+
+      // create target directory for download command
+      if (commandType == CommandType.DOWNLOAD)
+      {
+        File dir = new File(localLocation);
+        if (!dir.exists())
+        {
+          boolean created = dir.mkdirs();
 
           if (created)
             logger.debug("directory created: {}", localLocation);
@@ -1349,31 +1963,33 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
             logger.debug("directory not created {}", localLocation);
         }
 
-        downloadFiles();
-      }
-      else if (sourceFromStream)
-        uploadStream();
-      else
-      {
         // separate files to big files list and small files list
-        // big files will be uploaded in serial, while small files will be
-        // uploaded concurrently.
-        segregateFilesBySize();
+        // big files will be downloaded in serial with ranged requests in
+        // parallel, while small files will be downloaded concurrently.
+        segregateStageFilesBySize();
 
         if (bigSourceFiles != null)
         {
-          logger.debug("start uploading big files");
-          uploadFiles(bigSourceFiles, 1);
-          logger.debug("end uploading big files");
+          logger.debug("start downloading big files");
+          downloadFiles(bigSourceFiles, 1);
+          logger.debug("end downloading big files");
         }
 
         if (smallSourceFiles != null)
         {
-          logger.debug("start uploading small files");
-          uploadFiles(smallSourceFiles, parallel);
-          logger.debug("end uploading small files");
+          logger.debug("start downloading small files");
+          downloadFiles(smallSourceFiles, parallel);
+          logger.debug("end downloading small files");
         }
       }
+      else if (sourceFromStream)
+        uploadStream();
+      else
+      {
+        logger.debug("start uploading files");
+        uploadFiles(fileMetadataMap.keySet());
+        logger.debug("end uploading files");
+      }
 
       // create status rows to be returned to the client
       createStatusRows();
@@ -1382,11 +1998,175 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     }
     finally
     {
-      if (s3Client != null)
+      // also shuts down the clients created by credential renewal
+      synchronized (s3Clients)
+      {
+        for (SnowflakeS3Client client : s3Clients.values())
+        {
+          client.shutdown();
+        }
+        s3Clients.clear();
+      }
+
+      synchronized (this)
+      {
+        if (compressionExecutor != null)
+        {
+          compressionExecutor.shutdownNow();
+          compressionExecutor = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get a PUT option of this execution
+   *
+   * @param property connection property of the option
+   * @param connectionValue value of the connection property
+   * @param <T> type of the option
+   * @return value set for the statement, or else the connection value
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T getPutOption(SFSessionProperty property, T connectionValue)
+  {
+    Object value = statement.getFileTransferProperty(property);
+
+    return value != null ? (T) value : connectionValue;
+  }
+
+  /**
+   * Get the compression workers of this execution, creating them on first
+   * use
+   *
+   * @return executor compressing big files in blocks
+   */
+  private synchronized ExecutorService getCompressionExecutor()
+  {
+    if (compressionExecutor == null)
+    {
+      compressionExecutor = SnowflakeUtil.createDefaultExecutorService(
+          "sf-file-compress-worker-", parallel);
+    }
+
+    return compressionExecutor;
+  }
+
+  /**
+   * Get the s3 client of this execution for the given encryption material,
+   * creating it on first use. Clients are shared across files so that a
+   * PUT or GET of many files does not create a client and a thread pool
+   * per file.
+   *
+   * @param encMat encryption material, null if not encrypting
+   * @return s3 client, the one with renewed credentials if renewed
+   * @throws SnowflakeSQLException if failed to create the client
+   */
+  private SnowflakeS3Client getS3Client(S3FileEncryptionMaterial encMat)
+      throws SnowflakeSQLException
+  {
+    String key = encMat == null ? "" :
+        encMat.getQueryStageMasterKey() + "|" + encMat.getQueryId() + "|" +
+        encMat.getSmkId();
+
+    synchronized (s3Clients)
+    {
+      SnowflakeS3Client client = s3Clients.get(key);
+
+      if (client == null)
+      {
+        client = createS3Client(stageCredentials, parallel, encMat,
+            stageRegion);
+        s3Clients.put(key, client);
+      }
+
+      return client.getRenewedClient();
+    }
+  }
+
+  /**
+   * Open a stream writing a file to the stage of this PUT command, instead
+   * of executing the command
+   *
+   * @param destFileName name of the file in the stage
+   * @param compress true to compress the data with the compression codec
+   *                 of the session
+   * @return stream writing the file
+   * @throws SnowflakeSQLException if failed to start the upload
+   */
+  StageOutputStream openStageOutputStream(String destFileName,
+                                          boolean compress)
+      throws SnowflakeSQLException
+  {
+    if (commandType != CommandType.UPLOAD)
+    {
+      throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
+          ErrorCode.INTERNAL_ERROR.getMessageCode(),
+          "Stage streams require a PUT command");
+    }
+
+    UploadCompression compression = null;
+
+    if (compress)
+    {
+      compression = UploadCompression.get(
+          getPutOption(SFSessionProperty.PUT_COMPRESSION_CODEC,
+              connection.getPutCompressionCodec()),
+          getPutOption(SFSessionProperty.PUT_COMPRESSION_LEVEL,
+              connection.getPutCompressionLevel()));
+
+      // add the extension of the compression if file name doesn't have it
+      if (!destFileName.endsWith(
+          compression.getCompressionType().fileExtension))
+      {
+        destFileName += compression.getCompressionType().fileExtension;
+      }
+    }
+
+    StageOutputStream.PartSink sink;
+
+    if ("S3".equalsIgnoreCase(stageLocationType))
+    {
+      S3Location s3Location = extractBucketNameAndPath(stageLocation);
+
+      String key = destFileName;
+      if (s3Location.path != null && !s3Location.path.isEmpty())
+      {
+        key = s3Location.path +
+            (!s3Location.path.endsWith("/") ? "/" : "") + destFileName;
+      }
+
+      ObjectMetadata meta = new ObjectMetadata();
+      if (compression != null)
       {
-        s3Client.shutdown();
+        meta.setContentEncoding(
+            compression.getCompressionType().name().toLowerCase());
       }
+
+      S3FileEncryptionMaterial encMat = encryptionMaterial.get(0);
+
+      // the stream has its own client, shut down when the stream is closed
+      sink = StageOutputStream.S3PartSink.open(
+          createS3Client(stageCredentials, parallel, encMat, stageRegion),
+          connection, command, parallel, encMat, stageRegion,
+          s3Location.bucketName, key, meta);
+    }
+    else if ("LOCAL_FS".equalsIgnoreCase(stageLocationType))
+    {
+      sink = StageOutputStream.LocalPartSink.open(new File(
+          SnowflakeUtil.concatFilePathNames(
+              stageLocation.replace("~", System.getProperty("user.home")),
+              destFileName, localFSFileSep)));
+    }
+    else
+    {
+      throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
+          ErrorCode.INTERNAL_ERROR.getMessageCode(),
+          "Unsupported stage location type: " + stageLocationType);
     }
+
+    return new StageOutputStream(sink, destFileName, compression, parallel,
+        transferMetrics);
   }
 
   /**
@@ -1407,9 +2187,11 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
             stageLocationType, stageLocation, SRC_FILE_NAME_FOR_STREAM,
             compressSourceFromStream, fileMetadataMap,
             ("S3".equalsIgnoreCase(stageLocationType)) ?
-               createS3Client(stageCredentials, parallel, encMat, stageRegion):null,
+               getS3Client(encMat) : null,
             connection, command,
-            sourceStream, true, sourceStreamSize, parallel, null, encMat, stageRegion));
+            sourceStream, true, sourceStreamSize, parallel, MAX_BUFFER_SIZE,
+            null, encMat, stageRegion, uploadCompression, transferMetrics,
+            null, uploadThroughput));
       else if (commandType == CommandType.DOWNLOAD)
         throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
             ErrorCode.INTERNAL_ERROR.getMessageCode());
@@ -1439,16 +2221,22 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
   }
 
   /**
-   * Helper to download files from remote
+   * This method create a thread pool based on requested number of threads
+   * and download the files using the thread pool.
+   *
+   * @param fileList
+   * @param parallel
+   * @throws SnowflakeSQLException
    */
-  private void downloadFiles() throws SnowflakeSQLException
+  private void downloadFiles(Set<String> fileList,
+                             int parallel) throws SnowflakeSQLException
   {
     try
     {
       threadExecutor = SnowflakeUtil.createDefaultExecutorService(
-          "sf-file-download-worker-", 1);
+          "sf-file-download-worker-", parallel);
 
-      for (String srcFile : sourceFiles)
+      for (String srcFile : fileList)
       {
         FileMetadata fileMetadata = fileMetadataMap.get(srcFile);
 
@@ -1461,6 +2249,11 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
           continue;
         }
 
+        /**
+         * Same as for uploads, small files are downloaded in parallel with
+         * a single request each, while big files are downloaded in serial
+         * with their ranges fetched in parallel.
+         */
         S3FileEncryptionMaterial encMat = srcFileToEncMat.get(srcFile);
         threadExecutor.submit(getDownloadFileCallable(
             stageLocationType,
@@ -1470,12 +2263,13 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
             localLocation,
             fileMetadataMap,
             ("S3".equalsIgnoreCase(stageLocationType)) ?
-              createS3Client(stageCredentials, parallel, encMat, stageRegion):null,
+              getS3Client(encMat) : null,
             connection,
             command,
-            parallel,
+            (parallel > 1 ? 1 : this.parallel),
             encMat,
-            stageRegion));
+            stageRegion,
+            transferMetrics));
 
         logger.debug("submitted download job for: {}", srcFile);
       }
@@ -1508,17 +2302,17 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
    * This method create a thread pool based on requested number of threads
    * and upload the files using the thread pool.
    *
+   * Files are uploaded in the order and with the parallelism planned by
+   * the UploadPlanner, small and big files together.
+   *
    * @param fileList
-   * @param parallel
    * @throws SnowflakeSQLException
    */
-  private void uploadFiles(Set<String> fileList,
-                           int parallel) throws SnowflakeSQLException
+  private void uploadFiles(Set<String> fileList) throws SnowflakeSQLException
   {
     try
     {
-      threadExecutor = SnowflakeUtil.createDefaultExecutorService(
-          "sf-file-upload-worker-", parallel);
+      Map<String, Long> fileSizes = new HashMap<String, Long>(fileList.size());
 
       for (String srcFile : fileList)
       {
@@ -1534,26 +2328,45 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
           continue;
         }
 
-        /**
-         * For small files, we upload files in parallel, so we don't
-         * want the s3 uploader to upload parts in parallel for each file.
-         * For large files, we upload them in serial, and we want s3 uploader
-         * to upload parts in parallel for each file. This is the reason
-         * for the parallel value.
-         */
-        File srcFileObj = new File(srcFile);
+        fileSizes.put(srcFile, fileMetadata.srcFileSize);
+      }
+
+      UploadPlanner planner = new UploadPlanner(parallel, MAX_BUFFER_SIZE,
+          uploadThroughput);
+      List<UploadPlanner.FilePlan> plans = planner.plan(fileSizes);
+
+      SnowflakeS3Client uploadClient = null;
+      if ("S3".equalsIgnoreCase(stageLocationType))
+      {
+        uploadClient = getS3Client(encryptionMaterial.get(0));
+        uploadClient.setUploadPartSize(planner.getPartSize(),
+            planner.getMultipartThreshold());
+      }
+
+      threadExecutor = SnowflakeUtil.createDefaultExecutorService(
+          "sf-file-upload-worker-", parallel);
+
+      // the executor starts the files in the planned order
+      for (UploadPlanner.FilePlan plan : plans)
+      {
+        String srcFile = plan.fileName;
+        FileMetadata fileMetadata = fileMetadataMap.get(srcFile);
+
+        File srcFileObj = new File(fileMetadata.chunkOf != null ?
+            fileMetadata.chunkOf : srcFile);
 
         threadExecutor.submit(getUploadFileCallable(
             stageLocationType, stageLocation, srcFile,
             fileMetadata.requireCompress, fileMetadataMap,
-            ("S3".equalsIgnoreCase(stageLocationType)) ?
-               createS3Client(stageCredentials, parallel,encryptionMaterial.get(0), stageRegion):
-               null,
+            uploadClient,
             connection, command,
-            null, false, srcFileObj.length(),
-            (parallel > 1 ?  1: this.parallel), srcFileObj, encryptionMaterial.get(0), stageRegion));
+            null, false, plan.size,
+            plan.parallel, plan.maxBufferSize, srcFileObj,
+            encryptionMaterial.get(0), stageRegion, uploadCompression,
+            transferMetrics, getCompressionExecutor(), uploadThroughput));
 
-        logger.debug("submitted copy job for: {}", srcFile);
+        logger.debug("submitted copy job for: {} with {} threads",
+            srcFile, plan.parallel);
       }
 
       // shut down the thread executor
@@ -1583,11 +2396,277 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     }
   }
 
-  private void segregateFilesBySize()
+  /**
+   * Split the uncompressed files bigger than splitSize into chunks of about
+   * splitSize bytes that are uploaded as separate objects, so that the
+   * chunks are compressed and uploaded in parallel like separate files, and
+   * can be loaded in parallel.
+   *
+   * Chunks end after a newline so that no record is split across chunks,
+   * which assumes that records do not contain newlines within quotes. The
+   * first headerLines lines of the file are copied to the start of every
+   * chunk, so that every chunk is loaded with the SKIP_HEADER of the file.
+   *
+   * The chunks of a file are named after the file with the chunk number
+   * appended, e.g. data.csv_0001.gz to data.csv_0008.gz, so that they share
+   * the prefix of the file name. Chunk numbers always have four digits, so
+   * a new version of the file replaces the chunks of the previous one. Files
+   * are split before existing files are filtered, so without OVERWRITE
+   * every chunk is compared with the existing object of the same name and
+   * only changed chunks are uploaded.
+   * Big files are split into larger chunks so that there are no more than
+   * MAX_SPLIT_CHUNKS chunks. If the new version has fewer chunks, the extra
+   * chunks of the previous version are not removed.
+   *
+   * @param splitSize size above which files are split
+   * @param headerLines number of header lines of the files
+   */
+  private void splitLargeFiles(long splitSize, int headerLines)
+  {
+    Map<String, FileMetadata> chunks = new HashMap<String, FileMetadata>();
+
+    Iterator<Map.Entry<String, FileMetadata>> files =
+        fileMetadataMap.entrySet().iterator();
+
+    while (files.hasNext())
+    {
+      Map.Entry<String, FileMetadata> file = files.next();
+      FileMetadata fileMetadata = file.getValue();
+
+      if (fileMetadata.resultStatus != ResultStatus.UNKNOWN ||
+          fileMetadata.srcCompressionType != null ||
+          fileMetadata.srcFileSize <= splitSize)
+      {
+        continue;
+      }
+
+      List<Long> boundaries;
+      long headerSize;
+
+      try
+      {
+        File srcFile = new File(file.getKey());
+
+        headerSize = findHeaderSize(srcFile, headerLines);
+
+        boundaries = findChunkBoundaries(srcFile, fileMetadata.srcFileSize,
+            Math.max(splitSize, (fileMetadata.srcFileSize +
+                MAX_SPLIT_CHUNKS - 1) / MAX_SPLIT_CHUNKS));
+      }
+      catch (IOException ex)
+      {
+        logger.debug("Failed to split {}: {}", file.getKey(),
+            ex.getMessage());
+
+        fileMetadata.resultStatus = ResultStatus.ERROR;
+        fileMetadata.errorDetails = ex.getMessage();
+        continue;
+      }
+
+      int chunkCount = boundaries.size() - 1;
+
+      // a file with no newline after the split size is not split, nor a
+      // file whose header does not fit in the first chunk
+      if (chunkCount < 2 || headerSize < 0 || headerSize >= boundaries.get(1))
+      {
+        continue;
+      }
+
+      logger.debug("Splitting {} into {} chunks", file.getKey(), chunkCount);
+
+      releaseCompressedData(fileMetadata);
+      files.remove();
+
+      String extension = fileMetadata.destFileName.substring(
+          fileMetadata.srcFileName.length());
+
+      for (int chunkIdx = 0; chunkIdx < chunkCount; chunkIdx++)
+      {
+        FileMetadata chunkMetadata = new FileMetadata();
+        chunkMetadata.srcFileName = fileMetadata.srcFileName;
+        chunkMetadata.requireCompress = fileMetadata.requireCompress;
+        chunkMetadata.srcCompressionType = fileMetadata.srcCompressionType;
+        chunkMetadata.destCompressionType = fileMetadata.destCompressionType;
+        chunkMetadata.chunkOf = file.getKey();
+        chunkMetadata.chunkOffset = boundaries.get(chunkIdx);
+
+        // the first chunk starts with the header already
+        chunkMetadata.chunkHeaderSize = chunkIdx == 0 ? 0 : headerSize;
+        chunkMetadata.srcFileSize = chunkMetadata.chunkHeaderSize +
+            boundaries.get(chunkIdx + 1) - chunkMetadata.chunkOffset;
+        chunkMetadata.destFileName = fileMetadata.srcFileName + "_" +
+            String.format(SPLIT_CHUNK_NUMBER_FORMAT, chunkIdx + 1) +
+            extension;
+
+        chunks.put(file.getKey() + "#" + (chunkIdx + 1), chunkMetadata);
+      }
+    }
+
+    fileMetadataMap.putAll(chunks);
+  }
+
+  /**
+   * Find the size of the header of a file
+   *
+   * @param file file to split
+   * @param headerLines number of lines of the header
+   * @return size of the first headerLines lines of the file, -1 if the
+   *         file has fewer lines
+   * @throws IOException if failed to read the file
+   */
+  private static long findHeaderSize(File file, int headerLines)
+      throws IOException
+  {
+    if (headerLines <= 0)
+    {
+      return 0;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    int lineCount = 0;
+    long position = 0;
+
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ))
+    {
+      while (true)
+      {
+        buffer.clear();
+        int bytesRead = channel.read(buffer, position);
+
+        if (bytesRead <= 0)
+        {
+          return -1;
+        }
+
+        for (int idx = 0; idx < bytesRead; idx++)
+        {
+          if (buffer.get(idx) == '\n' && ++lineCount == headerLines)
+          {
+            return position + idx + 1;
+          }
+        }
+
+        position += bytesRead;
+      }
+    }
+  }
+
+  /**
+   * Find the offsets at which a file is split into chunks of about
+   * splitSize bytes. A chunk ends after the first newline at or after
+   * splitSize bytes from its start.
+   *
+   * @param file file to split
+   * @param fileSize size of the file
+   * @param splitSize min size of the chunks but the last one
+   * @return start offsets of the chunks followed by the size of the file
+   * @throws IOException if failed to read the file
+   */
+  private static List<Long> findChunkBoundaries(File file, long fileSize,
+                                                long splitSize)
+      throws IOException
+  {
+    List<Long> boundaries = new ArrayList<Long>();
+    boundaries.add(0L);
+
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ))
+    {
+      long chunkStart = 0;
+
+      while (chunkStart + splitSize < fileSize)
+      {
+        long chunkEnd = -1;
+        long position = chunkStart + splitSize - 1;
+
+        while (chunkEnd < 0 && position < fileSize)
+        {
+          buffer.clear();
+          int bytesRead = channel.read(buffer, position);
+
+          if (bytesRead <= 0)
+          {
+            break;
+          }
+
+          for (int idx = 0; idx < bytesRead; idx++)
+          {
+            if (buffer.get(idx) == '\n')
+            {
+              chunkEnd = position + idx + 1;
+              break;
+            }
+          }
+
+          position += bytesRead;
+        }
+
+        if (chunkEnd < 0 || chunkEnd >= fileSize)
+        {
+          break;
+        }
+
+        boundaries.add(chunkEnd);
+        chunkStart = chunkEnd;
+      }
+    }
+
+    boundaries.add(fileSize);
+
+    return boundaries;
+  }
+
+  /**
+   * Separate stage files to be downloaded into big and small files.
+   *
+   * Sizes of S3 objects are fetched by listing the common prefix of the
+   * files. If the listing fails all files are treated as small files.
+   */
+  private void segregateStageFilesBySize()
   {
-    for(String srcFile : sourceFiles)
+    long startTime = TransferMetrics.start();
+
+    Map<String, Long> stageFileSizes = new HashMap<String, Long>();
+
+    if ("S3".equalsIgnoreCase(stageLocationType))
     {
-      if ((new File(srcFile)).length() > BIG_FILE_THRESHOLD)
+      try
+      {
+        stageFileSizes = listS3FileSizes();
+      }
+      catch (Exception ex)
+      {
+        logger.debug("Failed to list sizes of stage files: {}",
+            ex.getMessage());
+      }
+    }
+    else if ("LOCAL_FS".equalsIgnoreCase(stageLocationType))
+    {
+      for (String srcFile : sourceFiles)
+      {
+        stageFileSizes.put(srcFile, new File(
+            SnowflakeUtil.concatFilePathNames(stageLocation, srcFile,
+                localFSFileSep)).length());
+      }
+    }
+
+    long listedSize = 0;
+    for (Long size : stageFileSizes.values())
+    {
+      listedSize += size;
+    }
+
+    transferMetrics.phaseCompleted(TransferProgressListener.Phase.LIST,
+        null, listedSize, startTime);
+
+    for (String srcFile : sourceFiles)
+    {
+      Long size = stageFileSizes.get(srcFile);
+
+      if (size != null && size > BIG_FILE_THRESHOLD)
       {
         if (bigSourceFiles == null)
         {
@@ -1608,6 +2687,61 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     }
   }
 
+  /**
+   * List the objects under the greatest common prefix of the stage files
+   * to be downloaded.
+   *
+   * @return map from stage file name to object size
+   */
+  private Map<String, Long> listS3FileSizes()
+  {
+    S3Location s3Location = extractBucketNameAndPath(stageLocation);
+
+    // object key to stage file name
+    Map<String, String> keyToSrcFile =
+        new HashMap<String, String>(sourceFiles.size());
+
+    for (String srcFile : sourceFiles)
+    {
+      keyToSrcFile.put(s3Location.path.isEmpty() ? srcFile :
+          SnowflakeUtil.concatFilePathNames(s3Location.path, srcFile, "/"),
+          srcFile);
+    }
+
+    String[] keys = keyToSrcFile.keySet().toArray(new String[0]);
+    Arrays.sort(keys);
+
+    String prefix = SnowflakeUtil.greatestCommonPrefix(keys[0],
+        keys[keys.length - 1]);
+
+    Map<String, Long> sizes = new HashMap<String, Long>(sourceFiles.size());
+
+    ObjectListing objList =
+        s3Client.listObjects(s3Location.bucketName, prefix);
+
+    while (true)
+    {
+      for (S3ObjectSummary obj : objList.getObjectSummaries())
+      {
+        String srcFile = keyToSrcFile.get(obj.getKey());
+
+        if (srcFile != null)
+        {
+          sizes.put(srcFile, obj.getSize());
+        }
+      }
+
+      if (!objList.isTruncated() || sizes.size() == keyToSrcFile.size())
+      {
+        break;
+      }
+
+      objList = s3Client.listNextBatchOfObjects(objList);
+    }
+
+    return sizes;
+  }
+
   public void cancel()
   {
     synchronized (canceled)
@@ -1633,6 +2767,31 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
    */
   static public Set<String> expandFileNames(String[] filePathList)
           throws SnowflakeSQLException
+  {
+    return expandFileNames(filePathList, null);
+  }
+
+  /**
+   * process a list of file paths separated by "," and expand the wildcards
+   * if any to generate the list of paths for all files matched by the
+   * wildcards
+   *
+   * The attributes of each matching entry are read once, and only symbolic
+   * links are resolved file by file, since the canonical path of a file in
+   * a directory is the canonical path of the directory followed by the
+   * file name. The expansion is not incremental: all matches are collected
+   * before any file is uploaded, and memory grows with the number of
+   * matches.
+   *
+   * @param filePathList file path list
+   * @param fileSizes map to add the sizes of the files matched by
+   *                  wildcards to, or null
+   * @return a set of file names that is matched
+   * @throws SnowflakeSQLException if cannot find the file
+   */
+  static Set<String> expandFileNames(String[] filePathList,
+                                     Map<String, Long> fileSizes)
+          throws SnowflakeSQLException
   {
     Set<String> result = new HashSet<String>();
 
@@ -1706,12 +2865,58 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         logger.debug("Listing files under: {} with patterns: {}",
             entry.getKey(), entry.getValue().toString());
 
+        WildcardFileFilter filter = new WildcardFileFilter(entry.getValue());
+
         // The following currently ignore sub directories
-        for (Object file : FileUtils.listFiles(dir,
-                                             new WildcardFileFilter(entry.getValue()),
-                                             null))
+        try (DirectoryStream<Path> stream =
+                 Files.newDirectoryStream(dir.toPath()))
+        {
+          String canonicalDir = dir.getCanonicalPath();
+
+          for (Path file : stream)
+          {
+            String fileName = file.getFileName().toString();
+
+            if (!filter.accept(dir, fileName))
+            {
+              continue;
+            }
+
+            String filePath = canonicalDir + localFSFileSep + fileName;
+
+            BasicFileAttributes attributes = Files.readAttributes(file,
+                BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+            if (attributes.isSymbolicLink())
+            {
+              File target = file.toFile().getCanonicalFile();
+
+              if (!target.exists())
+              {
+                continue;
+              }
+
+              filePath = target.getPath();
+              attributes = Files.readAttributes(target.toPath(),
+                  BasicFileAttributes.class);
+            }
+
+            if (attributes.isDirectory())
+            {
+              continue;
+            }
+
+            result.add(filePath);
+
+            if (fileSizes != null)
+            {
+              fileSizes.put(filePath, attributes.size());
+            }
+          }
+        }
+        catch (NoSuchFileException | NotDirectoryException ex)
         {
-          result.add(((java.io.File) file).getCanonicalPath());
+          logger.debug("Not a directory: {}", entry.getKey());
         }
       }
       catch (Exception ex)
@@ -1724,11 +2929,14 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
       }
     }
 
-    logger.debug("Expanded file paths: ");
-
-    for (String filePath : result)
+    if (logger.isDebugEnabled())
     {
-      logger.debug("file: {}", filePath);
+      logger.debug("Expanded file paths: ");
+
+      for (String filePath : result)
+      {
+        logger.debug("file: {}", filePath);
+      }
     }
 
     return result;
@@ -1738,7 +2946,8 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                                          String filePath,
                                          String destFileName,
                                          InputStream inputStream,
-                                         FileBackedOutputStream fileBackedOutStr)
+                                         ByteSource uploadSource,
+                                         File srcFile)
           throws SQLException
   {
 
@@ -1757,11 +2966,22 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                       destFileName,
                       localFSFileSep));
 
-      if (fileBackedOutStr != null)
+      if (uploadSource != null)
+      {
+        // compressed data in memory is written with a single call
+        try (OutputStream outputStream = FileUtils.openOutputStream(destFile))
+        {
+          uploadSource.copyTo(outputStream);
+        }
+      }
+      else if (srcFile != null)
       {
-        inputStream = fileBackedOutStr.asByteSource().openStream();
+        copyFileWithChannels(srcFile, destFile);
+      }
+      else
+      {
+        FileUtils.copyInputStreamToFile(inputStream, destFile);
       }
-      FileUtils.copyInputStreamToFile(inputStream, destFile);
     }
     catch (Exception ex)
     {
@@ -1790,7 +3010,15 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                       filePath,
                       localFSFileSep));
 
-      FileUtils.copyFileToDirectory(srcFile, new File(destLocation));
+      File destFile = new File(destLocation, srcFile.getName());
+
+      copyFileWithChannels(srcFile, destFile);
+
+      // preserve the modification time like copying to a directory did
+      if (!destFile.setLastModified(srcFile.lastModified()))
+      {
+        logger.debug("Failed to set modification time of {}", destFile);
+      }
     }
     catch (Exception ex)
     {
@@ -1802,11 +3030,102 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     return true;
   }
 
+  /**
+   * Copy a file with FileChannel.transferTo, which lets the kernel copy the
+   * data without going through user space buffers where supported. If
+   * transferTo stops making progress, which some platforms and file
+   * systems do, the rest of the file is copied through a buffer.
+   *
+   * Hard links are not used even on the same file system, since the stage
+   * file or the downloaded file would then change with the other one.
+   *
+   * @param srcFile source file
+   * @param destFile destination file, parent directories are created
+   * @throws IOException if failed to copy the file
+   */
+  private static void copyFileWithChannels(File srcFile, File destFile)
+      throws IOException
+  {
+    try (FileChannel srcChannel = new FileInputStream(srcFile).getChannel();
+         FileChannel destChannel =
+             FileUtils.openOutputStream(destFile).getChannel())
+    {
+      long size = srcChannel.size();
+      long position = 0;
+
+      while (position < size)
+      {
+        long transferred =
+            srcChannel.transferTo(position, size - position, destChannel);
+
+        if (transferred <= 0)
+        {
+          if (position >= srcChannel.size())
+          {
+            throw new IOException("File " + srcFile +
+                " was truncated while it was copied");
+          }
+
+          logger.debug("No progress copying {} with transferTo at {} of {} " +
+              "bytes, copying the rest through a buffer",
+              new Object[]{srcFile, position, size});
+
+          copyChannelRange(srcFile, srcChannel, destChannel, position, size);
+          return;
+        }
+
+        position += transferred;
+      }
+    }
+  }
+
+  /**
+   * Copy a range of a file channel to the current position of another
+   * channel through a buffer
+   *
+   * @param srcFile source file, for error messages
+   * @param srcChannel source channel
+   * @param destChannel destination channel
+   * @param position start of the range in the source
+   * @param size end of the range in the source
+   * @throws IOException if failed to copy or the source is truncated
+   */
+  private static void copyChannelRange(File srcFile, FileChannel srcChannel,
+                                       FileChannel destChannel,
+                                       long position, long size)
+      throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    while (position < size)
+    {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), size - position));
+
+      int bytesRead = srcChannel.read(buffer, position);
+
+      if (bytesRead <= 0)
+      {
+        throw new IOException("File " + srcFile +
+            " was truncated while it was copied");
+      }
+
+      buffer.flip();
+
+      while (buffer.hasRemaining())
+      {
+        destChannel.write(buffer);
+      }
+
+      position += bytesRead;
+    }
+  }
+
   static private void pushFileToS3(String stageLocation,
                                       String filePath,
                                       String destFileName,
                                       InputStream inputStream,
-                                      FileBackedOutputStream fileBackedOutStr,
+                                      ByteSource uploadSource,
                                       long uploadSize,
                                       String digest,
                                       FileCompressionType compressionType,
@@ -1815,6 +3134,7 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                                       String command,
                                       int parallel,
                                       File srcFile,
+                                      File localSourceFile,
                                       boolean uploadFromStream,
                                       S3FileEncryptionMaterial encMat,
                                       String stageRegion)
@@ -1850,8 +3170,8 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     {
       SnowflakeS3Client.upload(initialS3Client, connection, command, parallel,
           CLIENT_SIDE_MAX_RETRIES, uploadFromStream,
-          s3Location.bucketName, srcFile, destFileName,
-          inputStream, fileBackedOutStr, meta, stageRegion);
+          s3Location.bucketName, srcFile, localSourceFile, destFileName,
+          inputStream, uploadSource, meta, stageRegion);
     }
     finally
     {
@@ -2017,10 +3337,20 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
       AmazonS3Exception s3ex = (AmazonS3Exception) ex;
       if (s3ex.getErrorCode().equalsIgnoreCase(EXPIRED_AWS_TOKEN_ERROR_CODE))
       {
+        // the client is shared by the transfers of all files, only renew
+        // if no other transfer has renewed the credentials already
+        SnowflakeS3Client renewedClient = s3Client.getRenewedClient();
+        if (renewedClient != s3Client)
+        {
+          logger.debug("Using s3 client with renewed credentials");
+          return renewedClient;
+        }
+
         SFStatement statement = new SFStatement(connection);
         JsonNode jsonNode = parseCommandInGS(statement, command);
         Map stageCredentials = extractStageCreds(jsonNode);
-        s3Client = createS3Client(stageCredentials, parallel, encMat, stageRegion);
+        s3Client = s3Client.setRenewedClient(createS3Client(
+            stageCredentials, parallel, encMat, stageRegion));
       }
     }
     return s3Client;
@@ -2138,205 +3468,122 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
 
       S3Location s3Location = extractBucketNameAndPath(stageLocation);
 
-      ObjectListing objList = null;
-
-      int retryCount = 0;
-
-      do
-      {
-        try
-        {
-          objList = s3Client.listObjects(s3Location.bucketName,
-              SnowflakeUtil.concatFilePathNames(
-                  s3Location.path,
-                  greatestCommonPrefix, "/"));
-
-          // exit retry loop
-          break;
-        }
-        catch(Exception ex)
-        {
-          logger.warn("Listing objects for filtering encountered exception: {}",
-              ex.getMessage());
-
-          s3Client = handleS3Exception(ex, ++retryCount, "listObjects",
-              null, connection, command, parallel, s3Client, stageRegion);
-        }
-      }
-      while(retryCount <= CLIENT_SIDE_MAX_RETRIES);
-
-      List<S3ObjectSummary> s3Objects = objList.getObjectSummaries();
-
-      for (S3ObjectSummary obj : s3Objects)
-      {
-        logger.debug(
-            "Existing object: key={} size={} etag={}",
-            new Object[]{obj.getKey(), obj.getSize(), obj.getETag()});
-
-        int idxOfLastFileSep = obj.getKey().lastIndexOf("/");
-        String s3ObjFileName = obj.getKey().substring(idxOfLastFileSep + 1);
-
-        // get the path to the local file so that we can calculate digest
-        String mappedSrcFile = destFileNameToSrcFileMap.get(s3ObjFileName);
-
-        // skip objects that don't have a corresponding file to be uploaded
-        if (mappedSrcFile == null)
-          continue;
-
-        logger.debug("Next compare digest for {} against {} on S3", mappedSrcFile, s3ObjFileName);
-
-        String localFile = null;
-        final boolean remoteEncrypted;
-
-        try
-        {
-          localFile = (commandType==CommandType.UPLOAD)?
-                             mappedSrcFile:(localLocation + s3ObjFileName);
-
-          if (commandType == CommandType.DOWNLOAD &&
-              !(new File(localFile)).exists())
-          {
-            logger.debug("File does not exist locally, will download {}", 
-                        mappedSrcFile);
-            continue;
-          }
-
-          // Check file size first, if their difference is bigger than the block
-          // size, we don't need to compare digests
-          if (!fileMetadataMap.get(mappedSrcFile).requireCompress &&
-              Math.abs(obj.getSize() - (new File(localFile)).length()) > 16)
-          {
-            logger.debug("Size diff between S3 and local, will {} {}", 
-                        commandType.name().toLowerCase(), mappedSrcFile);
-            continue;
-          }
-
-          // Get object metadata from S3
-
-          ObjectMetadata meta;
-
-          try
-          {
-            meta = s3Client.getObjectMetadata(obj.getBucketName(),
-                obj.getKey());
-          }
-          catch(Exception ex)
-          {
-            if (ex instanceof AmazonS3Exception)
-            {
-              AmazonS3Exception s3Ex = (AmazonS3Exception)ex;
-              // SNOW-14521: when file is not found, ok to upload
-              if (s3Ex.getStatusCode() == 404)
-              {
-                // log it
-                logger.warn("File returned from listing but found missing {} when getting its" +
-                            " metadata. Bucket={}, key={}", 
-                            obj.getBucketName(), obj.getKey());
-
-                // the file is not found, ok to upload
-                continue;
-              }
-            }
-
-            // for any other exception, log an error
-            logger.error("Fetching object metadata encountered exception: {}",
-                   ex.getMessage());
+      String prefix = SnowflakeUtil.concatFilePathNames(s3Location.path,
+          greatestCommonPrefix, "/");
 
-            throw ex;
-          }
+      // metadata of existing objects is fetched and local files are hashed
+      // concurrently, while the listing continues in this thread
+      ExecutorService filterExecutor =
+          SnowflakeUtil.createDefaultExecutorService(
+              "sf-file-filter-worker-", parallel);
 
-          String objDigest = meta.getUserMetadata().get("sfc-digest");
-          remoteEncrypted = MatDesc.parse(
-              meta.getUserMetadata().get("x-amz-matdesc")) != null;
+      // s3 file name and whether the file is the same as the local file
+      List<Map.Entry<String, Future<Boolean>>> comparisons =
+          new ArrayList<Map.Entry<String, Future<Boolean>>>();
 
-          // calculate the digest hash of the local file
-          InputStream fileStream = null;
-          String hashText = null;
+      try
+      {
+        ObjectListing objList = listObjectsForFiltering(
+            s3Location.bucketName, prefix, null);
 
-          // Streams (potentially with temp files) to clean up
-          final List<FileBackedOutputStream> fileBackedOutputStreams
-              = new ArrayList();
-          try
+        while (true)
+        {
+          for (final S3ObjectSummary obj : objList.getObjectSummaries())
           {
-            fileStream = new FileInputStream(localFile);
-            if (fileMetadataMap.get(mappedSrcFile).requireCompress)
-            {
-              logger.debug("Compressing stream for digest check");
+            logger.debug(
+                "Existing object: key={} size={} etag={}",
+                new Object[]{obj.getKey(), obj.getSize(), obj.getETag()});
 
-              InputStreamWithMetadata res = compressStreamWithGZIP(fileStream);
+            int idxOfLastFileSep = obj.getKey().lastIndexOf("/");
+            String s3ObjFileName = obj.getKey().substring(idxOfLastFileSep + 1);
 
-              fileStream =
-                  res.fileBackedOutputStream.asByteSource().openStream();
-              fileBackedOutputStreams.add(res.fileBackedOutputStream);
-            }
+            // get the path to the local file so that we can calculate digest
+            final String mappedSrcFile =
+                destFileNameToSrcFileMap.get(s3ObjFileName);
 
-            // If the remote file has our digest, compute the SHA-256
-            // for the local file
-            // If the remote file does not have our digest but is unencrypted,
-            // we compare the MD5 of the unencrypted local file to the ETag
-            // of the S3 file.
-            // Otherwise (remote file is encrypted, but has no sfc-digest),
-            // no comparison is performed
-            if (objDigest != null)
-            {
-              InputStreamWithMetadata res = computeDigest(fileStream,false);
-              hashText = res.digest;
-              fileBackedOutputStreams.add(res.fileBackedOutputStream);
+            // skip objects that don't have a corresponding file to be uploaded
+            if (mappedSrcFile == null)
+              continue;
 
-            }
-            else if (!remoteEncrypted)
+            final String localFile = (commandType==CommandType.UPLOAD)?
+                               getUploadSourceFile(mappedSrcFile):
+                               (localLocation + s3ObjFileName);
+
+            if (commandType == CommandType.DOWNLOAD &&
+                !(new File(localFile)).exists())
             {
-              hashText = DigestUtils.md5Hex(fileStream);
+              logger.debug("File does not exist locally, will download {}",
+                          mappedSrcFile);
+              continue;
             }
-          }
-          finally
-          {
-            if (fileStream != null)
+
+            // Check file size first, if their difference is bigger than the block
+            // size, we don't need to compare digests
+            if (!fileMetadataMap.get(mappedSrcFile).requireCompress &&
+                Math.abs(obj.getSize() -
+                    getLocalFileSize(mappedSrcFile, localFile)) > 16)
             {
-              fileStream.close();
+              logger.debug("Size diff between S3 and local, will {} {}",
+                          commandType.name().toLowerCase(), mappedSrcFile);
+              continue;
             }
 
-            for (FileBackedOutputStream stream : fileBackedOutputStreams)
-            {
-              if (stream != null)
-              {
-                try
-                {
-                  stream.reset();
-                }
-                catch (IOException ex)
+            logger.debug("Next compare digest for {} against {} on S3",
+                mappedSrcFile, s3ObjFileName);
+
+            comparisons.add(new AbstractMap.SimpleEntry<String, Future<Boolean>>(
+                s3ObjFileName, filterExecutor.submit(new Callable<Boolean>()
                 {
-                  logger.warn("failed to clean up temp file: {}", ex);
-                }
-              }
-            }
+                  @Override
+                  public Boolean call() throws Exception
+                  {
+                    return isSameAsS3Object(obj, mappedSrcFile, localFile);
+                  }
+                })));
           }
 
-          // continue so that we will upload the file
-          if (hashText == null || // remote is encrypted & has no digest
-              (objDigest != null && !hashText.equals(objDigest)) || // digest mismatch
-              (objDigest == null && !hashText.equals(obj.getETag()))) // ETag/MD5 mismatch
+          if (!objList.isTruncated())
           {
-            logger.debug(
-                "digest diff between S3 and local, will {} {}, " +
-                    "local digest: {}, s3 digest: {}",
-                new Object[]{commandType.name().toLowerCase(),
-                    mappedSrcFile, hashText, obj.getETag()});
+            break;
+          }
+
+          objList = listObjectsForFiltering(s3Location.bucketName, prefix,
+              objList);
+        }
+
+        for (Map.Entry<String, Future<Boolean>> comparison : comparisons)
+        {
+          String s3ObjFileName = comparison.getKey();
+          String mappedSrcFile = destFileNameToSrcFileMap.get(s3ObjFileName);
 
-            continue;
+          if (comparison.getValue().get())
+          {
+            logger.debug("digest same between S3 and local, will not {} {}",
+                          commandType.name().toLowerCase(), mappedSrcFile);
+
+            skipFile(mappedSrcFile, s3ObjFileName);
           }
         }
-        catch (IOException | NoSuchAlgorithmException ex)
+      }
+      catch (InterruptedException ex)
+      {
+        throw new SnowflakeSQLException(SqlState.QUERY_CANCELED,
+            ErrorCode.INTERRUPTED.getMessageCode());
+      }
+      catch (ExecutionException ex)
+      {
+        if (ex.getCause() instanceof SnowflakeSQLException)
         {
-          throw new SnowflakeSQLException(ex, SqlState.INTERNAL_ERROR,
-              ErrorCode.INTERNAL_ERROR.getMessageCode(),
-              "Error reading: " + localFile);
+          throw (SnowflakeSQLException) ex.getCause();
         }
 
-        logger.debug("digest same between S3 and local, will not upload {} {}",
-                      commandType.name().toLowerCase(), mappedSrcFile);
-
-        skipFile(mappedSrcFile, s3ObjFileName);
+        throw new SnowflakeSQLException(ex.getCause(), SqlState.INTERNAL_ERROR,
+            ErrorCode.INTERNAL_ERROR.getMessageCode(),
+            "Failed to compare existing files: " + ex.getCause().getMessage());
+      }
+      finally
+      {
+        filterExecutor.shutdownNow();
       }
     }
     else if ("LOCAL_FS".equalsIgnoreCase(stageLocationType))
@@ -2360,14 +3607,14 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                                stageFileName;
 
         String localFile = (commandType==CommandType.UPLOAD) ?
-                           mappedSrcFile :
+                           getUploadSourceFile(mappedSrcFile) :
                            (localLocation +
                             fileMetadataMap.get(mappedSrcFile).destFileName);
 
         // Check file size first, if they are different, we don't need
         // to check digest
         if (!fileMetadataMap.get(mappedSrcFile).requireCompress &&
-            stageFile.length() != (new File(localFile)).length())
+            stageFile.length() != getLocalFileSize(mappedSrcFile, localFile))
         {
           logger.debug("Size diff between stage and local, will {} {}",
                       commandType.name().toLowerCase(), mappedSrcFile);
@@ -2380,28 +3627,11 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         String localFileHashText = null;
         String stageFileHashText = null;
 
-        List<FileBackedOutputStream> fileBackedOutputStreams = new ArrayList();
-        InputStream localFileStream = null;
         try
         {
           // calculate the digest hash of the local file
-          localFileStream = new FileInputStream(localFile);
-
-          if (fileMetadataMap.get(mappedSrcFile).requireCompress)
-          {
-            logger.debug("Compressing stream for digest check");
-
-            InputStreamWithMetadata res =
-            compressStreamWithGZIP(localFileStream);
-            fileBackedOutputStreams.add(res.fileBackedOutputStream);
-
-            localFileStream =
-                res.fileBackedOutputStream.asByteSource().openStream();
-          }
-
-          InputStreamWithMetadata res = computeDigest(localFileStream, false);
-          localFileHashText = res.digest;
-          fileBackedOutputStreams.add(res.fileBackedOutputStream);
+          localFileHashText = getLocalFileDigest(mappedSrcFile, localFile,
+              true);
         }
         catch (IOException | NoSuchAlgorithmException ex)
         {
@@ -2409,24 +3639,6 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
                   ErrorCode.INTERNAL_ERROR.getMessageCode(),
                   "Error reading local file: " + localFile);
         }
-        finally
-        {
-            for (FileBackedOutputStream stream : fileBackedOutputStreams)
-            {
-              if (stream != null)
-              {
-                try
-                {
-                  stream.reset();
-                }
-                catch (IOException ex)
-                {
-                  logger.warn("failed to clean up temp file: {}", ex);
-                }
-              }
-            }
-            IOUtils.closeQuietly(localFileStream);
-        }
 
         FileBackedOutputStream fileBackedOutputStream = null;
         InputStream stageFileStream = null;
@@ -2492,6 +3704,346 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     }
   }
 
+  /**
+   * @param srcFilePath source file path of a file to upload
+   * @return local file the content to upload is read from, which is the
+   *         split file for a chunk
+   */
+  private String getUploadSourceFile(String srcFilePath)
+  {
+    FileMetadata fileMetadata = fileMetadataMap.get(srcFilePath);
+
+    return fileMetadata.chunkOf != null ? fileMetadata.chunkOf : srcFilePath;
+  }
+
+  /**
+   * @param srcFilePath source file path
+   * @param localFile local file name
+   * @return size of the local content compared with an existing file,
+   *         which is the size of the chunk for a chunk of a split file
+   */
+  private long getLocalFileSize(String srcFilePath, String localFile)
+  {
+    return commandType == CommandType.UPLOAD ?
+        fileMetadataMap.get(srcFilePath).srcFileSize :
+        new File(localFile).length();
+  }
+
+  /**
+   * List the objects for filtering existing files, retrying on failure.
+   *
+   * @param bucketName bucket name
+   * @param prefix key prefix of the objects
+   * @param previous previous listing, null for the first batch
+   * @return next batch of objects
+   * @throws SnowflakeSQLException if failed to list the objects
+   */
+  private ObjectListing listObjectsForFiltering(String bucketName,
+                                                String prefix,
+                                                ObjectListing previous)
+      throws SnowflakeSQLException
+  {
+    int retryCount = 0;
+
+    while (true)
+    {
+      try
+      {
+        return previous == null ?
+            s3Client.listObjects(bucketName, prefix) :
+            s3Client.listNextBatchOfObjects(previous);
+      }
+      catch(Exception ex)
+      {
+        logger.warn("Listing objects for filtering encountered exception: {}",
+            ex.getMessage());
+
+        s3Client = handleS3Exception(ex, ++retryCount, "listObjects",
+            null, connection, command, parallel, s3Client, stageRegion);
+      }
+    }
+  }
+
+  /**
+   * Compare a local file with an existing object on S3. Called concurrently
+   * for the objects of the listing.
+   *
+   * @param obj summary of the existing object
+   * @param mappedSrcFile source file of the object
+   * @param localFile local file to compare
+   * @return true if the local file is the same as the object
+   * @throws SnowflakeSQLException if failed to compare the files
+   */
+  private boolean isSameAsS3Object(S3ObjectSummary obj,
+                                   String mappedSrcFile,
+                                   String localFile)
+      throws SnowflakeSQLException
+  {
+    try
+    {
+      // Get object metadata from S3
+
+      ObjectMetadata meta;
+
+      try
+      {
+        meta = s3Client.getRenewedClient().getObjectMetadata(
+            obj.getBucketName(), obj.getKey());
+      }
+      catch(Exception ex)
+      {
+        if (ex instanceof AmazonS3Exception)
+        {
+          AmazonS3Exception s3Ex = (AmazonS3Exception)ex;
+          // SNOW-14521: when file is not found, ok to upload
+          if (s3Ex.getStatusCode() == 404)
+          {
+            // log it
+            logger.warn("File returned from listing but found missing {} when getting its" +
+                        " metadata. Bucket={}, key={}",
+                        obj.getBucketName(), obj.getKey());
+
+            // the file is not found, ok to upload
+            return false;
+          }
+        }
+
+        // for any other exception, log an error
+        logger.error("Fetching object metadata encountered exception: {}",
+               ex.getMessage());
+
+        throw ex;
+      }
+
+      String objDigest = meta.getUserMetadata().get("sfc-digest");
+      boolean remoteEncrypted = MatDesc.parse(
+          meta.getUserMetadata().get("x-amz-matdesc")) != null;
+
+      // calculate the digest hash of the local file
+      String hashText = null;
+
+      // If the remote file has our digest, compute the SHA-256
+      // for the local file
+      // If the remote file does not have our digest but is unencrypted,
+      // we compare the MD5 of the unencrypted local file to the ETag
+      // of the S3 file.
+      // Otherwise (remote file is encrypted, but has no sfc-digest),
+      // no comparison is performed
+      if (objDigest != null || !remoteEncrypted)
+      {
+        // big files are hashed one at a time, like they are uploaded, to
+        // bound the memory used for their compressed data
+        if (getLocalFileSize(mappedSrcFile, localFile) > BIG_FILE_THRESHOLD)
+        {
+          synchronized (bigFileDigestLock)
+          {
+            hashText = getLocalFileDigest(mappedSrcFile, localFile,
+                objDigest != null);
+          }
+        }
+        else
+        {
+          hashText = getLocalFileDigest(mappedSrcFile, localFile,
+              objDigest != null);
+        }
+      }
+
+      // continue so that we will upload the file
+      if (hashText == null || // remote is encrypted & has no digest
+          (objDigest != null && !hashText.equals(objDigest)) || // digest mismatch
+          (objDigest == null && !hashText.equals(obj.getETag()))) // ETag/MD5 mismatch
+      {
+        logger.debug(
+            "digest diff between S3 and local, will {} {}, " +
+                "local digest: {}, s3 digest: {}",
+            new Object[]{commandType.name().toLowerCase(),
+                mappedSrcFile, hashText, obj.getETag()});
+
+        return false;
+      }
+
+      return true;
+    }
+    catch (IOException | NoSuchAlgorithmException ex)
+    {
+      throw new SnowflakeSQLException(ex, SqlState.INTERNAL_ERROR,
+          ErrorCode.INTERNAL_ERROR.getMessageCode(),
+          "Error reading: " + localFile);
+    }
+  }
+
+  /**
+   * Get the digest of a local file to compare with an existing file, which
+   * is computed on the compressed content if the file is to be compressed.
+   * The digest is looked up in and added to the digest cache if enabled,
+   * except for the chunks of split files, as the cache holds the digests
+   * of whole files.
+   *
+   * @param srcFilePath source file path
+   * @param localFile local file name
+   * @param sha256 true for a base64 encoded SHA-256, false for a hex MD5
+   * @return digest of the local file
+   * @throws SnowflakeSQLException if failed to compress the file
+   * @throws IOException if failed to read the file
+   * @throws NoSuchAlgorithmException if SHA-256 is not supported
+   */
+  private String getLocalFileDigest(String srcFilePath,
+                                    String localFile,
+                                    boolean sha256)
+      throws SnowflakeSQLException, IOException, NoSuchAlgorithmException
+  {
+    FileMetadata fileMetadata = fileMetadataMap.get(srcFilePath);
+    boolean requireCompress = fileMetadata.requireCompress;
+    boolean useCache = digestCache != null && fileMetadata.chunkOf == null;
+
+    String kind = sha256 ? FileDigestCache.SHA256 : FileDigestCache.MD5;
+
+    if (requireCompress)
+    {
+      kind = FileDigestCache.compressed(uploadCompression.getName(), kind);
+    }
+
+    if (useCache)
+    {
+      String digest = digestCache.get(localFile, kind);
+
+      if (digest != null)
+      {
+        logger.debug("Using cached {} digest of {}", kind, localFile);
+
+        if (!requireCompress && sha256)
+        {
+          fileMetadata.sourceDigest = digest;
+        }
+
+        return digest;
+      }
+    }
+
+    String digest;
+
+    long startTime = TransferMetrics.start();
+
+    if (requireCompress && sha256)
+    {
+      // the digest of compressed data is the SHA-256 computed by the
+      // compression
+      digest = compressForDigestCheck(srcFilePath).digest;
+    }
+    else if (requireCompress)
+    {
+      InputStream fileStream =
+          compressForDigestCheck(srcFilePath).source.openStream();
+
+      try
+      {
+        digest = DigestUtils.md5Hex(fileStream);
+      }
+      finally
+      {
+        fileStream.close();
+      }
+    }
+    else if (sha256)
+    {
+      digest = Base64.encodeAsString(
+          digestFileContent(new File(localFile), fileMetadata, "SHA-256"));
+
+      // the upload stores the same digest in the object metadata
+      fileMetadata.sourceDigest = digest;
+    }
+    else
+    {
+      digest = Hex.encodeHexString(
+          digestFileContent(new File(localFile), fileMetadata, "MD5"));
+    }
+
+    transferMetrics.phaseCompleted(requireCompress ?
+            TransferProgressListener.Phase.COMPRESS :
+            TransferProgressListener.Phase.DIGEST,
+        srcFilePath, getLocalFileSize(srcFilePath, localFile), startTime);
+
+    if (useCache)
+    {
+      digestCache.put(localFile, kind, digest);
+    }
+
+    return digest;
+  }
+
+  /**
+   * Compress a source file to upload for comparing its digest with an
+   * existing file. The result is kept in the file metadata so that the file
+   * does not have to be compressed again if it is uploaded. Compressed data
+   * is kept in memory up to MAX_RETAINED_COMPRESSED_SIZE for all files,
+   * beyond that only the size and digest are kept and the file is
+   * compressed again while uploading.
+   *
+   * @param srcFilePath source file path
+   * @return compressed size, digest and data of the file
+   * @throws SnowflakeSQLException if failed to compress the file
+   */
+  private InputStreamWithMetadata compressForDigestCheck(String srcFilePath)
+      throws SnowflakeSQLException
+  {
+    logger.debug("Compressing file for digest check");
+
+    FileMetadata fileMetadata = fileMetadataMap.get(srcFilePath);
+
+    ByteSource srcFile = getFileContent(
+        new File(getUploadSourceFile(srcFilePath)), fileMetadata);
+    InputStreamWithMetadata compressed = compressFile(srcFile,
+        uploadCompression, true, getCompressionExecutor(), parallel,
+        MAX_BUFFER_SIZE);
+
+    synchronized (this)
+    {
+      if (compressed.source instanceof CompressedFileSource)
+      {
+        fileMetadata.compressedData = compressed;
+      }
+      else if (retainedCompressedSize + compressed.size <=
+               MAX_RETAINED_COMPRESSED_SIZE)
+      {
+        fileMetadata.compressedData = compressed;
+        retainedCompressedSize += compressed.size;
+      }
+      else
+      {
+        logger.debug("Not keeping compressed data of {} in memory, {} " +
+            "bytes are kept already", srcFilePath, retainedCompressedSize);
+
+        fileMetadata.compressedData = new InputStreamWithMetadata(
+            compressed.size, compressed.digest,
+            new CompressedFileSource(srcFile, uploadCompression,
+                compressed.size, compressed.digest,
+                getCompressionExecutor(), parallel));
+      }
+    }
+
+    return compressed;
+  }
+
+  /**
+   * Release the compressed data kept for a file that is not uploaded
+   *
+   * @param fileMetadata file metadata
+   */
+  private synchronized void releaseCompressedData(FileMetadata fileMetadata)
+  {
+    InputStreamWithMetadata compressed = fileMetadata.compressedData;
+
+    if (compressed != null)
+    {
+      if (!(compressed.source instanceof CompressedFileSource))
+      {
+        retainedCompressedSize -= compressed.size;
+      }
+
+      fileMetadata.compressedData = null;
+    }
+  }
+
   private void skipFile(String srcFilePath, String destFileName)
   {
     FileMetadata fileMetadata = fileMetadataMap.get(srcFilePath);
@@ -2507,6 +4059,8 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         fileMetadata.errorDetails =
         "File with same destination name and checksum already exists: "
         + destFileName;
+
+        releaseCompressedData(fileMetadata);
       }
       else
       {
@@ -2537,26 +4091,14 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
         {
           FileMetadata fileMetadata = new FileMetadata();
           fileMetadataMap.put(sourceFile, fileMetadata);
-          File file = new File(sourceFile);
-
-          fileMetadata.srcFileName = file.getName();
-          fileMetadata.srcFileSize = file.length();
 
-          if (!file.exists())
-          {
-            logger.warn("File doesn't exist: {}", sourceFile);
+          fileMetadata.srcFileName = new File(sourceFile).getName();
 
-            throw new SnowflakeSQLException(SqlState.DATA_EXCEPTION,
-                ErrorCode.FILE_NOT_FOUND.getMessageCode(),
-                sourceFile);
-          } else if (file.isDirectory())
-          {
-            logger.warn("Not a file, but directory: {}", sourceFile);
+          Long fileSize = sourceFileSizes == null ? null :
+              sourceFileSizes.get(sourceFile);
 
-            throw new SnowflakeSQLException(SqlState.DATA_EXCEPTION,
-                ErrorCode.FILE_IS_DIRECTORY.getMessageCode(),
-                sourceFile);
-          }
+          fileMetadata.srcFileSize = fileSize != null ? fileSize :
+              getSourceFileSize(sourceFile);
         }
       }
     }
@@ -2573,6 +4115,43 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     }
   }
 
+  /**
+   * @param sourceFile local file name
+   * @return size of the file, read with a single stat
+   * @throws SnowflakeSQLException if the file does not exist or is a
+   *                               directory
+   */
+  private static long getSourceFileSize(String sourceFile)
+      throws SnowflakeSQLException
+  {
+    BasicFileAttributes attributes;
+
+    try
+    {
+      attributes = Files.readAttributes(Paths.get(sourceFile),
+          BasicFileAttributes.class);
+    }
+    catch (IOException | InvalidPathException ex)
+    {
+      logger.warn("File doesn't exist: {}", sourceFile);
+
+      throw new SnowflakeSQLException(SqlState.DATA_EXCEPTION,
+          ErrorCode.FILE_NOT_FOUND.getMessageCode(),
+          sourceFile);
+    }
+
+    if (attributes.isDirectory())
+    {
+      logger.warn("Not a file, but directory: {}", sourceFile);
+
+      throw new SnowflakeSQLException(SqlState.DATA_EXCEPTION,
+          ErrorCode.FILE_IS_DIRECTORY.getMessageCode(),
+          sourceFile);
+    }
+
+    return attributes.size();
+  }
+
   /**
    * Derive compression type from mime type
    *
@@ -2602,6 +4181,12 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
    */
   private void processFileCompressionTypes() throws SnowflakeSQLException
   {
+    uploadCompression = UploadCompression.get(
+        getPutOption(SFSessionProperty.PUT_COMPRESSION_CODEC,
+            connection.getPutCompressionCodec()),
+        getPutOption(SFSessionProperty.PUT_COMPRESSION_LEVEL,
+            connection.getPutCompressionLevel()));
+
     // see what user has told us about the source file compression types
     boolean autoDetect = true;
     FileCompressionType userSpecifiedSourceCompression = null;
@@ -2738,10 +4323,10 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
 
             if (autoCompress)
             {
-              // We only support gzip auto compression
               fileMetadata.destFileName = srcFileName +
-                  FileCompressionType.GZIP.fileExtension;
-              fileMetadata.destCompressionType = FileCompressionType.GZIP;
+                  uploadCompression.getCompressionType().fileExtension;
+              fileMetadata.destCompressionType =
+                  uploadCompression.getCompressionType();
             }
             else
             {
@@ -2784,16 +4369,17 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
       fileMetadata.srcCompressionType = userSpecifiedSourceCompression;
 
       if (compressSourceFromStream)
-        fileMetadata.destCompressionType = FileCompressionType.GZIP;
+        fileMetadata.destCompressionType =
+            uploadCompression.getCompressionType();
       else
         fileMetadata.destCompressionType = userSpecifiedSourceCompression;
 
-      // add gz extension if file name doesn't have it
+      // add the extension of the compression if file name doesn't have it
       if (compressSourceFromStream &&
           !destFileNameForStreamSource.endsWith(
-              FileCompressionType.GZIP.fileExtension))
+              uploadCompression.getCompressionType().fileExtension))
         fileMetadata.destFileName = destFileNameForStreamSource +
-            FileCompressionType.GZIP.fileExtension;
+            uploadCompression.getCompressionType().fileExtension;
       else
         fileMetadata.destFileName = destFileNameForStreamSource;
     }
@@ -2821,19 +4407,6 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
     return null;
   }
 
-  /**
-   * A small helper for creating an S3 client.
-   *
-   * @return
-   */
-  private static SnowflakeS3Client createS3Client(Map stageCredentials,
-                                                  int parallel,
-                                                  String stageRegion)
-          throws SnowflakeSQLException
-  {
-    return createS3Client(stageCredentials, parallel, null, stageRegion);
-  }
-
   /**
    * A small helper for creating an S3 client.
    *
@@ -2885,7 +4458,8 @@ public class SnowflakeFileTransferAgent implements SnowflakeFixedView
 
     try
     {
-      s3Client = new SnowflakeS3Client(awsCredentials, clientConfig, encMat, stageRegion);
+      s3Client = new SnowflakeS3Client(awsCredentials, clientConfig, encMat,
+                                       stageRegion, parallel);
     }
     catch(Throwable ex)
     {
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import net.snowflake.client.core.SFFileTransferAgent;
+import net.snowflake.client.core.SFFileTransferAgentFactory;
+import net.snowflake.client.core.SFSession;
+import net.snowflake.client.core.SFStatement;
+
+import java.sql.SQLException;
+
+/**
+ * Factory of SnowflakeFileTransferAgent, loaded by SFStatement on the first
+ * PUT or GET command
+ */
+public class SnowflakeFileTransferAgentFactory
+    implements SFFileTransferAgentFactory
+{
+  @Override
+  public SFFileTransferAgent create(String command,
+                                    SFSession session,
+                                    SFStatement statement)
+      throws SQLException
+  {
+    return new SnowflakeFileTransferAgent(command, session, statement);
+  }
+}
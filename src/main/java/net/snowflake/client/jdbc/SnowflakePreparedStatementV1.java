@@ -10,6 +10,7 @@
 
 package net.snowflake.client.jdbc;
 
+import net.snowflake.client.core.BindColumnBuffer;
 import net.snowflake.client.core.ParameterBindingDTO;
 import net.snowflake.client.core.SFException;
 import net.snowflake.client.core.SFStatementMetaData;
@@ -36,10 +37,8 @@ import java.sql.SQLXML;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import net.snowflake.client.log.SFLogger;
@@ -80,6 +79,17 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
    */
   private int batchSize = 0;
 
+  /** cached bind names for the first parameter indexes */
+  private static final String[] BIND_KEYS = new String[256];
+
+  static
+  {
+    for (int idx = 0; idx < BIND_KEYS.length; idx++)
+    {
+      BIND_KEYS[idx] = String.valueOf(idx);
+    }
+  }
+
   SnowflakePreparedStatementV1(SnowflakeConnectionV1 connection,
                                String sql) throws SQLException
   {
@@ -100,6 +110,32 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     }
   }
 
+  /**
+   * Set the binding of a parameter, reusing the binding object of the
+   * parameter if there is one already.
+   *
+   * @param parameterIndex parameter index
+   * @param type snowflake type name
+   * @param value bind value: String, Long, Double or null
+   */
+  private void bind(int parameterIndex, String type, Object value)
+  {
+    String key = parameterIndex > 0 && parameterIndex < BIND_KEYS.length ?
+        BIND_KEYS[parameterIndex] : String.valueOf(parameterIndex);
+
+    ParameterBindingDTO binding = parameterBindings.get(key);
+
+    if (binding == null)
+    {
+      parameterBindings.put(key, new ParameterBindingDTO(type, value));
+    }
+    else
+    {
+      binding.setType(type);
+      binding.setValue(value);
+    }
+  }
+
   @Override
   public ResultSet executeQuery() throws SQLException
   {
@@ -122,9 +158,7 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setNull(int parameterIndex, int sqlType) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(
-                        SnowflakeUtil.javaTypeToSFTypeString(sqlType), null);
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex, SnowflakeUtil.javaTypeToSFTypeString(sqlType), null);
   }
 
   @Override
@@ -133,9 +167,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
                "setBoolean(int parameterIndex, boolean x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(
+    bind(parameterIndex,
         SnowflakeUtil.javaTypeToSFTypeString(Types.BOOLEAN), String.valueOf(x));
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
   }
 
   @Override
@@ -151,9 +184,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setShort(int parameterIndex, short x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(SnowflakeUtil
-        .javaTypeToSFTypeString(Types.SMALLINT), String.valueOf(x));
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex,
+        SnowflakeUtil.javaTypeToSFTypeString(Types.SMALLINT), (long) x);
   }
 
   @Override
@@ -162,9 +194,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setInt(int parameterIndex, int x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(SnowflakeUtil
-                  .javaTypeToSFTypeString(Types.INTEGER), String.valueOf(x));
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex,
+        SnowflakeUtil.javaTypeToSFTypeString(Types.INTEGER), (long) x);
   }
 
   @Override
@@ -173,9 +204,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setLong(int parameterIndex, long x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(
-         SnowflakeUtil.javaTypeToSFTypeString(Types.BIGINT), String.valueOf(x));
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex,
+        SnowflakeUtil.javaTypeToSFTypeString(Types.BIGINT), x);
   }
 
   @Override
@@ -184,9 +214,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setFloat(int parameterIndex, float x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(
+    bind(parameterIndex,
         SnowflakeUtil.javaTypeToSFTypeString(Types.FLOAT), String.valueOf(x));
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
   }
 
   @Override
@@ -195,9 +224,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setDouble(int parameterIndex, double x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(
-        SnowflakeUtil.javaTypeToSFTypeString(Types.DOUBLE), String.valueOf(x));
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex,
+        SnowflakeUtil.javaTypeToSFTypeString(Types.DOUBLE), x);
   }
 
   @Override
@@ -212,9 +240,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     }
     else
     {
-      ParameterBindingDTO binding = new ParameterBindingDTO(
+      bind(parameterIndex,
         SnowflakeUtil.javaTypeToSFTypeString(Types.DECIMAL), String.valueOf(x));
-      parameterBindings.put(String.valueOf(parameterIndex), binding);
     }
   }
 
@@ -224,9 +251,8 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setString(int parameterIndex, String x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(
+    bind(parameterIndex,
         SnowflakeUtil.javaTypeToSFTypeString(Types.VARCHAR), x);
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
   }
 
   @Override
@@ -235,9 +261,9 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     logger.debug(
         "setBytes(int parameterIndex, byte[] x) throws SQLException");
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(SnowflakeUtil
-        .javaTypeToSFTypeString(Types.BINARY), new SFBinary(x).toHex());
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex,
+        SnowflakeUtil.javaTypeToSFTypeString(Types.BINARY),
+        new SFBinary(x).toHex());
   }
 
   @Override
@@ -252,12 +278,9 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     }
     else
     {
-      ParameterBindingDTO binding = new ParameterBindingDTO(
+      bind(parameterIndex,
           SnowflakeUtil.javaTypeToSFTypeString(Types.DATE),
-          String.valueOf(x.getTime() +
-          TimeZone.getDefault().getOffset(x.getTime())));
-
-      parameterBindings.put(String.valueOf(parameterIndex), binding);
+          x.getTime() + TimeZone.getDefault().getOffset(x.getTime()));
     }
   }
 
@@ -281,11 +304,9 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
       long msSinceMidnight = (msSinceEpoch % MS_IN_DAY + MS_IN_DAY) % MS_IN_DAY;
       long nanosSinceMidnight = msSinceMidnight * 1000 * 1000;
 
-      ParameterBindingDTO binding = new ParameterBindingDTO(
-                      SnowflakeUtil.javaTypeToSFTypeString(Types.TIME),
-                      String.valueOf(nanosSinceMidnight));
-
-      parameterBindings.put(String.valueOf(parameterIndex), binding);
+      bind(parameterIndex,
+          SnowflakeUtil.javaTypeToSFTypeString(Types.TIME),
+          nanosSinceMidnight);
     }
   }
 
@@ -308,8 +329,7 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
       sfType = connection.getSfSession().getTimestampMappedType();
     }
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(sfType.name(), value);
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex, sfType.name(), value);
   }
 
   @Override
@@ -359,10 +379,9 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
       setTimestamp(parameterIndex, (Timestamp)x);
     else
     {
-      ParameterBindingDTO binding = new ParameterBindingDTO(
-                        SnowflakeUtil.javaTypeToSFTypeString(targetSqlType),
-                        String.valueOf(x));
-      parameterBindings.put(String.valueOf(parameterIndex), binding);
+      bind(parameterIndex,
+          SnowflakeUtil.javaTypeToSFTypeString(targetSqlType),
+          String.valueOf(x));
     }
   }
 
@@ -427,18 +446,18 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
         ParameterBindingDTO bindingValueAndType =
             batchParameterBindings.get(binding.getKey());
 
-        List<String> values;
+        Object value = binding.getValue().getValue();
 
         // create binding value and type for the first time
         if (bindingValueAndType == null)
         {
-          // create the value list
-          values = new ArrayList<String>();
-
+          // create the column buffer, with nulls for the previous rows of
+          // the batch in which the variable was not bound
           bindingValueAndType = new ParameterBindingDTO(
-              binding.getValue().getType(), values);
+              binding.getValue().getType(),
+              BindColumnBuffer.create(value, batchSize));
 
-          // put the new map into the batch
+          // put the new column into the batch
           batchParameterBindings.put(binding.getKey(),
               bindingValueAndType);
         }
@@ -454,7 +473,7 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
           {
             bindingValueAndType.setType(newType);
           }
-          else if (binding.getValue().getValue() != null &&
+          else if (value != null &&
               !prevType.equalsIgnoreCase(newType))
           {
             throw new SnowflakeSQLException(SqlState.FEATURE_NOT_SUPPORTED,
@@ -462,14 +481,20 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
                 SnowflakeType.getJavaType(SnowflakeType.fromString(prevType)).name(),
                 SnowflakeType.getJavaType(SnowflakeType.fromString(newType)).name());
           }
-
-          // found the existing map so just get the value list
-          values = (List<String>) bindingValueAndType.getValue();
         }
 
-        // add the value to the list of values in batch binding map
-        values.add((String)binding.getValue().getValue());
+        // add the value to the column, the column is converted to text if
+        // the value has a different representation than the previous ones
+        BindColumnBuffer column =
+            (BindColumnBuffer) bindingValueAndType.getValue();
+        BindColumnBuffer updatedColumn = column.append(value);
+
+        if (updatedColumn != column)
+        {
+          bindingValueAndType.setValue(updatedColumn);
+        }
       }
+
       batchSize++;
     }
     else
@@ -537,12 +562,10 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     else
     {
       // convert the date from to be in local time zone to be in UTC
-      String value = String.valueOf(x.getTime() +
-                             cal.getTimeZone().getOffset(x.getTime()));
+      long value = x.getTime() + cal.getTimeZone().getOffset(x.getTime());
 
-      ParameterBindingDTO binding = new ParameterBindingDTO(
+      bind(parameterIndex,
           SnowflakeUtil.javaTypeToSFTypeString(Types.DATE), value);
-      parameterBindings.put(String.valueOf(parameterIndex), binding);
     }
   }
 
@@ -580,8 +603,7 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
       sfType = connection.getSfSession().getTimestampMappedType();
     }
 
-    ParameterBindingDTO binding = new ParameterBindingDTO(sfType.name(), value);
-    parameterBindings.put(String.valueOf(parameterIndex), binding);
+    bind(parameterIndex, sfType.name(), value);
   }
 
   @Override
@@ -833,8 +855,7 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     {
       if (this.statementMetaData.isArrayBindSupported())
       {
-        int updateCount = executeUpdateInternal(
-                              this.sql, batchParameterBindings);
+        int updateCount = executeArrayBind();
 
         // when update count is the same as the number of bindings in the batch,
         // expand the update count into an array (SNOW-14034)
@@ -862,6 +883,52 @@ final class SnowflakePreparedStatementV1 extends SnowflakeStatementV1
     return updateCounts;
   }
 
+  /**
+   * Execute the array bind batch. If the number of bind values reaches the
+   * stage array binding threshold, the bindings are uploaded to a stage and
+   * the statement runs against the staged data, otherwise they are sent
+   * with the query.
+   *
+   * @return update count
+   * @throws SQLException if the statement failed
+   */
+  private int executeArrayBind() throws SQLException
+  {
+    int threshold = connection.getSfSession().getStageArrayBindingThreshold();
+
+    if (threshold <= 0 ||
+        (long) batchSize * batchParameterBindings.size() < threshold)
+    {
+      return executeUpdateInternal(this.sql, batchParameterBindings);
+    }
+
+    BindUploader uploader = new BindUploader(connection);
+
+    try
+    {
+      uploader.upload(batchParameterBindings, batchSize);
+    }
+    catch (SQLException ex)
+    {
+      // fall back to sending the bindings with the query
+      logger.debug("Failed to upload bindings to stage, sending them " +
+          "with the query instead: {}", ex.getMessage());
+
+      uploader.cleanup();
+
+      return executeUpdateInternal(this.sql, batchParameterBindings);
+    }
+
+    try
+    {
+      return executeUpdateInternal(this.sql, null, uploader.getBindStage());
+    }
+    finally
+    {
+      uploader.cleanup();
+    }
+  }
+
   @Override
   public int executeUpdate(String sql, int autoGeneratedKeys)
       throws SQLException
@@ -12,50 +12,69 @@ import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.AmazonS3EncryptionClient;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CryptoConfiguration;
 import com.amazonaws.services.s3.model.CryptoMode;
 import com.amazonaws.services.s3.model.EncryptionMaterials;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.StaticEncryptionMaterialsProvider;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.transfer.Download;
+import com.amazonaws.services.s3.transfer.Transfer;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.amazonaws.util.Base64;
+import com.google.common.io.ByteSource;
 import net.snowflake.client.core.SFSession;
 import net.snowflake.common.core.S3FileEncryptionMaterial;
 import net.snowflake.common.core.SqlState;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.DigestOutputStream;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import javax.crypto.BadPaddingException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
@@ -65,6 +84,8 @@ import net.snowflake.client.log.SFLoggerFactory;
 
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
  * Wrapper around AmazonS3Client.
@@ -81,9 +102,21 @@ public class SnowflakeS3Client
   private final  static String AMZ_KEY = "x-amz-key";
   private final  static String AMZ_IV = "x-amz-iv";
   private final  static String FILE_CIPHER = "AES/CBC/PKCS5Padding";
+  private final  static String FILE_CIPHER_NO_PADDING = "AES/CBC/NoPadding";
+  private final  static int CIPHER_BLOCK_SIZE = 16;
   private final  static String KEY_CIPHER = "AES/ECB/PKCS5Padding";
   private final  static int BUFFER_SIZE = 2*1024*1024; // 2 MB
 
+  // objects above this size are downloaded with parallel ranged requests
+  // when more than one thread is allowed
+  private final static long MIN_RANGED_DOWNLOAD_SIZE = 16 * 1024 * 1024;
+  private final static long DOWNLOAD_PART_SIZE = 8 * 1024 * 1024;
+  private final static long MAX_DOWNLOAD_PARTS = 10000;
+  private final static int RANGE_BUFFER_SIZE = 64 * 1024;
+
+  // max memory for the parts of a multipart upload in flight
+  private final static long MAX_PART_BUFFER_SIZE = 256 * 1024 * 1024;
+
 
   private static SecureRandom secRnd;
 
@@ -92,13 +125,53 @@ public class SnowflakeS3Client
   private AmazonS3Client amazonClient = null;
   private S3FileEncryptionMaterial encMat = null;
 
+  // number of threads of the transfer and part executors
+  private final int parallel;
+
+  // transfer manager and its executor shared by all transfers of the
+  // client, created on first use
+  private TransferManager transferManager = null;
+  private ExecutorService transferExecutor = null;
+
+  // executor of the parts of the multipart uploads and ranged downloads,
+  // created on first use. The parts wait for transfer slots, so they do not
+  // run on the transfer executor, whose tasks must make progress while the
+  // threads waiting for the transfer manager hold transfer slots.
+  private ExecutorService partExecutor = null;
+
+  // multipart upload configuration, transfer manager defaults if 0
+  private int uploadPartSize = 0;
+  private int multipartUploadThreshold = 0;
+
+  // client that replaced this client after its credentials were renewed
+  private SnowflakeS3Client renewedClient = null;
+
   public SnowflakeS3Client(AWSCredentials awsCredentials,
                            ClientConfiguration clientConfig,
                            S3FileEncryptionMaterial encMat,
                            String stageRegion)
          throws SnowflakeSQLException
+  {
+    this(awsCredentials, clientConfig, encMat, stageRegion, 1);
+  }
+
+  /**
+   * @param awsCredentials aws credentials
+   * @param clientConfig client configuration
+   * @param encMat encryption material, null if not encrypting
+   * @param stageRegion region name where the stage persists
+   * @param parallel number of threads shared by the transfers of the client
+   * @throws SnowflakeSQLException if the key size is not supported
+   */
+  public SnowflakeS3Client(AWSCredentials awsCredentials,
+                           ClientConfiguration clientConfig,
+                           S3FileEncryptionMaterial encMat,
+                           String stageRegion,
+                           int parallel)
+         throws SnowflakeSQLException
   {
     this.encMat = encMat;
+    this.parallel = Math.max(parallel, 1);
     clientConfig.withSignerOverride("AWSS3V4SignerType");
     if (encMat != null)
     {
@@ -171,9 +244,180 @@ public class SnowflakeS3Client
     return encryptionKeySize;
   }
 
+  /**
+   * Shut down the client and its transfer manager, as well as the clients
+   * that replaced it after credential renewal.
+   */
   public void shutdown()
   {
+    SnowflakeS3Client renewed;
+
+    synchronized (this)
+    {
+      if (transferManager != null)
+      {
+        // also shuts down the transfer executor
+        transferManager.shutdownNow(false);
+        transferManager = null;
+        transferExecutor = null;
+      }
+
+      if (partExecutor != null)
+      {
+        partExecutor.shutdownNow();
+        partExecutor = null;
+      }
+
+      renewed = renewedClient;
+    }
+
     amazonClient.shutdown();
+
+    if (renewed != null)
+    {
+      renewed.shutdown();
+    }
+  }
+
+  /**
+   * @return transfer manager shared by all transfers of the client
+   */
+  private synchronized TransferManager getTransferManager()
+  {
+    if (transferManager == null)
+    {
+      logger.debug("Creating executor service for transfer " +
+          "manager with {} threads", parallel);
+
+      transferExecutor = SnowflakeUtil.createDefaultExecutorService(
+          "s3-transfer-manager-worker-", parallel);
+
+      transferManager = new TransferManager(amazonClient, transferExecutor);
+
+      configureUploads();
+    }
+
+    return transferManager;
+  }
+
+  /**
+   * Set the part size of multipart uploads and the size above which
+   * uploads are done in parts, for the uploads started after the call.
+   *
+   * @param partSize part size
+   * @param threshold min size of multipart uploads
+   */
+  synchronized void setUploadPartSize(long partSize, long threshold)
+  {
+    this.uploadPartSize = (int) partSize;
+    this.multipartUploadThreshold = (int) threshold;
+
+    if (transferManager != null)
+    {
+      configureUploads();
+    }
+  }
+
+  /**
+   * @return min size of the objects uploaded in parts
+   */
+  synchronized long getMultipartUploadThreshold()
+  {
+    return multipartUploadThreshold > 0 ? multipartUploadThreshold :
+        UploadPlanner.MIN_MULTIPART_THRESHOLD;
+  }
+
+  /**
+   * @param contentLength size of an object
+   * @return part size of a multipart upload of the object
+   */
+  private synchronized long getUploadPartSize(long contentLength)
+  {
+    long partSize = Math.max(Math.max(uploadPartSize,
+        UploadPlanner.MIN_PART_SIZE),
+        (contentLength + UploadPlanner.MAX_PARTS - 1) / UploadPlanner.MAX_PARTS);
+
+    // aligned on cipher blocks, so that encrypted parts start at the same
+    // offset in the file as in the object
+    return (partSize + CIPHER_BLOCK_SIZE - 1) /
+        CIPHER_BLOCK_SIZE * CIPHER_BLOCK_SIZE;
+  }
+
+  private void configureUploads()
+  {
+    if (uploadPartSize > 0)
+    {
+      logger.debug("Using upload part size {} for objects above {} bytes",
+          uploadPartSize, multipartUploadThreshold);
+
+      TransferManagerConfiguration config = new TransferManagerConfiguration();
+      config.setMinimumUploadPartSize(uploadPartSize);
+      config.setMultipartUploadThreshold(multipartUploadThreshold);
+
+      transferManager.setConfiguration(config);
+    }
+  }
+
+  /**
+   * @return executor of the transfer manager
+   */
+  synchronized ExecutorService getTransferExecutor()
+  {
+    getTransferManager();
+    return transferExecutor;
+  }
+
+  /**
+   * @return executor of the parts of multipart uploads and ranged
+   *         downloads, which hold a transfer slot while they run
+   */
+  synchronized ExecutorService getPartExecutor()
+  {
+    if (partExecutor == null)
+    {
+      logger.debug("Creating executor service for parts with {} threads",
+          parallel);
+
+      partExecutor = SnowflakeUtil.createDefaultExecutorService(
+          "s3-part-transfer-worker-", parallel);
+    }
+
+    return partExecutor;
+  }
+
+  /**
+   * @return the client that replaced this client after credential renewal,
+   *         or this client if the credentials have not been renewed
+   */
+  synchronized SnowflakeS3Client getRenewedClient()
+  {
+    return renewedClient == null ? this : renewedClient.getRenewedClient();
+  }
+
+  /**
+   * Set the client that replaces this client with renewed credentials,
+   * unless another thread already did.
+   *
+   * @param renewed client with renewed credentials
+   * @return the client to use from now on
+   */
+  synchronized SnowflakeS3Client setRenewedClient(SnowflakeS3Client renewed)
+  {
+    if (renewedClient == null)
+    {
+      renewedClient = renewed;
+
+      if (uploadPartSize > 0)
+      {
+        renewed.setUploadPartSize(uploadPartSize, multipartUploadThreshold);
+      }
+    }
+    else
+    {
+      renewed.shutdown();
+    }
+
+    return renewedClient.getRenewedClient();
   }
 
   public ObjectListing listObjects(String bucketName, String prefix)
@@ -183,6 +427,13 @@ public class SnowflakeS3Client
     return amazonClient.listObjects(bucketName, prefix);
   }
 
+  public ObjectListing listNextBatchOfObjects(ObjectListing previousListing)
+                          throws AmazonClientException,
+                                 AmazonServiceException
+  {
+    return amazonClient.listNextBatchOfObjects(previousListing);
+  }
+
   public ObjectMetadata getObjectMetadata(String bucketName, String prefix)
                           throws AmazonClientException,
                                  AmazonServiceException
@@ -215,7 +466,11 @@ public class SnowflakeS3Client
                               String stageFilePath,
                               String stageRegion) throws SnowflakeSQLException
   {
-    TransferManager tx = null;
+    final TransferGovernor governor = TransferGovernor.getInstance();
+    final TransferGovernor.Priority priority =
+        connection.getTransferPriority();
+
+    Download myDownload = null;
     int retryCount = 0;
     do
     {
@@ -223,17 +478,6 @@ public class SnowflakeS3Client
       {
         File localFile = new File(localLocation + localFileSep + destFileName);
 
-        logger.debug("Creating executor service for transfer" +
-            "manager with {} threads", parallelism);
-
-        // download file from s3
-        tx = new TransferManager(client.amazonClient,
-            SnowflakeUtil.createDefaultExecutorService(
-                "s3-transfer-manager-downloader-", parallelism));
-
-        Download myDownload = tx.download(bucketName,
-            stageFilePath, localFile);
-
         // Pull object metadata from S3
         ObjectMetadata meta =
             client.amazonClient.getObjectMetadata(bucketName, stageFilePath);
@@ -242,41 +486,78 @@ public class SnowflakeS3Client
         String key = metaMap.get(AMZ_KEY);
         String iv = metaMap.get(AMZ_IV);
 
-        myDownload.waitForCompletion();
+        // files encrypted by the client with a 128 bit key are decrypted
+        // while they are downloaded
+        boolean decrypt =
+            client.isEncrypting() && client.getEncryptionKeySize() < 256;
 
-        if (client.isEncrypting() && client.getEncryptionKeySize() < 256)
+        if (decrypt && (key == null || iv == null))
         {
-          if (key == null || iv == null)
-          {
-            throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
-              ErrorCode.INTERNAL_ERROR.getMessageCode(),
-              "File metadata incomplete");
-          }
+          throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
+            ErrorCode.INTERNAL_ERROR.getMessageCode(),
+            "File metadata incomplete");
+        }
+
+        // ranged requests are not supported by the encryption client, which
+        // is used for 256 bit keys
+        boolean ranged = parallelism > 1 &&
+            meta.getContentLength() > MIN_RANGED_DOWNLOAD_SIZE &&
+            client.getEncryptionKeySize() < 256;
+
+        // downloads of the transfer manager cannot be limited to a
+        // bandwidth, so objects are then downloaded as a single range,
+        // except with the encryption client which does not support ranges
+        boolean limited = governor.isLimitingBandwidth() &&
+            client.getEncryptionKeySize() < 256;
 
-          // Decrypt file
+        if (ranged || decrypt || limited)
+        {
           try
           {
-            client.decrypt(localFile, key, iv);
+            client.downloadInRanges(bucketName, stageFilePath, localFile,
+                meta.getContentLength(), ranged ? parallelism : 1,
+                decrypt ? client.decryptFileKey(key) : null,
+                decrypt ? Base64.decode(iv) : null, priority);
           }
-          catch (Exception ex)
+          catch (GeneralSecurityException ex)
           {
             logger.error("Error decrypting file",ex);
             throw ex;
           }
         }
+        else
+        {
+          // download file from s3
+          governor.acquire(priority);
+          try
+          {
+            myDownload = client.getTransferManager().download(bucketName,
+                stageFilePath, localFile);
+
+            myDownload.waitForCompletion();
+            myDownload = null;
+          }
+          finally
+          {
+            governor.release(priority);
+          }
+
+          governor.consume(meta.getContentLength());
+        }
 
         return;
 
       } catch (Exception ex)
       {
+        if (myDownload != null)
+        {
+          abortQuietly(myDownload);
+          myDownload = null;
+        }
+
         client = handleS3Exception(ex, ++retryCount, "download", client.encMat,
             connection, command, parallelism, client, stageRegion);
       }
-      finally
-      {
-        if (tx != null)
-          tx.shutdownNow(false);
-      }
     }
     while (retryCount <= SnowflakeFileTransferAgent.CLIENT_SIDE_MAX_RETRIES);
 
@@ -285,134 +566,350 @@ public class SnowflakeS3Client
         "Unexpected: download unsuccessful without exception!");
   }
 
-  private void decrypt(File file, String keyBase64, String ivBase64)
-          throws NoSuchAlgorithmException,
-                 NoSuchPaddingException,
-                 InvalidKeyException,
-                 IllegalBlockSizeException,
-                 BadPaddingException,
-                 InvalidAlgorithmParameterException,
-                 FileNotFoundException,
-                 IOException
+  /**
+   * Download an object with concurrent ranged requests, each writing its
+   * part at its offset in the local file.
+   *
+   * If a file key is given, the object is AES/CBC encrypted and each part
+   * is decrypted as it arrives. The cipher block preceding a part is the
+   * IV for the part, so it is fetched with the part and the parts can be
+   * decrypted independently. Decrypted data has the same offsets except
+   * for the padding at the end, which is removed with the last part.
+   *
+   * @param bucketName s3 bucket name
+   * @param key object key
+   * @param localFile local file to write
+   * @param size object size
+   * @param parallelism number of concurrent range requests, the object is
+   *                    downloaded with a single request if 1
+   * @param fileKey file key if the object is to be decrypted, else null
+   * @param iv initialization vector of the encrypted object
+   * @param priority priority of the transfer
+   * @throws Exception if any of the ranges failed
+   */
+  private void downloadInRanges(final String bucketName,
+                                final String key,
+                                File localFile,
+                                final long size,
+                                int parallelism,
+                                final SecretKey fileKey,
+                                final byte[] iv,
+                                final TransferGovernor.Priority priority)
+      throws Exception
   {
-    byte[] keyBytes = Base64.decode(keyBase64);
-    byte[] ivBytes = Base64.decode(ivBase64);
-    byte[] qsmkBytes = Base64.decode(encMat.getQueryStageMasterKey());
-    final SecretKey fileKey;
+    long partSize = size;
+
+    if (parallelism > 1)
+    {
+      partSize = Math.max(DOWNLOAD_PART_SIZE,
+          (size + MAX_DOWNLOAD_PARTS - 1) / MAX_DOWNLOAD_PARTS);
+
+      // parts of encrypted objects must be aligned on cipher blocks
+      partSize = (partSize + CIPHER_BLOCK_SIZE - 1) /
+                 CIPHER_BLOCK_SIZE * CIPHER_BLOCK_SIZE;
+    }
+
+    logger.debug("Downloading {} bytes of {} in parts of {} bytes " +
+        "with {} threads, decrypt: {}", size, key, partSize, parallelism,
+        fileKey != null);
 
-    // Decrypt file key
+    try (final FileChannel channel = FileChannel.open(localFile.toPath(),
+        CREATE, WRITE, TRUNCATE_EXISTING))
     {
-      final Cipher keyCipher = Cipher.getInstance(KEY_CIPHER);
-      SecretKey queryStageMasterKey =
-          new SecretKeySpec(qsmkBytes, 0, qsmkBytes.length, AES);
-      keyCipher.init(Cipher.DECRYPT_MODE, queryStageMasterKey);
-      byte[] fileKeyBytes = keyCipher.doFinal(keyBytes);
+      if (partSize >= size)
+      {
+        if (size > 0)
+          downloadRange(bucketName, key, channel, 0, size - 1, size,
+              fileKey, iv, priority);
+
+        return;
+      }
+
+      ExecutorService executor = getPartExecutor();
+      List<Future<Void>> parts = new ArrayList<>();
+
+      try
+      {
+        for (long start = 0; start < size; start += partSize)
+        {
+          final long rangeStart = start;
+          final long rangeEnd = Math.min(start + partSize, size) - 1;
+
+          parts.add(executor.submit(new Callable<Void>()
+          {
+            public Void call() throws Exception
+            {
+              downloadRange(bucketName, key, channel, rangeStart, rangeEnd,
+                  size, fileKey, iv, priority);
+              return null;
+            }
+          }));
+        }
+
+        for (Future<Void> part : parts)
+        {
+          try
+          {
+            part.get();
+          }
+          catch (ExecutionException ex)
+          {
+            // rethrow the cause so that the caller can decide to retry
+            if (ex.getCause() instanceof Exception)
+              throw (Exception) ex.getCause();
 
-      // NB: we assume qsmk.length == fileKey.length
-      //     (fileKeyBytes.length may be bigger due to padding)
-      fileKey = new SecretKeySpec(fileKeyBytes, 0, qsmkBytes.length, AES);
+            throw ex;
+          }
+        }
+      }
+      finally
+      {
+        // parts that are still running after a failure are not needed
+        for (Future<Void> part : parts)
+        {
+          part.cancel(true);
+        }
+      }
     }
+  }
 
+  private void downloadRange(String bucketName,
+                             String key,
+                             FileChannel channel,
+                             long rangeStart,
+                             long rangeEnd,
+                             long size,
+                             SecretKey fileKey,
+                             byte[] iv,
+                             TransferGovernor.Priority priority)
+      throws IOException, GeneralSecurityException, InterruptedException
+  {
+    TransferGovernor governor = TransferGovernor.getInstance();
+
+    governor.acquire(priority);
+    try
+    {
+      downloadRange(bucketName, key, channel, rangeStart, rangeEnd, size,
+          fileKey, iv, governor);
+    }
+    finally
+    {
+      governor.release(priority);
+    }
+  }
 
+  private void downloadRange(String bucketName,
+                             String key,
+                             FileChannel channel,
+                             long rangeStart,
+                             long rangeEnd,
+                             long size,
+                             SecretKey fileKey,
+                             byte[] iv,
+                             TransferGovernor governor)
+      throws IOException, GeneralSecurityException
+  {
+    Cipher cipher = null;
+    long fetchStart = rangeStart;
 
-    // Decrypt file
+    if (fileKey != null)
     {
-      final Cipher fileCipher = Cipher.getInstance(FILE_CIPHER);
-      final IvParameterSpec iv = new IvParameterSpec(ivBytes);
-      final byte[] buffer = new byte[BUFFER_SIZE];
-      fileCipher.init(Cipher.DECRYPT_MODE, fileKey, iv);
+      // the padding is only in the last block of the object
+      cipher = Cipher.getInstance(rangeEnd == size - 1 ?
+          FILE_CIPHER : FILE_CIPHER_NO_PADDING);
+
+      // fetch the preceding block as the IV of the part
+      if (rangeStart > 0)
+        fetchStart = rangeStart - CIPHER_BLOCK_SIZE;
+    }
+
+    GetObjectRequest request = new GetObjectRequest(bucketName, key);
+    request.setRange(fetchStart, rangeEnd);
+
+    S3Object object = amazonClient.getObject(request);
 
-      long totalBytesRead = 0;
-      // Overwrite file contents buffer-wise with decrypted data
-      try (InputStream is = Files.newInputStream(file.toPath(), READ);
-           InputStream cis = new CipherInputStream(is, fileCipher);
-           OutputStream os = Files.newOutputStream(file.toPath(), CREATE);)
+    try (InputStream is = governor.limit(object.getObjectContent()))
+    {
+      if (cipher != null)
       {
-        int bytesRead;
-        while ((bytesRead = cis.read(buffer)) > -1)
+        byte[] partIv = iv;
+
+        if (rangeStart > 0)
         {
-          os.write(buffer, 0, bytesRead);
-          totalBytesRead += bytesRead;
+          partIv = new byte[CIPHER_BLOCK_SIZE];
+          new DataInputStream(is).readFully(partIv);
         }
+
+        cipher.init(Cipher.DECRYPT_MODE, fileKey,
+            new IvParameterSpec(partIv));
+      }
+
+      byte[] buffer = new byte[RANGE_BUFFER_SIZE];
+      byte[] output = cipher == null ? buffer :
+          new byte[RANGE_BUFFER_SIZE + CIPHER_BLOCK_SIZE];
+      long bytesFetched = rangeStart;
+      long position = rangeStart;
+      int bytesRead;
+
+      while ((bytesRead = is.read(buffer)) > -1)
+      {
+        bytesFetched += bytesRead;
+
+        int length = cipher == null ? bytesRead :
+            cipher.update(buffer, 0, bytesRead, output);
+
+        position += write(channel, output, length, position);
+      }
+
+      if (bytesFetched != rangeEnd + 1)
+      {
+        throw new IOException("Incomplete range of " + key + ": expected " +
+            "bytes " + rangeStart + "-" + rangeEnd + ", got up to " +
+            (bytesFetched - 1));
       }
 
-      // Discard any padding that the encrypted file had
-      try (FileChannel fc = new FileOutputStream(file, true).getChannel())
+      if (cipher != null)
       {
-        fc.truncate(totalBytesRead);
+        write(channel, output, cipher.doFinal(output, 0), position);
       }
     }
   }
 
+  private static int write(FileChannel channel,
+                           byte[] data,
+                           int length,
+                           long position) throws IOException
+  {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(data, 0, length);
+    while (byteBuffer.hasRemaining())
+    {
+      position += channel.write(byteBuffer, position);
+    }
+    return length;
+  }
+
+  /**
+   * Decrypt the file key of an object with the query stage master key
+   *
+   * @param keyBase64 encrypted file key from the object metadata
+   * @return file key
+   * @throws GeneralSecurityException if failed to decrypt the key
+   */
+  private SecretKey decryptFileKey(String keyBase64)
+      throws GeneralSecurityException
+  {
+    byte[] keyBytes = Base64.decode(keyBase64);
+    byte[] qsmkBytes = Base64.decode(encMat.getQueryStageMasterKey());
+
+    final Cipher keyCipher = Cipher.getInstance(KEY_CIPHER);
+    SecretKey queryStageMasterKey =
+        new SecretKeySpec(qsmkBytes, 0, qsmkBytes.length, AES);
+    keyCipher.init(Cipher.DECRYPT_MODE, queryStageMasterKey);
+    byte[] fileKeyBytes = keyCipher.doFinal(keyBytes);
+
+    // NB: we assume qsmk.length == fileKey.length
+    //     (fileKeyBytes.length may be bigger due to padding)
+    return new SecretKeySpec(fileKeyBytes, 0, qsmkBytes.length, AES);
+  }
+
   private CipherInputStream encrypt(ObjectMetadata meta,
                                     long originalContentLength,
                                     InputStream src)
-          throws InvalidKeyException,
-                 InvalidAlgorithmParameterException,
-                 NoSuchAlgorithmException,
-                 NoSuchProviderException,
-                 NoSuchPaddingException,
-                 FileNotFoundException,
-                 IllegalBlockSizeException,
-                 BadPaddingException
+          throws GeneralSecurityException
   {
-    final byte[] decodedKey = Base64.decode(encMat.getQueryStageMasterKey());
-    final int keySize = decodedKey.length;
-    final byte[] fileKeyBytes = new byte[keySize];
-    final byte[] ivData;
-    final CipherInputStream cis;
-    final int blockSz;
+    Map<String, String> encryptionMetadata = createEncryptionMetadata();
+
+    // Store metadata
+    for (Map.Entry<String, String> entry : encryptionMetadata.entrySet())
     {
-      final Cipher fileCipher = Cipher.getInstance(FILE_CIPHER);
-      blockSz = fileCipher.getBlockSize();
+      meta.addUserMetadata(entry.getKey(), entry.getValue());
+    }
 
-      // Create IV
-      ivData = new byte[blockSz];
-      getSecRnd().nextBytes(ivData);
-      final IvParameterSpec iv = new IvParameterSpec(ivData);
+    meta.setContentLength(getEncryptedLength(originalContentLength));
 
-      // Create file key
-      getSecRnd().nextBytes(fileKeyBytes);
-      SecretKey fileKey = new SecretKeySpec(fileKeyBytes, 0, keySize, AES);
+    return encrypt(encryptionMetadata, src);
+  }
 
+  /**
+   * Create a random file key and IV, and the object metadata that holds
+   * them with the file key encrypted with the QSMK
+   *
+   * @return encryption metadata
+   * @throws GeneralSecurityException if failed to encrypt the file key
+   */
+  private Map<String, String> createEncryptionMetadata()
+      throws GeneralSecurityException
+  {
+    final byte[] decodedKey = Base64.decode(encMat.getQueryStageMasterKey());
+    final int keySize = decodedKey.length;
 
+    // Create file key and IV
+    final byte[] fileKeyBytes = new byte[keySize];
+    getSecRnd().nextBytes(fileKeyBytes);
 
-      // Init cipher
-      fileCipher.init(Cipher.ENCRYPT_MODE, fileKey, iv);
+    final byte[] ivData = new byte[CIPHER_BLOCK_SIZE];
+    getSecRnd().nextBytes(ivData);
 
-      // Create encrypting input stream
-      cis = new CipherInputStream(src, fileCipher);
-    }
+    // Encrypt the file key with the QRMK
+    final Cipher keyCipher = Cipher.getInstance(KEY_CIPHER);
+    SecretKey queryStageMasterKey =
+        new SecretKeySpec(decodedKey, 0, keySize, AES);
+    keyCipher.init(Cipher.ENCRYPT_MODE, queryStageMasterKey);
+    byte[] encKeK = keyCipher.doFinal(fileKeyBytes);
 
+    MatDesc matDesc =
+        new MatDesc(encMat.getSmkId(), encMat.getQueryId(), keySize * 8);
 
-    // Encrypt the file key with the QRMK
-    {
-      final Cipher keyCipher =  Cipher.getInstance(KEY_CIPHER);
-      SecretKey queryStageMasterKey =
-          new SecretKeySpec(decodedKey, 0, keySize, AES);
+    Map<String, String> encryptionMetadata = new TreeMap<String, String>();
+    encryptionMetadata.put(AMZ_MATDESC, matDesc.toString());
+    encryptionMetadata.put(AMZ_KEY, Base64.encodeAsString(encKeK));
+    encryptionMetadata.put(AMZ_IV, Base64.encodeAsString(ivData));
 
-      // Init cipher
-      keyCipher.init(Cipher.ENCRYPT_MODE, queryStageMasterKey);
-      byte[] encKeK = keyCipher.doFinal(fileKeyBytes);
+    return encryptionMetadata;
+  }
 
-      // Store metadata
-      MatDesc matDesc =
-          new MatDesc(encMat.getSmkId(), encMat.getQueryId(), keySize * 8);
-      meta.addUserMetadata(AMZ_MATDESC,
-                           matDesc.toString());
-      meta.addUserMetadata(AMZ_KEY,
-                           Base64.encodeAsString(encKeK));
-      meta.addUserMetadata(AMZ_IV,
-                           Base64.encodeAsString(ivData));
-      // Round up length to next multiple of the block size
-      // Sizes that are multiples of the block size need to be padded to next
-      // multiple
-      meta.setContentLength(
-              ((originalContentLength + blockSz) / blockSz) * blockSz);
+  /**
+   * @param encryptionMetadata encryption metadata of the object
+   * @param src data to encrypt
+   * @return stream of the data encrypted with the file key and IV of the
+   *         metadata. The same data always encrypts to the same bytes.
+   * @throws GeneralSecurityException if failed to decrypt the file key
+   */
+  private CipherInputStream encrypt(Map<String, String> encryptionMetadata,
+                                    InputStream src)
+      throws GeneralSecurityException
+  {
+    return new CipherInputStream(src, createFileCipher(encryptionMetadata));
+  }
 
-    }
+  /**
+   * @param encryptionMetadata encryption metadata of the object
+   * @return cipher encrypting with the file key and IV of the metadata
+   * @throws GeneralSecurityException if failed to decrypt the file key
+   */
+  private Cipher createFileCipher(Map<String, String> encryptionMetadata)
+      throws GeneralSecurityException
+  {
+    SecretKey fileKey = decryptFileKey(encryptionMetadata.get(AMZ_KEY));
+
+    final Cipher fileCipher = Cipher.getInstance(FILE_CIPHER);
+    fileCipher.init(Cipher.ENCRYPT_MODE, fileKey,
+        new IvParameterSpec(Base64.decode(encryptionMetadata.get(AMZ_IV))));
+
+    return fileCipher;
+  }
 
-    return cis;
+  /**
+   * @param originalContentLength length of the data
+   * @return length of the encrypted data
+   */
+  private static long getEncryptedLength(long originalContentLength)
+  {
+    // Round up length to next multiple of the block size
+    // Sizes that are multiples of the block size need to be padded to next
+    // multiple
+    return ((originalContentLength + CIPHER_BLOCK_SIZE) / CIPHER_BLOCK_SIZE) *
+        CIPHER_BLOCK_SIZE;
   }
 
   private static Pair<InputStream, Boolean>
@@ -420,27 +917,27 @@ public class SnowflakeS3Client
       File srcFile,
       boolean uploadFromStream,
       InputStream inputStream,
-      FileBackedOutputStream fileBackedOutputStream,
+      ByteSource uploadSource,
       ObjectMetadata meta,
       long originalContentLength,
-      List<FileInputStream> toClose)
+      List<InputStream> toClose)
           throws SnowflakeSQLException
   {
       logger.debug(
                  "createUploadStream({}, {}, {}, {}, {}, {}, {}) "+
                  "keySize={}",
                  client,srcFile,uploadFromStream,inputStream,
-                              fileBackedOutputStream, meta, toClose,
+                              uploadSource, meta, toClose,
                               client.getEncryptionKeySize());
       final InputStream result;
-      FileInputStream srcFileStream = null;
+      InputStream srcFileStream = null;
       if (client.isEncrypting() && client.getEncryptionKeySize() < 256)
       {
         try
         {
           final InputStream uploadStream = uploadFromStream ?
-              (fileBackedOutputStream != null ?
-                    fileBackedOutputStream.asByteSource().openStream() :
+              (uploadSource != null ?
+                    (srcFileStream = uploadSource.openStream()) :
                     inputStream) :
               (srcFileStream = new FileInputStream(srcFile));
           toClose.add(srcFileStream);
@@ -462,8 +959,8 @@ public class SnowflakeS3Client
         try
         {
           result = uploadFromStream ?
-                   (fileBackedOutputStream != null ?
-               fileBackedOutputStream.asByteSource().openStream() :
+                   (uploadSource != null ?
+               (srcFileStream = uploadSource.openStream()) :
                inputStream) :
                    (srcFileStream = new FileInputStream(srcFile));
           toClose.add(srcFileStream);
@@ -497,9 +994,11 @@ public class SnowflakeS3Client
    * @param uploadFromStream true if upload source is stream
    * @param bucketName s3 bucket name
    * @param srcFile source file if not uploading from a stream
+   * @param localSourceFile local file the data is read from, which
+   *                        identifies the upload in checkpoints, or null
    * @param destFileName file name on s3 after upload
-   * @param inputStream stream used for uploading if fileBackedOutputStream is null
-   * @param fileBackedOutputStream stream used for uploading if not null
+   * @param inputStream stream used for uploading if uploadSource is null
+   * @param uploadSource source of the data to upload if not null
    * @param meta object meta data
    * @param stageRegion region name where the stage persists
    * @throws SnowflakeSQLException if upload failed even after retry
@@ -512,61 +1011,92 @@ public class SnowflakeS3Client
                             boolean uploadFromStream,
                             String bucketName,
                             File srcFile,
+                            File localSourceFile,
                             String destFileName,
                             InputStream inputStream,
-                            FileBackedOutputStream fileBackedOutputStream,
+                            ByteSource uploadSource,
                             ObjectMetadata meta,
                             String stageRegion) throws SnowflakeSQLException
   {
     final long originalContentLength = meta.getContentLength();
-    final List<FileInputStream> toClose = new ArrayList<>();
+
+    // big objects that can be read again are uploaded in parts, so that a
+    // retry only uploads the parts that failed. Objects encrypted with 256
+    // bit keys are left to the encryption client.
+    if (client.getEncryptionKeySize() < 256 &&
+        (uploadSource != null || !uploadFromStream) &&
+        originalContentLength >= client.getMultipartUploadThreshold())
+    {
+      uploadInParts(client, connection, command, parallelism, bucketName,
+          uploadSource != null ? null : srcFile, uploadSource,
+          localSourceFile, destFileName, meta, stageRegion);
+      return;
+    }
+
+    final List<InputStream> toClose = new ArrayList<>();
     Pair<InputStream, Boolean> uploadStreamInfo =
         createUploadStream(client, srcFile, uploadFromStream,
-                           inputStream, fileBackedOutputStream,
+                           inputStream, uploadSource,
                            meta, originalContentLength, toClose);
-    TransferManager tx = null;
+    final TransferGovernor governor = TransferGovernor.getInstance();
+    final TransferGovernor.Priority priority =
+        connection.getTransferPriority();
+
+    Upload myUpload = null;
     int retryCount = 0;
     do
     {
       try
       {
-        logger.debug("Creating executor service for transfer" +
-            "manager with {} threads", parallelism);
-
         // upload files to s3
-        tx = new TransferManager(client.amazonClient,
-            SnowflakeUtil.createDefaultExecutorService(
-                "s3-transfer-manager-uploader-",
-                parallelism));
-
-        final Upload myUpload;
+        TransferManager tx = client.getTransferManager();
 
-        if (uploadStreamInfo.getRight())
-        {
-          myUpload = tx.upload(bucketName, destFileName,
-              uploadStreamInfo.getLeft(), meta);
-        }
-        else
+        governor.acquire(priority);
+        try
         {
-          PutObjectRequest putRequest =
-              new PutObjectRequest(bucketName, destFileName, srcFile);
-          putRequest.setMetadata(meta);
-
-          myUpload = tx.upload(putRequest);
-        }
+          // files are read as a stream when limited to a bandwidth
+          if (uploadStreamInfo.getRight() || governor.isLimitingBandwidth())
+          {
+            myUpload = tx.upload(bucketName, destFileName,
+                governor.limit(uploadStreamInfo.getLeft()), meta);
+          }
+          else
+          {
+            PutObjectRequest putRequest =
+                new PutObjectRequest(bucketName, destFileName, srcFile);
+            putRequest.setMetadata(meta);
+
+            myUpload = tx.upload(putRequest);
+          }
 
-        myUpload.waitForCompletion();
+          myUpload.waitForCompletion();
+        }
+        finally
+        {
+          governor.release(priority);
+        }
+
+        if (!uploadStreamInfo.getRight() && !governor.isLimitingBandwidth())
+        {
+          governor.consume(originalContentLength);
+        }
 
         // get out
-        for (FileInputStream is : toClose)
+        for (InputStream is : toClose)
           IOUtils.closeQuietly(is);
         return;
       }
       catch (Exception ex)
       {
+        if (myUpload != null)
+        {
+          abortQuietly(myUpload);
+          myUpload = null;
+        }
+
         client = handleS3Exception(ex, ++retryCount, "upload", client.encMat,
             connection, command, parallelism, client, stageRegion);
-        if (uploadFromStream && fileBackedOutputStream == null)
+        if (uploadFromStream && uploadSource == null)
         {
           throw new SnowflakeSQLException(ex, SqlState.SYSTEM_ERROR,
               ErrorCode.IO_ERROR.getMessageCode(),
@@ -574,17 +1104,13 @@ public class SnowflakeS3Client
                   ex.getMessage() + "\nCannot retry upload from stream.");
         }
         uploadStreamInfo = createUploadStream(client, srcFile, uploadFromStream,
-                           inputStream, fileBackedOutputStream,
+                           inputStream, uploadSource,
                            meta, originalContentLength, toClose);
-      } finally
-      {
-        if (tx != null)
-          tx.shutdownNow(false);
       }
     }
     while(retryCount <= maxRetries);
 
-    for (FileInputStream is : toClose)
+    for (InputStream is : toClose)
       IOUtils.closeQuietly(is);
 
     throw new SnowflakeSQLException(SqlState.INTERNAL_ERROR,
@@ -592,7 +1118,688 @@ public class SnowflakeS3Client
         "Unexpected: upload unsuccessful without exception!");
   }
 
-  private static SnowflakeS3Client handleS3Exception(Exception ex,
+  /**
+   * Upload an object in parts that can be resumed.
+   *
+   * The upload id, part size and encryption key of the upload are kept in
+   * a checkpoint, so that a retry reads the data again but only uploads the
+   * parts that are not in S3 yet. Parts are only skipped if their ETag in S3
+   * is the MD5 of the data read again, which encrypts to the same bytes with
+   * the same key and IV. If a checkpoint directory is set in the session,
+   * the checkpoint is saved and a later PUT of the same unchanged local file
+   * resumes the upload; a failed upload is then left for that PUT instead of
+   * being aborted.
+   *
+   * @param client client object used to communicate with s3
+   * @param connection connection object
+   * @param command upload command
+   * @param parallelism number of parts uploaded in parallel
+   * @param bucketName s3 bucket name
+   * @param srcFile file to upload if uploadSource is null
+   * @param uploadSource source of the data to upload if not null
+   * @param localSourceFile local file the data is read from, or null
+   * @param destFileName file name on s3 after upload
+   * @param meta object meta data
+   * @param stageRegion region name where the stage persists
+   * @throws SnowflakeSQLException if upload failed even after retry
+   */
+  private static void uploadInParts(SnowflakeS3Client client,
+                                    SFSession connection,
+                                    String command,
+                                    int parallelism,
+                                    String bucketName,
+                                    File srcFile,
+                                    ByteSource uploadSource,
+                                    File localSourceFile,
+                                    String destFileName,
+                                    ObjectMetadata meta,
+                                    String stageRegion)
+      throws SnowflakeSQLException
+  {
+    final String digest = meta.getUserMetadata().get("sfc-digest");
+
+    final File checkpointDirectory =
+        connection.getUploadCheckpointDirectory() == null ||
+        localSourceFile == null ? null :
+            new File(connection.getUploadCheckpointDirectory());
+
+    UploadCheckpoint checkpoint = checkpointDirectory == null ? null :
+        UploadCheckpoint.load(checkpointDirectory, bucketName, destFileName,
+            localSourceFile, digest);
+
+    int retryCount = 0;
+    while (true)
+    {
+      try
+      {
+        Map<Integer, String> uploadedParts = null;
+
+        if (checkpoint != null)
+        {
+          // the parts of stale checkpoints are aborted before the
+          // checkpoint is deleted, so that they do not stay in the stage
+          if (!checkpoint.isStale() &&
+              client.canResume(checkpoint, meta.getContentLength()))
+          {
+            uploadedParts = client.listUploadedParts(checkpoint);
+          }
+          else
+          {
+            client.abortQuietly(checkpoint);
+          }
+
+          if (uploadedParts == null)
+          {
+            checkpoint.delete();
+            checkpoint = null;
+          }
+        }
+
+        if (checkpoint == null)
+        {
+          checkpoint = client.initiateUpload(checkpointDirectory, bucketName,
+              destFileName, meta, localSourceFile, digest);
+          uploadedParts = new HashMap<Integer, String>();
+        }
+
+        client.uploadParts(checkpoint, uploadedParts, srcFile, uploadSource,
+            meta.getContentLength(), parallelism,
+            connection.getTransferPriority());
+
+        checkpoint.delete();
+        return;
+      }
+      catch (Exception ex)
+      {
+        if (ex instanceof ExecutionException &&
+            ex.getCause() instanceof Exception)
+        {
+          ex = (Exception) ex.getCause();
+        }
+
+        try
+        {
+          client = handleS3Exception(ex, ++retryCount, "upload",
+              client.encMat, connection, command, parallelism, client,
+              stageRegion);
+        }
+        catch (SnowflakeSQLException ex1)
+        {
+          if (checkpoint != null && !checkpoint.isPersistent())
+          {
+            client.abortQuietly(checkpoint);
+          }
+
+          throw ex1;
+        }
+      }
+    }
+  }
+
+  /**
+   * @param checkpoint checkpoint of an upload
+   * @param originalContentLength length of the data to upload
+   * @return true if the data can be uploaded with the part size and key of
+   *         the checkpoint
+   */
+  private boolean canResume(UploadCheckpoint checkpoint,
+                            long originalContentLength)
+  {
+    if ((checkpoint.encryptionMetadata != null) != isEncrypting())
+    {
+      return false;
+    }
+
+    long contentLength = originalContentLength;
+
+    if (isEncrypting())
+    {
+      // the file key can only be decrypted with the same master key
+      MatDesc matDesc =
+          MatDesc.parse(checkpoint.encryptionMetadata.get(AMZ_MATDESC));
+
+      if (matDesc == null || matDesc.getSmkId() != encMat.getSmkId() ||
+          matDesc.getKeySize() != encryptionKeySize)
+      {
+        logger.debug("Upload {} was encrypted with another key",
+            checkpoint.uploadId);
+        return false;
+      }
+
+      contentLength = getEncryptedLength(originalContentLength);
+    }
+
+    return checkpoint.partSize >= UploadPlanner.MIN_PART_SIZE &&
+        checkpoint.partSize <= UploadPlanner.MAX_PART_SIZE &&
+        checkpoint.partSize % CIPHER_BLOCK_SIZE == 0 &&
+        (contentLength + checkpoint.partSize - 1) / checkpoint.partSize <=
+            UploadPlanner.MAX_PARTS;
+  }
+
+  /**
+   * @param checkpoint checkpoint of an upload
+   * @return part number to ETag of the parts in S3, null if the upload does
+   *         not exist anymore
+   */
+  private Map<Integer, String> listUploadedParts(UploadCheckpoint checkpoint)
+  {
+    Map<Integer, String> uploadedParts = new HashMap<Integer, String>();
+
+    ListPartsRequest request = new ListPartsRequest(checkpoint.bucketName,
+        checkpoint.key, checkpoint.uploadId);
+
+    try
+    {
+      PartListing listing;
+      do
+      {
+        listing = amazonClient.listParts(request);
+
+        for (PartSummary part : listing.getParts())
+        {
+          uploadedParts.put(part.getPartNumber(), part.getETag());
+        }
+
+        request.setPartNumberMarker(listing.getNextPartNumberMarker());
+      }
+      while (listing.isTruncated());
+    }
+    catch (AmazonS3Exception ex)
+    {
+      if (ex.getStatusCode() == 404)
+      {
+        logger.debug("Upload {} does not exist anymore", checkpoint.uploadId);
+        return null;
+      }
+
+      throw ex;
+    }
+
+    logger.debug("Resuming upload {} of {} with {} parts in S3",
+        checkpoint.uploadId, checkpoint.key, uploadedParts.size());
+
+    return uploadedParts;
+  }
+
+  /**
+   * Initiate a multipart upload and create its checkpoint
+   */
+  private UploadCheckpoint initiateUpload(File checkpointDirectory,
+                                          String bucketName,
+                                          String key,
+                                          ObjectMetadata meta,
+                                          File localSourceFile,
+                                          String digest)
+      throws GeneralSecurityException
+  {
+    ObjectMetadata uploadMeta = new ObjectMetadata();
+
+    for (Map.Entry<String, String> entry : meta.getUserMetadata().entrySet())
+    {
+      uploadMeta.addUserMetadata(entry.getKey(), entry.getValue());
+    }
+
+    if (meta.getContentEncoding() != null)
+    {
+      uploadMeta.setContentEncoding(meta.getContentEncoding());
+    }
+
+    long contentLength = meta.getContentLength();
+    Map<String, String> encryptionMetadata = null;
+
+    if (isEncrypting())
+    {
+      encryptionMetadata = createEncryptionMetadata();
+
+      for (Map.Entry<String, String> entry : encryptionMetadata.entrySet())
+      {
+        uploadMeta.addUserMetadata(entry.getKey(), entry.getValue());
+      }
+
+      contentLength = getEncryptedLength(contentLength);
+    }
+
+    String uploadId = amazonClient.initiateMultipartUpload(
+        new InitiateMultipartUploadRequest(bucketName, key, uploadMeta))
+        .getUploadId();
+
+    long partSize = getUploadPartSize(contentLength);
+
+    logger.debug("Initiated upload {} of {} with part size {}",
+        uploadId, key, partSize);
+
+    return UploadCheckpoint.create(checkpointDirectory, bucketName, key,
+        uploadId, partSize, encryptionMetadata, localSourceFile, digest);
+  }
+
+  /**
+   * Upload the parts that are not in S3 yet and complete the upload.
+   *
+   * Parts of a file are mapped in memory rather than read into buffers.
+   * Parts that are not encrypted are uploaded from the mapped file, while
+   * encrypted parts are encrypted from the mapped file into their buffer.
+   *
+   * @param checkpoint checkpoint of the upload
+   * @param uploadedParts part number to ETag of the parts in S3
+   * @param srcFile file to upload if uploadSource is null
+   * @param uploadSource source of the data to upload if not null
+   * @param originalContentLength length of the data to upload
+   * @param parallelism max number of parts uploaded in parallel
+   * @param priority priority of the transfer
+   * @throws Exception if failed to read the data or to upload a part
+   */
+  private void uploadParts(final UploadCheckpoint checkpoint,
+                           Map<Integer, String> uploadedParts,
+                           File srcFile,
+                           ByteSource uploadSource,
+                           long originalContentLength,
+                           int parallelism,
+                           final TransferGovernor.Priority priority)
+      throws Exception
+  {
+    final long contentLength = checkpoint.encryptionMetadata == null ?
+        originalContentLength : getEncryptedLength(originalContentLength);
+
+    final int partCount =
+        (int) ((contentLength + checkpoint.partSize - 1) / checkpoint.partSize);
+
+    final String[] eTags = new String[partCount];
+
+    // bounds the memory of the parts read ahead of their upload
+    final Semaphore permits = new Semaphore((int) Math.max(1,
+        Math.min(parallelism, MAX_PART_BUFFER_SIZE / checkpoint.partSize)));
+
+    final AtomicReference<Exception> failure =
+        new AtomicReference<Exception>();
+
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    final ExecutorService executor = getPartExecutor();
+
+    final MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+
+    FileChannel channel = null;
+    InputStream data = null;
+    Cipher cipher = null;
+
+    try
+    {
+      if (uploadSource != null)
+      {
+        data = uploadSource.openStream();
+
+        if (checkpoint.encryptionMetadata != null)
+        {
+          data = encrypt(checkpoint.encryptionMetadata, data);
+        }
+      }
+      else
+      {
+        channel = FileChannel.open(srcFile.toPath(), READ);
+
+        if (checkpoint.encryptionMetadata != null)
+        {
+          cipher = createFileCipher(checkpoint.encryptionMetadata);
+        }
+      }
+
+      int skippedParts = 0;
+
+      for (int index = 0; index < partCount && failure.get() == null; index++)
+      {
+        final int partNumber = index + 1;
+        final int partLength = (int) Math.min(checkpoint.partSize,
+            contentLength - index * checkpoint.partSize);
+
+        permits.acquire();
+
+        final ByteBuffer part;
+
+        if (channel != null)
+        {
+          part = readPart(channel, cipher, index * checkpoint.partSize,
+              partLength, originalContentLength, partNumber == partCount);
+        }
+        else
+        {
+          byte[] partBytes = new byte[partLength];
+          IOUtils.readFully(data, partBytes);
+          part = ByteBuffer.wrap(partBytes);
+        }
+
+        md5Digest.update(part.duplicate());
+        final byte[] md5 = md5Digest.digest();
+        final String uploadedETag = uploadedParts.get(partNumber);
+
+        if (uploadedETag != null &&
+            uploadedETag.equalsIgnoreCase(Hex.encodeHexString(md5)))
+        {
+          eTags[index] = uploadedETag;
+          skippedParts++;
+          permits.release();
+          continue;
+        }
+
+        final int partIndex = index;
+
+        futures.add(executor.submit(new Callable<Void>()
+        {
+          @Override
+          public Void call() throws Exception
+          {
+            try
+            {
+              eTags[partIndex] =
+                  uploadPart(checkpoint, partNumber, part, md5, priority);
+
+              checkpoint.addPart(partNumber, eTags[partIndex]);
+            }
+            catch (Exception ex)
+            {
+              failure.compareAndSet(null, ex);
+              throw ex;
+            }
+            finally
+            {
+              permits.release();
+            }
+
+            return null;
+          }
+        }));
+      }
+
+      if (failure.get() == null &&
+          (channel != null ? channel.size() != originalContentLength :
+              data.read() >= 0))
+      {
+        throw new IOException("Source of " + checkpoint.key +
+            " is longer than " + originalContentLength + " bytes");
+      }
+
+      for (Future<?> future : futures)
+      {
+        future.get();
+      }
+
+      logger.debug("Uploaded {} parts of {}, {} parts were already in S3",
+          partCount - skippedParts, checkpoint.key, skippedParts);
+    }
+    finally
+    {
+      for (Future<?> future : futures)
+      {
+        future.cancel(false);
+      }
+
+      IOUtils.closeQuietly(data);
+      IOUtils.closeQuietly(channel);
+    }
+
+    completeUpload(checkpoint, Arrays.asList(eTags));
+  }
+
+  /**
+   * Initiate a multipart upload of data whose length is not known in
+   * advance, e.g. written to a StageOutputStream. The upload has no
+   * checkpoint file, and its parts are uploaded with uploadPart.
+   *
+   * @param bucketName bucket of the object
+   * @param key key of the object
+   * @param meta metadata of the object
+   * @return checkpoint of the upload, which is not persisted
+   * @throws GeneralSecurityException if failed to create the file key
+   */
+  UploadCheckpoint initiateStreamUpload(String bucketName,
+                                        String key,
+                                        ObjectMetadata meta)
+      throws GeneralSecurityException
+  {
+    return initiateUpload(null, bucketName, key, meta, null, null);
+  }
+
+  /**
+   * @param checkpoint checkpoint of an upload
+   * @return cipher encrypting the parts of the upload in order, null if
+   *         the upload is not encrypted
+   * @throws GeneralSecurityException if failed to decrypt the file key
+   */
+  Cipher createPartCipher(UploadCheckpoint checkpoint)
+      throws GeneralSecurityException
+  {
+    return checkpoint.encryptionMetadata == null ? null :
+        createFileCipher(checkpoint.encryptionMetadata);
+  }
+
+  /**
+   * Upload a part of a multipart upload, holding a transfer slot
+   *
+   * @param checkpoint checkpoint of the upload
+   * @param partNumber part number, from 1
+   * @param part data of the part, which is not consumed
+   * @param md5 MD5 digest of the part
+   * @param priority priority of the transfer
+   * @return ETag of the part
+   * @throws InterruptedException if interrupted while waiting for a slot
+   */
+  String uploadPart(UploadCheckpoint checkpoint,
+                    int partNumber,
+                    ByteBuffer part,
+                    byte[] md5,
+                    TransferGovernor.Priority priority)
+      throws InterruptedException
+  {
+    final TransferGovernor governor = TransferGovernor.getInstance();
+
+    governor.acquire(priority);
+    try
+    {
+      governor.consume(part.remaining());
+
+      return amazonClient.uploadPart(
+          new UploadPartRequest()
+          .withBucketName(checkpoint.bucketName)
+          .withKey(checkpoint.key)
+          .withUploadId(checkpoint.uploadId)
+          .withPartNumber(partNumber)
+          .withPartSize(part.remaining())
+          .withMD5Digest(Base64.encodeAsString(md5))
+          .withInputStream(new ByteBufferInputStream(part.duplicate())))
+          .getETag();
+    }
+    finally
+    {
+      governor.release(priority);
+    }
+  }
+
+  /**
+   * Complete a multipart upload
+   *
+   * @param checkpoint checkpoint of the upload
+   * @param eTags ETags of the parts, in the order of their part numbers
+   */
+  void completeUpload(UploadCheckpoint checkpoint, List<String> eTags)
+  {
+    List<PartETag> partETags = new ArrayList<PartETag>(eTags.size());
+    for (int index = 0; index < eTags.size(); index++)
+    {
+      partETags.add(new PartETag(index + 1, eTags.get(index)));
+    }
+
+    amazonClient.completeMultipartUpload(new CompleteMultipartUploadRequest(
+        checkpoint.bucketName, checkpoint.key, checkpoint.uploadId,
+        partETags));
+  }
+
+  /**
+   * Read a part of a file to upload
+   *
+   * @param channel file channel
+   * @param cipher cipher that encrypted the previous parts, null if the
+   *               part is not encrypted
+   * @param offset offset of the part in the object, which is also its
+   *               offset in the file since parts are aligned on blocks
+   * @param partLength length of the part
+   * @param originalContentLength size of the file
+   * @param lastPart true if this is the last part of the object
+   * @return data of the part, mapped in memory if not encrypted
+   * @throws IOException if failed to map the file
+   * @throws GeneralSecurityException if failed to encrypt the part
+   */
+  private static ByteBuffer readPart(FileChannel channel,
+                                     Cipher cipher,
+                                     long offset,
+                                     int partLength,
+                                     long originalContentLength,
+                                     boolean lastPart)
+      throws IOException, GeneralSecurityException
+  {
+    // the last encrypted part may only hold padding
+    long dataLength = Math.max(0, Math.min(partLength,
+        originalContentLength - offset));
+
+    ByteBuffer data =
+        channel.map(FileChannel.MapMode.READ_ONLY, offset, dataLength);
+
+    if (cipher == null)
+    {
+      return data;
+    }
+
+    // the cipher requires room for a padding block in any case
+    ByteBuffer part = ByteBuffer.allocate(partLength + CIPHER_BLOCK_SIZE);
+
+    if (lastPart)
+    {
+      cipher.doFinal(data, part);
+    }
+    else
+    {
+      cipher.update(data, part);
+    }
+
+    if (part.position() != partLength)
+    {
+      throw new IOException("Encrypted part at offset " + offset + " has " +
+          part.position() + " bytes instead of " + partLength);
+    }
+
+    part.flip();
+    return part;
+  }
+
+  /**
+   * Input stream of the remaining bytes of a buffer, which supports mark
+   * so that a request can be retried by the client.
+   */
+  private static class ByteBufferInputStream extends InputStream
+  {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+      if (len == 0)
+      {
+        return 0;
+      }
+
+      if (!buffer.hasRemaining())
+      {
+        return -1;
+      }
+
+      int bytesRead = Math.min(len, buffer.remaining());
+      buffer.get(b, off, bytesRead);
+      return bytesRead;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+      int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+      return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit)
+    {
+      buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+      buffer.reset();
+    }
+  }
+
+  /**
+   * Abort a multipart upload so that its parts do not stay in the stage
+   *
+   * @param checkpoint checkpoint of the upload
+   */
+  void abortQuietly(UploadCheckpoint checkpoint)
+  {
+    try
+    {
+      amazonClient.abortMultipartUpload(new AbortMultipartUploadRequest(
+          checkpoint.bucketName, checkpoint.key, checkpoint.uploadId));
+    }
+    catch (Exception ex)
+    {
+      logger.debug("Failed to abort upload {}: {}", checkpoint.uploadId,
+          ex.getMessage());
+    }
+  }
+
+  /**
+   * Abort a failed transfer so that its remaining parts do not keep
+   * running on the shared transfer manager.
+   *
+   * @param transfer upload or download to abort
+   */
+  private static void abortQuietly(Transfer transfer)
+  {
+    try
+    {
+      if (transfer instanceof Upload)
+        ((Upload) transfer).abort();
+      else if (transfer instanceof Download)
+        ((Download) transfer).abort();
+    }
+    catch (Exception ex)
+    {
+      logger.debug("Failed to abort transfer: {}", ex.getMessage());
+    }
+  }
+
+  static SnowflakeS3Client handleS3Exception(Exception ex,
                                  int retryCount,
                                  String operation,
                                  S3FileEncryptionMaterial encMat,
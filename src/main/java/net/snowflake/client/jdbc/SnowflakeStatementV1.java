@@ -21,6 +21,10 @@ import java.sql.SQLFeatureNotSupportedException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import net.snowflake.client.log.SFLogger;
 import net.snowflake.client.log.SFLoggerFactory;
 
@@ -65,6 +69,17 @@ class SnowflakeStatementV1 implements Statement
   /** batch of sql strings added by addBatch */
   protected final List<BatchEntry> batch = new ArrayList<>();
 
+  /** statements running batch entries in pipelined batch execution */
+  private final List<SFStatement> batchStatements = new ArrayList<>();
+
+  /**
+   * leading keywords of the only statements that are executed concurrently
+   * with other batch entries. All other statements, including DDL and
+   * statements changing the session or transaction state, are barriers.
+   */
+  private static final String[] PIPELINED_STATEMENT_KEYWORDS = {
+      "insert", "update", "delete", "merge"};
+
   protected SQLWarning sqlWarnings;
 
   SnowflakeStatementV1(SnowflakeConnectionV1 conn)
@@ -105,13 +120,59 @@ class SnowflakeStatementV1 implements Statement
   int executeUpdateInternal(String sql,
                             Map<String, ParameterBindingDTO> parameterBindings)
           throws SQLException
+  {
+    return executeUpdateInternal(sql, parameterBindings, null);
+  }
+
+  /**
+   * Execute an update statement with bindings uploaded to a stage
+   *
+   * @param sql sql statement
+   * @param parameterBindings parameters bindings sent with the query
+   * @param bindStage stage location of the binding data, null if the
+   *                  bindings are sent with the query
+   * @return number of rows updated
+   * @throws SQLException if the statement failed or does not return an
+   *                      update count
+   */
+  int executeUpdateInternal(String sql,
+                            Map<String, ParameterBindingDTO> parameterBindings,
+                            String bindStage)
+      throws SQLException
+  {
+    updateCount = executeUpdateInternal(sfStatement, sql, parameterBindings,
+                                        bindStage);
+
+    return updateCount;
+  }
+
+  /**
+   * Execute an update statement on the given SFStatement and return the
+   * update count
+   *
+   * @param statement statement used to run the sql
+   * @param sql sql statement
+   * @param parameterBindings parameters bindings
+   * @param bindStage stage location of the binding data, null if the
+   *                  bindings are sent with the query
+   * @return number of rows updated
+   * @throws SQLException if the statement failed or does not return an
+   *                      update count
+   */
+  private int executeUpdateInternal(
+      SFStatement statement,
+      String sql,
+      Map<String, ParameterBindingDTO> parameterBindings,
+      String bindStage)
+      throws SQLException
   {
     SFBaseResultSet sfResultSet = null;
+    int count;
     try
     {
-      sfResultSet = sfStatement.execute(sql, parameterBindings);
+      sfResultSet = statement.execute(sql, parameterBindings, bindStage);
       sfResultSet.setSession(this.connection.getSfSession());
-      updateCount = ResultUtil.calculateUpdateCount(sfResultSet);
+      count = ResultUtil.calculateUpdateCount(sfResultSet);
     }
     catch (SFException ex)
     {
@@ -119,7 +180,7 @@ class SnowflakeStatementV1 implements Statement
           ex.getSqlState(), ex.getVendorCode(), ex.getParams());
     }
 
-    if (updateCount == -1)
+    if (count == -1)
     {
       throw new SnowflakeSQLException(ErrorCode.
           UNSUPPORTED_STATEMENT_TYPE_IN_EXECUTION_API,
@@ -127,7 +188,7 @@ class SnowflakeStatementV1 implements Statement
 
     }
 
-    return updateCount;
+    return count;
   }
 
   /**
@@ -304,17 +365,27 @@ class SnowflakeStatementV1 implements Statement
     SQLException exceptionReturned = null;
     int updateCounts[] = new int[batch.size()];
 
-    for (int i=0; i<batch.size(); i++)
+    int pipelineDegree = connection.getSfSession().getBatchPipelineDegree();
+
+    if (pipelineDegree > 1 && batch.size() > 1 &&
+        connection.getSfSession().getAutoCommit())
     {
-      try
-      {
-        updateCounts[i] = this.executeUpdateInternal(
-            batch.get(i).getSql(), batch.get(i).getParameterBindings());
-      }
-      catch(SQLException e)
+      exceptionReturned = executeBatchPipelined(updateCounts, pipelineDegree);
+    }
+    else
+    {
+      for (int i=0; i<batch.size(); i++)
       {
-        exceptionReturned = exceptionReturned == null ? e : exceptionReturned;
-        updateCounts[i] = EXECUTE_FAILED;
+        try
+        {
+          updateCounts[i] = this.executeUpdateInternal(
+              batch.get(i).getSql(), batch.get(i).getParameterBindings());
+        }
+        catch(SQLException e)
+        {
+          exceptionReturned = exceptionReturned == null ? e : exceptionReturned;
+          updateCounts[i] = EXECUTE_FAILED;
+        }
       }
     }
 
@@ -330,6 +401,238 @@ class SnowflakeStatementV1 implements Statement
     return updateCounts;
   }
 
+  /**
+   * Execute the batch with up to pipelineDegree entries in flight at once.
+   *
+   * Each in flight entry runs on its own SFStatement over the same session,
+   * so entries within a window must not depend on each other, e.g. DML on
+   * the same rows may run in any order. Only INSERT, UPDATE, DELETE and
+   * MERGE entries are pipelined; all other entries, DDL included, are
+   * executed alone after all entries before them have completed.
+   *
+   * @param updateCounts update counts filled in batch order, EXECUTE_FAILED
+   *                     for entries that failed
+   * @param pipelineDegree max number of entries executed concurrently
+   * @return the exception of the first failed entry in batch order, null if
+   *         all entries succeeded
+   * @throws SQLException if interrupted while waiting for the entries
+   */
+  private SQLException executeBatchPipelined(int[] updateCounts,
+                                             int pipelineDegree)
+      throws SQLException
+  {
+    logger.debug("executing batch of {} entries with pipeline degree {}",
+        batch.size(), pipelineDegree);
+
+    SQLException exceptionReturned = null;
+
+    ThreadPoolExecutor executor = SnowflakeUtil.createDefaultExecutorService(
+        "sf-batch-pipeline-worker-",
+        Math.min(pipelineDegree, batch.size()));
+
+    try
+    {
+      int idx = 0;
+      while (idx < batch.size())
+      {
+        // barrier statements run alone on this statement
+        if (isBatchBarrier(batch.get(idx).getSql()))
+        {
+          try
+          {
+            updateCounts[idx] = this.executeUpdateInternal(
+                batch.get(idx).getSql(),
+                batch.get(idx).getParameterBindings());
+          }
+          catch(SQLException e)
+          {
+            exceptionReturned =
+                exceptionReturned == null ? e : exceptionReturned;
+            updateCounts[idx] = EXECUTE_FAILED;
+          }
+
+          idx++;
+          continue;
+        }
+
+        // submit a window of independent entries
+        int windowStart = idx;
+        List<Future<Integer>> futures = new ArrayList<>();
+
+        while (idx < batch.size() &&
+               idx - windowStart < pipelineDegree &&
+               !isBatchBarrier(batch.get(idx).getSql()))
+        {
+          final BatchEntry entry = batch.get(idx);
+          final SFStatement statement = createBatchStatement();
+
+          futures.add(executor.submit(new Callable<Integer>()
+          {
+            @Override
+            public Integer call() throws SQLException
+            {
+              try
+              {
+                return executeUpdateInternal(statement,
+                    entry.getSql(), entry.getParameterBindings(), null);
+              }
+              finally
+              {
+                releaseBatchStatement(statement);
+              }
+            }
+          }));
+
+          idx++;
+        }
+
+        // collect the update counts in batch order
+        for (int i = 0; i < futures.size(); i++)
+        {
+          try
+          {
+            updateCounts[windowStart + i] = futures.get(i).get();
+          }
+          catch (ExecutionException ex)
+          {
+            SQLException e = ex.getCause() instanceof SQLException ?
+                (SQLException) ex.getCause() :
+                new SnowflakeSQLException(ex.getCause(),
+                    ErrorCode.INTERNAL_ERROR.getSqlState(),
+                    ErrorCode.INTERNAL_ERROR.getMessageCode(),
+                    ex.getCause().getMessage());
+
+            exceptionReturned =
+                exceptionReturned == null ? e : exceptionReturned;
+            updateCounts[windowStart + i] = EXECUTE_FAILED;
+          }
+        }
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      throw new SnowflakeSQLException(ex, ErrorCode.INTERRUPTED.getSqlState(),
+          ErrorCode.INTERRUPTED.getMessageCode());
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    return exceptionReturned;
+  }
+
+  /**
+   * Create a statement for running a batch entry concurrently with the
+   * other entries of the batch. Statement level parameters of this
+   * statement are carried over.
+   *
+   * @return statement on the same session
+   * @throws SQLException if failed to set statement parameters
+   */
+  private SFStatement createBatchStatement() throws SQLException
+  {
+    SFStatement statement = new SFStatement(connection.getSfSession());
+
+    try
+    {
+      if (queryTimeout > 0)
+        statement.addProperty("query_timeout", queryTimeout);
+
+      if (maxRows > 0)
+        statement.addProperty("rows_per_resultset", maxRows);
+    }
+    catch (SFException ex)
+    {
+      throw new SnowflakeSQLException(ex.getCause(),
+          ex.getSqlState(), ex.getVendorCode(), ex.getParams());
+    }
+
+    synchronized (batchStatements)
+    {
+      batchStatements.add(statement);
+    }
+
+    return statement;
+  }
+
+  private void releaseBatchStatement(SFStatement statement)
+      throws SQLException
+  {
+    synchronized (batchStatements)
+    {
+      batchStatements.remove(statement);
+    }
+
+    statement.close();
+  }
+
+  /**
+   * Whether a batch entry must not run concurrently with other entries,
+   * i.e. it is not plain DML.
+   *
+   * @param sql sql text of the batch entry
+   * @return true if the entry is executed alone
+   */
+  private static boolean isBatchBarrier(String sql)
+  {
+    String keyword = getLeadingKeyword(sql);
+
+    for (String pipelined : PIPELINED_STATEMENT_KEYWORDS)
+    {
+      if (pipelined.equals(keyword))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Get the first keyword of a statement, skipping white spaces, comments
+   * and opening parentheses
+   *
+   * @param sql sql text
+   * @return first keyword in lower case, empty if there is none
+   */
+  private static String getLeadingKeyword(String sql)
+  {
+    int idx = 0;
+    int length = sql.length();
+
+    while (idx < length)
+    {
+      char c = sql.charAt(idx);
+
+      if (Character.isWhitespace(c) || c == '(')
+      {
+        idx++;
+      }
+      else if (sql.startsWith("--", idx) || sql.startsWith("//", idx))
+      {
+        int end = sql.indexOf('\n', idx);
+        idx = end < 0 ? length : end + 1;
+      }
+      else if (sql.startsWith("/*", idx))
+      {
+        int end = sql.indexOf("*/", idx + 2);
+        idx = end < 0 ? length : end + 2;
+      }
+      else
+      {
+        break;
+      }
+    }
+
+    int start = idx;
+    while (idx < length &&
+        (Character.isLetter(sql.charAt(idx)) || sql.charAt(idx) == '_'))
+    {
+      idx++;
+    }
+
+    return sql.substring(start, idx).toLowerCase();
+  }
+
   @Override
   public int executeUpdate(String sql, int autoGeneratedKeys)
           throws SQLException
@@ -672,6 +975,18 @@ class SnowflakeStatementV1 implements Statement
     try
     {
       sfStatement.cancel();
+
+      // cancel batch entries running in pipelined batch execution
+      List<SFStatement> runningStatements;
+      synchronized (batchStatements)
+      {
+        runningStatements = new ArrayList<>(batchStatements);
+      }
+
+      for (SFStatement statement : runningStatements)
+      {
+        statement.cancel();
+      }
     }
     catch (SFException ex)
     {
@@ -714,7 +1029,7 @@ class SnowflakeStatementV1 implements Statement
     batch.clear();
   }
 
-  private void executeSetProperty(final String sql)
+  private void executeSetProperty(final String sql) throws SQLException
   {
     logger.debug("setting property");
 
@@ -740,7 +1055,15 @@ class SnowflakeStatementV1 implements Statement
     }
     else
     {
-      this.sfStatement.executeSetProperty(sql);
+      try
+      {
+        this.sfStatement.executeSetProperty(sql);
+      }
+      catch (SFException ex)
+      {
+        throw new SnowflakeSQLException(ex.getCause(),
+            ex.getSqlState(), ex.getVendorCode(), ex.getParams());
+      }
     }
   }
 
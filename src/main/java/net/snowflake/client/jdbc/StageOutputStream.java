@@ -0,0 +1,878 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import net.snowflake.client.core.SFSession;
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+import net.snowflake.common.core.S3FileEncryptionMaterial;
+import net.snowflake.common.core.SqlState;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Output stream writing a file to a stage, for data produced by the
+ * application rather than read from a file or an input stream.
+ *
+ * The bytes written by the application are collected in input buffers that
+ * a background thread compresses and encrypts into part buffers, and the
+ * part buffers are uploaded as the parts of a multipart upload by a pool of
+ * threads while the next parts are filled. The buffers are taken from
+ * bounded pools and reused, so an application writing faster than the
+ * network waits for a free buffer instead of growing the memory of the
+ * process, and nothing is spilled to disk.
+ *
+ * The file appears in the stage when the stream is closed. If the upload
+ * fails, or if the stream is aborted, the uploaded parts are discarded.
+ * A stream must be closed or aborted to release its threads, and is not
+ * thread safe.
+ *
+ * Files written with a stream have no digest, so they are always replaced
+ * by PUT commands uploading a file with the same name.
+ */
+public class StageOutputStream extends OutputStream
+{
+  static final SFLogger logger =
+      SFLoggerFactory.getLogger(StageOutputStream.class);
+
+  // size of the buffers of the data written by the application, one is
+  // filled by the application while the other is compressed
+  private static final int INPUT_BUFFER_SIZE = 4 * 1024 * 1024;
+  private static final int INPUT_BUFFERS = 2;
+
+  // size of the uploaded parts, except the last one, which bounds the size
+  // of a file to MAX_PARTS parts
+  static final int PART_SIZE = 16 * 1024 * 1024;
+
+  // max memory for the parts of a stream being uploaded
+  private static final long MAX_PART_BUFFER_SIZE = 256 * 1024 * 1024;
+
+  // how often a thread waiting for a buffer checks if the upload failed
+  private static final long POLL_MILLIS = 1000;
+
+  /**
+   * Destination of the parts of a stream
+   */
+  abstract static class PartSink
+  {
+    /**
+     * @return cipher encrypting the data in order, null if the data is not
+     *         encrypted
+     */
+    abstract Cipher getCipher();
+
+    /**
+     * Write a part. Parts are written concurrently and in any order.
+     *
+     * @param partNumber part number, from 1
+     * @param offset offset of the part in the file
+     * @param part data of the part
+     * @return id of the written part
+     * @throws Exception if failed to write the part
+     */
+    abstract String writePart(int partNumber, long offset, ByteBuffer part)
+        throws Exception;
+
+    /**
+     * Make the file of the written parts visible and release the sink
+     *
+     * @param partIds ids of the parts in the order of their part numbers
+     * @throws Exception if failed to complete the file
+     */
+    abstract void complete(List<String> partIds) throws Exception;
+
+    /**
+     * Discard the written parts and release the sink
+     */
+    abstract void abort();
+  }
+
+  /**
+   * Parts uploaded as the parts of an S3 multipart upload
+   */
+  static class S3PartSink extends PartSink
+  {
+    private final SnowflakeS3Client initialClient;
+    private final SFSession connection;
+    private final String command;
+    private final int parallel;
+    private final S3FileEncryptionMaterial encMat;
+    private final String stageRegion;
+    private final UploadCheckpoint checkpoint;
+    private final Cipher cipher;
+
+    // client with renewed credentials if they expired during the upload
+    private volatile SnowflakeS3Client client;
+
+    private S3PartSink(SnowflakeS3Client client,
+                       SnowflakeS3Client initialClient,
+                       SFSession connection,
+                       String command,
+                       int parallel,
+                       S3FileEncryptionMaterial encMat,
+                       String stageRegion,
+                       UploadCheckpoint checkpoint,
+                       Cipher cipher)
+    {
+      this.client = client;
+      this.initialClient = initialClient;
+      this.connection = connection;
+      this.command = command;
+      this.parallel = parallel;
+      this.encMat = encMat;
+      this.stageRegion = stageRegion;
+      this.checkpoint = checkpoint;
+      this.cipher = cipher;
+    }
+
+    /**
+     * Initiate the multipart upload of an object
+     *
+     * @param client s3 client, shut down when the sink is released
+     * @param connection session of the PUT command
+     * @param command PUT command, to renew expired credentials
+     * @param parallel number of threads of the client
+     * @param encMat encryption material, null if not encrypting
+     * @param stageRegion region of the stage
+     * @param bucketName bucket of the object
+     * @param key key of the object
+     * @param meta metadata of the object
+     * @return sink of the parts of the upload
+     * @throws SnowflakeSQLException if failed to initiate the upload, or if
+     *                               the stage uses 256 bit keys
+     */
+    static S3PartSink open(SnowflakeS3Client client,
+                           SFSession connection,
+                           String command,
+                           int parallel,
+                           S3FileEncryptionMaterial encMat,
+                           String stageRegion,
+                           String bucketName,
+                           String key,
+                           ObjectMetadata meta)
+        throws SnowflakeSQLException
+    {
+      // 256 bit keys require the encryption client, which encrypts the
+      // parts again and cannot upload them concurrently
+      if (client.getEncryptionKeySize() >= 256)
+      {
+        client.shutdown();
+
+        throw new SnowflakeSQLException(SqlState.FEATURE_NOT_SUPPORTED,
+            ErrorCode.FEATURE_UNSUPPORTED.getMessageCode(),
+            "stage output streams with 256 bit encryption, use uploadStream");
+      }
+
+      SnowflakeS3Client current = client;
+
+      int retryCount = 0;
+      while (true)
+      {
+        try
+        {
+          UploadCheckpoint checkpoint =
+              current.initiateStreamUpload(bucketName, key, meta);
+
+          return new S3PartSink(current, client, connection, command,
+              parallel, encMat, stageRegion, checkpoint,
+              current.createPartCipher(checkpoint));
+        }
+        catch (Exception ex)
+        {
+          try
+          {
+            current = SnowflakeS3Client.handleS3Exception(ex, ++retryCount,
+                "upload", encMat, connection, command, parallel, current,
+                stageRegion);
+          }
+          catch (SnowflakeSQLException ex1)
+          {
+            client.shutdown();
+            throw ex1;
+          }
+        }
+      }
+    }
+
+    @Override
+    Cipher getCipher()
+    {
+      return cipher;
+    }
+
+    @Override
+    String writePart(int partNumber, long offset, ByteBuffer part)
+        throws Exception
+    {
+      MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+      md5Digest.update(part.duplicate());
+      byte[] md5 = md5Digest.digest();
+
+      int retryCount = 0;
+      while (true)
+      {
+        SnowflakeS3Client current = client;
+
+        try
+        {
+          return current.uploadPart(checkpoint, partNumber, part, md5,
+              connection.getTransferPriority());
+        }
+        catch (Exception ex)
+        {
+          client = SnowflakeS3Client.handleS3Exception(ex, ++retryCount,
+              "upload", encMat, connection, command, parallel, current,
+              stageRegion);
+        }
+      }
+    }
+
+    @Override
+    void complete(List<String> partIds) throws Exception
+    {
+      try
+      {
+        int retryCount = 0;
+        while (true)
+        {
+          SnowflakeS3Client current = client;
+
+          try
+          {
+            current.completeUpload(checkpoint, partIds);
+            return;
+          }
+          catch (Exception ex)
+          {
+            client = SnowflakeS3Client.handleS3Exception(ex, ++retryCount,
+                "upload", encMat, connection, command, parallel, current,
+                stageRegion);
+          }
+        }
+      }
+      finally
+      {
+        initialClient.shutdown();
+      }
+    }
+
+    @Override
+    void abort()
+    {
+      client.abortQuietly(checkpoint);
+      initialClient.shutdown();
+    }
+  }
+
+  /**
+   * Parts written at their offset in a file of a local stage
+   */
+  static class LocalPartSink extends PartSink
+  {
+    private final File destFile;
+    private final FileChannel channel;
+
+    private LocalPartSink(File destFile, FileChannel channel)
+    {
+      this.destFile = destFile;
+      this.channel = channel;
+    }
+
+    /**
+     * @param destFile file of the stage
+     * @return sink writing the parts to the file
+     * @throws SnowflakeSQLException if failed to create the file
+     */
+    static LocalPartSink open(File destFile) throws SnowflakeSQLException
+    {
+      try
+      {
+        FileUtils.forceMkdir(destFile.getParentFile());
+
+        return new LocalPartSink(destFile, FileChannel.open(destFile.toPath(),
+            CREATE, WRITE, TRUNCATE_EXISTING));
+      }
+      catch (IOException ex)
+      {
+        throw new SnowflakeSQLException(ex, SqlState.INTERNAL_ERROR,
+            ErrorCode.INTERNAL_ERROR.getMessageCode(), ex.getMessage());
+      }
+    }
+
+    @Override
+    Cipher getCipher()
+    {
+      return null;
+    }
+
+    @Override
+    String writePart(int partNumber, long offset, ByteBuffer part)
+        throws IOException
+    {
+      ByteBuffer data = part.duplicate();
+
+      long position = offset;
+      while (data.hasRemaining())
+      {
+        position += channel.write(data, position);
+      }
+
+      return String.valueOf(partNumber);
+    }
+
+    @Override
+    void complete(List<String> partIds) throws IOException
+    {
+      channel.close();
+    }
+
+    @Override
+    void abort()
+    {
+      IOUtils.closeQuietly(channel);
+
+      if (!destFile.delete())
+      {
+        logger.debug("Failed to delete {}", destFile);
+      }
+    }
+  }
+
+  /**
+   * Writes the encoded data to part buffers, and uploads the filled parts.
+   * Only used by the encoder thread.
+   */
+  private class PartWriter extends OutputStream
+  {
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        if (part == null)
+        {
+          part = takePart();
+        }
+
+        int count = Math.min(len, part.remaining());
+        part.put(b, off, count);
+        off += count;
+        len -= count;
+
+        if (!part.hasRemaining())
+        {
+          uploadPart();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      // upload the last part, which is empty if the file is empty
+      if (part != null || uploads.isEmpty())
+      {
+        if (part == null)
+        {
+          part = takePart();
+        }
+
+        uploadPart();
+      }
+    }
+  }
+
+  private final PartSink sink;
+  private final String destFileName;
+
+  // null if the data is not compressed
+  private final UploadCompression compression;
+
+  private final TransferMetrics metrics;
+  private final long startTime;
+
+  // single thread compressing and encrypting the input buffers in order
+  private final ExecutorService encoder;
+
+  // threads uploading the parts
+  private final ExecutorService uploader;
+
+  private final BlockingQueue<ByteBuffer> freeInputs =
+      new ArrayBlockingQueue<ByteBuffer>(INPUT_BUFFERS);
+
+  private final BlockingQueue<ByteBuffer> freeParts;
+  private final int maxPartBuffers;
+
+  private final AtomicReference<Exception> failure =
+      new AtomicReference<Exception>();
+
+  // state of the application thread
+  private ByteBuffer input = null;
+  private int allocatedInputs = 0;
+  private boolean closed = false;
+
+  // state of the encoder thread
+  private OutputStream encoded = null;
+  private ByteBuffer part = null;
+  private int allocatedParts = 0;
+  private long encodedSize = 0;
+  private final List<Future<String>> uploads = new ArrayList<Future<String>>();
+
+  /**
+   * @param sink destination of the parts
+   * @param destFileName name of the file in the stage
+   * @param compression compression of the data, null if not compressed
+   * @param parallel max number of parts uploaded in parallel
+   * @param metrics metrics of the PUT command
+   */
+  StageOutputStream(PartSink sink,
+                    String destFileName,
+                    UploadCompression compression,
+                    int parallel,
+                    TransferMetrics metrics)
+  {
+    this.sink = sink;
+    this.destFileName = destFileName;
+    this.compression = compression;
+    this.metrics = metrics;
+
+    parallel = Math.max(1, parallel);
+
+    // one part is filled while the others are uploaded
+    maxPartBuffers = 1 + (int) Math.max(1,
+        Math.min(parallel, MAX_PART_BUFFER_SIZE / PART_SIZE));
+    freeParts = new ArrayBlockingQueue<ByteBuffer>(maxPartBuffers);
+
+    encoder = SnowflakeUtil.createDefaultExecutorService(
+        "sf-stage-stream-encoder-", 1);
+    uploader = SnowflakeUtil.createDefaultExecutorService(
+        "sf-stage-stream-upload-worker-", parallel);
+
+    startTime = TransferMetrics.start();
+
+    logger.debug("Opened stage stream to {}, compression: {}",
+        destFileName, compression);
+  }
+
+  /**
+   * @return name of the file in the stage, with the extension of its
+   *         compression
+   */
+  public String getDestFileName()
+  {
+    return destFileName;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    checkWritable();
+
+    if (input == null)
+    {
+      input = takeInput();
+    }
+
+    input.put((byte) b);
+
+    if (!input.hasRemaining())
+    {
+      submitInput();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    checkWritable();
+
+    while (len > 0)
+    {
+      if (input == null)
+      {
+        input = takeInput();
+      }
+
+      int count = Math.min(len, input.remaining());
+      input.put(b, off, count);
+      off += count;
+      len -= count;
+
+      if (!input.hasRemaining())
+      {
+        submitInput();
+      }
+    }
+  }
+
+  /**
+   * Does nothing, since the file only appears in the stage when the stream
+   * is closed
+   */
+  @Override
+  public void flush()
+  {
+  }
+
+  /**
+   * Upload the remaining data and make the file appear in the stage.
+   * The upload is aborted if it failed.
+   *
+   * @throws IOException if failed to upload the file
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    closed = true;
+
+    try
+    {
+      if (input != null && input.position() > 0)
+      {
+        submitInput();
+      }
+
+      encoder.submit(new Callable<Void>()
+      {
+        @Override
+        public Void call() throws Exception
+        {
+          if (failure.get() == null)
+          {
+            if (encoded == null)
+            {
+              encoded = openEncoder();
+            }
+
+            // finishes the compressed and encrypted data, and uploads the
+            // last part
+            encoded.close();
+          }
+
+          return null;
+        }
+      }).get();
+
+      List<String> partIds = new ArrayList<String>(uploads.size());
+      for (Future<String> upload : uploads)
+      {
+        partIds.add(upload.get());
+      }
+
+      checkFailure();
+
+      sink.complete(partIds);
+
+      logger.debug("Uploaded {} parts of {}", partIds.size(), destFileName);
+
+      metrics.phaseCompleted(TransferProgressListener.Phase.UPLOAD,
+          destFileName, encodedSize, startTime);
+    }
+    catch (Exception ex)
+    {
+      if (ex instanceof ExecutionException && ex.getCause() instanceof Exception)
+      {
+        ex = (Exception) ex.getCause();
+      }
+
+      fail(ex);
+      discard();
+
+      throw toIOException(failure.get());
+    }
+    finally
+    {
+      encoder.shutdownNow();
+      uploader.shutdownNow();
+    }
+  }
+
+  /**
+   * Discard the data written to the stream, e.g. if the application failed
+   * to produce all of it. The stream is closed and the file does not appear
+   * in the stage.
+   */
+  public void abort()
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    closed = true;
+
+    logger.debug("Aborting stage stream to {}", destFileName);
+
+    fail(new IOException("Stream to " + destFileName + " was aborted"));
+    discard();
+  }
+
+  /**
+   * Stop the background threads and discard the uploaded parts
+   */
+  private void discard()
+  {
+    encoder.shutdownNow();
+    uploader.shutdownNow();
+
+    try
+    {
+      // parts uploaded after the upload is aborted would stay in the stage
+      encoder.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      uploader.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    sink.abort();
+  }
+
+  private void checkWritable() throws IOException
+  {
+    if (closed)
+    {
+      throw new IOException("Stream to " + destFileName + " is closed");
+    }
+
+    checkFailure();
+  }
+
+  private void checkFailure() throws IOException
+  {
+    Exception ex = failure.get();
+
+    if (ex != null)
+    {
+      throw toIOException(ex);
+    }
+  }
+
+  private IOException toIOException(Exception ex)
+  {
+    return ex instanceof IOException ? (IOException) ex :
+        new IOException("Failed to upload " + destFileName + ": " +
+            ex.getMessage(), ex);
+  }
+
+  private void fail(Exception ex)
+  {
+    if (failure.compareAndSet(null, ex))
+    {
+      logger.debug("Stage stream to {} failed: {}", destFileName,
+          ex.getMessage());
+    }
+  }
+
+  /**
+   * @return free input buffer, waiting for one if all are in use
+   */
+  private ByteBuffer takeInput() throws IOException
+  {
+    ByteBuffer buffer = freeInputs.poll();
+
+    if (buffer == null)
+    {
+      if (allocatedInputs < INPUT_BUFFERS)
+      {
+        allocatedInputs++;
+        return ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+      }
+
+      buffer = takeBuffer(freeInputs);
+    }
+
+    return buffer;
+  }
+
+  /**
+   * @return free part buffer, waiting for the upload of a part if all are
+   *         in use
+   */
+  private ByteBuffer takePart() throws IOException
+  {
+    ByteBuffer buffer = freeParts.poll();
+
+    if (buffer == null)
+    {
+      if (allocatedParts < maxPartBuffers)
+      {
+        allocatedParts++;
+        return ByteBuffer.allocate(PART_SIZE);
+      }
+
+      buffer = takeBuffer(freeParts);
+    }
+
+    return buffer;
+  }
+
+  private ByteBuffer takeBuffer(BlockingQueue<ByteBuffer> pool)
+      throws IOException
+  {
+    try
+    {
+      while (true)
+      {
+        ByteBuffer buffer = pool.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (buffer != null)
+        {
+          return buffer;
+        }
+
+        checkFailure();
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted while waiting for a buffer");
+    }
+  }
+
+  /**
+   * Hand the filled input buffer over to the encoder thread
+   */
+  private void submitInput()
+  {
+    final ByteBuffer buffer = input;
+    input = null;
+    buffer.flip();
+
+    encoder.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          if (failure.get() == null)
+          {
+            if (encoded == null)
+            {
+              encoded = openEncoder();
+            }
+
+            encoded.write(buffer.array(),
+                buffer.arrayOffset() + buffer.position(), buffer.remaining());
+          }
+        }
+        catch (Exception ex)
+        {
+          fail(ex);
+        }
+        finally
+        {
+          buffer.clear();
+          freeInputs.add(buffer);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return stream compressing and encrypting the data into part buffers
+   */
+  private OutputStream openEncoder() throws IOException
+  {
+    OutputStream out = new PartWriter();
+
+    Cipher cipher = sink.getCipher();
+    if (cipher != null)
+    {
+      out = new CipherOutputStream(out, cipher);
+    }
+
+    if (compression != null)
+    {
+      out = compression.compress(out);
+    }
+
+    return out;
+  }
+
+  /**
+   * Upload the filled part buffer on an upload thread, then return it to
+   * the pool
+   */
+  private void uploadPart() throws IOException
+  {
+    final ByteBuffer data = part;
+    part = null;
+    data.flip();
+
+    final int partNumber = uploads.size() + 1;
+
+    if (partNumber > UploadPlanner.MAX_PARTS)
+    {
+      throw new IOException("Stream to " + destFileName + " is larger than " +
+          UploadPlanner.MAX_PARTS + " parts of " + PART_SIZE + " bytes");
+    }
+
+    final long offset = encodedSize;
+    encodedSize += data.remaining();
+
+    uploads.add(uploader.submit(new Callable<String>()
+    {
+      @Override
+      public String call() throws Exception
+      {
+        try
+        {
+          return sink.writePart(partNumber, offset, data);
+        }
+        catch (Exception ex)
+        {
+          fail(ex);
+          throw ex;
+        }
+        finally
+        {
+          data.clear();
+          freeParts.add(data);
+        }
+      }
+    }));
+  }
+}
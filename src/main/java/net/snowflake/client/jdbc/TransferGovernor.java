@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide limits on the file transfers of all connections.
+ *
+ * Every request that moves file data to or from a stage, such as a part of
+ * a multipart upload or a range of a download, holds a transfer slot while
+ * it runs, and the bytes it moves are counted against a bandwidth limit.
+ * The thread pools of the PUT and GET commands are not limited, but their
+ * threads wait here instead of opening more connections than allowed.
+ *
+ * Transfers have a priority. Bulk transfers, such as the uploads of the
+ * loader, only start when no interactive transfer is waiting, and never
+ * take more than BULK_SHARE of the slots, so that interactive commands are
+ * not queued behind a long bulk load.
+ *
+ * The limits are read from the system properties
+ * net.snowflake.jdbc.maxConcurrentTransfers and
+ * net.snowflake.jdbc.maxTransferBytesPerSecond, and can be changed at any
+ * time. Both are unlimited by default. The number of active transfers, the
+ * transfer rate and the time spent waiting are registered as metrics.
+ */
+public final class TransferGovernor
+{
+  static final SFLogger logger =
+      SFLoggerFactory.getLogger(TransferGovernor.class);
+
+  /**
+   * Priority of a transfer
+   */
+  public enum Priority
+  {
+    INTERACTIVE,
+    BULK
+  }
+
+  static final String MAX_CONCURRENT_TRANSFERS_PROPERTY =
+      "net.snowflake.jdbc.maxConcurrentTransfers";
+
+  static final String MAX_BYTES_PER_SECOND_PROPERTY =
+      "net.snowflake.jdbc.maxTransferBytesPerSecond";
+
+  // max share of the slots taken by bulk transfers
+  private static final double BULK_SHARE = 0.75;
+
+  private static final TransferGovernor instance = new TransferGovernor(
+      (int) getLimit(MAX_CONCURRENT_TRANSFERS_PROPERTY),
+      getLimit(MAX_BYTES_PER_SECOND_PROPERTY));
+
+  // 0 if unlimited
+  private int maxConcurrentTransfers;
+  private long maxBytesPerSecond;
+
+  // active and waiting transfers by priority
+  private final int[] activeTransfers = new int[Priority.values().length];
+  private final int[] waitingTransfers = new int[Priority.values().length];
+
+  // bytes that can be transferred without waiting, negative if transfers
+  // have to wait for the bytes transferred ahead of them
+  private double availableBytes = 0;
+  private long lastRefillNanos = System.nanoTime();
+
+  private final Meter bytesTransferred;
+  private final Timer[] slotWaits = new Timer[Priority.values().length];
+  private final Timer bandwidthWaits;
+
+  private TransferGovernor(int maxConcurrentTransfers, long maxBytesPerSecond)
+  {
+    this.maxConcurrentTransfers = maxConcurrentTransfers;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+
+    Metrics.newGauge(TransferGovernor.class, "active-transfers",
+        new Gauge<Integer>()
+        {
+          @Override
+          public Integer value()
+          {
+            return getActiveTransfers();
+          }
+        });
+
+    bytesTransferred = Metrics.newMeter(TransferGovernor.class,
+        "bytes-transferred", "bytes", TimeUnit.SECONDS);
+
+    for (Priority priority : Priority.values())
+    {
+      slotWaits[priority.ordinal()] = Metrics.newTimer(TransferGovernor.class,
+          "slot-wait-" + priority.name().toLowerCase(),
+          TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    }
+
+    bandwidthWaits = Metrics.newTimer(TransferGovernor.class,
+        "bandwidth-wait", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+  }
+
+  private static long getLimit(String propertyName)
+  {
+    String value = System.getProperty(propertyName);
+
+    if (value == null)
+    {
+      return 0;
+    }
+
+    try
+    {
+      return Math.max(Long.parseLong(value.trim()), 0);
+    }
+    catch (NumberFormatException ex)
+    {
+      logger.warn("Ignoring invalid value of {}: {}", propertyName, value);
+      return 0;
+    }
+  }
+
+  /**
+   * @return the governor of the transfers of the process
+   */
+  static TransferGovernor getInstance()
+  {
+    return instance;
+  }
+
+  /**
+   * Set the max number of concurrent transfers of the process
+   *
+   * @param maxConcurrentTransfers max number of transfers, 0 if unlimited
+   */
+  public static void setMaxConcurrentTransfers(int maxConcurrentTransfers)
+  {
+    synchronized (instance)
+    {
+      instance.maxConcurrentTransfers = Math.max(maxConcurrentTransfers, 0);
+      instance.notifyAll();
+    }
+  }
+
+  /**
+   * Set the max transfer rate of the process
+   *
+   * @param maxBytesPerSecond max number of bytes transferred per second,
+   *                          0 if unlimited
+   */
+  public static void setMaxBytesPerSecond(long maxBytesPerSecond)
+  {
+    synchronized (instance)
+    {
+      instance.maxBytesPerSecond = Math.max(maxBytesPerSecond, 0);
+      instance.availableBytes = 0;
+      instance.lastRefillNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return number of transfers running in the process
+   */
+  public static int getActiveTransfers()
+  {
+    synchronized (instance)
+    {
+      int count = 0;
+      for (int active : instance.activeTransfers)
+      {
+        count += active;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Wait for a transfer slot. Every call must be followed by a call to
+   * release once the transfer is done.
+   *
+   * @param priority priority of the transfer
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void acquire(Priority priority) throws InterruptedException
+  {
+    long startTime = System.nanoTime();
+
+    synchronized (this)
+    {
+      waitingTransfers[priority.ordinal()]++;
+
+      try
+      {
+        while (!canStart(priority))
+        {
+          wait();
+        }
+      }
+      finally
+      {
+        waitingTransfers[priority.ordinal()]--;
+
+        // bulk transfers may be waiting for this one to start
+        notifyAll();
+      }
+
+      activeTransfers[priority.ordinal()]++;
+    }
+
+    slotWaits[priority.ordinal()].update(System.nanoTime() - startTime,
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Release the slot of a transfer
+   *
+   * @param priority priority the slot was acquired with
+   */
+  synchronized void release(Priority priority)
+  {
+    activeTransfers[priority.ordinal()]--;
+    notifyAll();
+  }
+
+  private boolean canStart(Priority priority)
+  {
+    if (maxConcurrentTransfers <= 0)
+    {
+      return true;
+    }
+
+    int active = 0;
+    for (int count : activeTransfers)
+    {
+      active += count;
+    }
+
+    if (active >= maxConcurrentTransfers)
+    {
+      return false;
+    }
+
+    if (priority == Priority.BULK)
+    {
+      return waitingTransfers[Priority.INTERACTIVE.ordinal()] == 0 &&
+          activeTransfers[Priority.BULK.ordinal()] <
+              Math.max(1, (int) (maxConcurrentTransfers * BULK_SHARE));
+    }
+
+    return true;
+  }
+
+  /**
+   * Count transferred bytes, and wait until the transfer rate is within
+   * the limit
+   *
+   * @param bytes number of bytes transferred or about to be transferred
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void consume(long bytes) throws InterruptedException
+  {
+    bytesTransferred.mark(bytes);
+
+    long waitNanos;
+
+    synchronized (this)
+    {
+      if (maxBytesPerSecond <= 0)
+      {
+        return;
+      }
+
+      // refill up to a second of transfer
+      long now = System.nanoTime();
+      availableBytes = Math.min(maxBytesPerSecond, availableBytes +
+          (now - lastRefillNanos) * (double) maxBytesPerSecond / 1e9);
+      lastRefillNanos = now;
+
+      availableBytes -= bytes;
+
+      waitNanos = availableBytes >= 0 ? 0 :
+          (long) (-availableBytes * 1e9 / maxBytesPerSecond);
+    }
+
+    if (waitNanos > 0)
+    {
+      bandwidthWaits.update(waitNanos, TimeUnit.NANOSECONDS);
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * @return true if transfers are limited by a bandwidth limit
+   */
+  synchronized boolean isLimitingBandwidth()
+  {
+    return maxBytesPerSecond > 0;
+  }
+
+  /**
+   * @param in stream of transferred data
+   * @return stream that counts the bytes read from the given stream
+   *         against the bandwidth limit
+   */
+  InputStream limit(InputStream in)
+  {
+    return new FilterInputStream(in)
+    {
+      @Override
+      public int read() throws IOException
+      {
+        int b = super.read();
+        if (b >= 0)
+        {
+          consumeRead(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        int bytesRead = super.read(b, off, len);
+        if (bytesRead > 0)
+        {
+          consumeRead(bytesRead);
+        }
+        return bytesRead;
+      }
+
+      private void consumeRead(int bytesRead) throws InterruptedIOException
+      {
+        try
+        {
+          consume(bytesRead);
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while throttled");
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+import net.snowflake.client.jdbc.TransferProgressListener.Phase;
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the phases of the file transfers of a command, as metrics of the
+ * process and as events of the progress listener of the command, if any.
+ *
+ * For every phase the process has a timer of its durations and a meter of
+ * the bytes it processed. The throughput of the uploads and downloads of
+ * single files is recorded in bytes per second, which shows if the network
+ * is saturated by the parallel transfers of a command.
+ */
+final class TransferMetrics
+{
+  static final SFLogger logger =
+      SFLoggerFactory.getLogger(TransferMetrics.class);
+
+  private static final Timer[] phaseTimers =
+      new Timer[Phase.values().length];
+
+  private static final Meter[] phaseBytes =
+      new Meter[Phase.values().length];
+
+  private static final Histogram uploadThroughput = Metrics.newHistogram(
+      TransferMetrics.class, "upload-throughput", true);
+
+  private static final Histogram downloadThroughput = Metrics.newHistogram(
+      TransferMetrics.class, "download-throughput", true);
+
+  static
+  {
+    for (Phase phase : Phase.values())
+    {
+      String name = phase.name().toLowerCase();
+
+      phaseTimers[phase.ordinal()] = Metrics.newTimer(TransferMetrics.class,
+          name + "-time", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
+      phaseBytes[phase.ordinal()] = Metrics.newMeter(TransferMetrics.class,
+          name + "-bytes", "bytes", TimeUnit.SECONDS);
+    }
+  }
+
+  // null if no listener
+  private final TransferProgressListener listener;
+
+  /**
+   * @param listener progress listener of the command, or null
+   */
+  TransferMetrics(TransferProgressListener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * @return start time of a phase to pass to phaseCompleted
+   */
+  static long start()
+  {
+    return System.nanoTime();
+  }
+
+  /**
+   * Record a completed phase
+   *
+   * @param phase completed phase
+   * @param fileName source file name, null for the phases of the command
+   * @param bytes number of bytes processed by the phase
+   * @param startTime start time of the phase returned by start
+   */
+  void phaseCompleted(Phase phase, String fileName, long bytes,
+                      long startTime)
+  {
+    long nanos = System.nanoTime() - startTime;
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+    phaseTimers[phase.ordinal()].update(nanos, TimeUnit.NANOSECONDS);
+
+    if (bytes > 0)
+    {
+      phaseBytes[phase.ordinal()].mark(bytes);
+
+      if (nanos > 0 && (phase == Phase.UPLOAD || phase == Phase.DOWNLOAD))
+      {
+        (phase == Phase.UPLOAD ? uploadThroughput : downloadThroughput)
+            .update((long) (bytes * 1e9 / nanos));
+      }
+    }
+
+    logger.debug("{} of {} done in {} ms, {} bytes",
+        new Object[]{phase, fileName == null ? "command" : fileName, millis,
+            bytes});
+
+    if (listener != null)
+    {
+      try
+      {
+        listener.phaseCompleted(phase, fileName, bytes, millis);
+      }
+      catch (RuntimeException ex)
+      {
+        logger.warn("Transfer progress listener failed: {}", ex.getMessage());
+      }
+    }
+  }
+}
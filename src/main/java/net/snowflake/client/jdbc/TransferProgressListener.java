@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+/**
+ * Listener of the progress of PUT and GET commands.
+ *
+ * The listener is told when a phase of a command, or of a file of a
+ * command, is completed, with the number of bytes processed by the phase
+ * and its duration. This tells whether listing, compression, hashing or the
+ * network is the bottleneck of the transfers. The same numbers are
+ * registered as metrics.
+ *
+ * A listener is set on a connection with
+ * SnowflakeConnectionV1.setTransferProgressListener, and is called by the
+ * threads of the commands, concurrently if files are transferred in
+ * parallel. It must be thread safe and return quickly. Exceptions thrown by
+ * the listener are logged and ignored.
+ */
+public interface TransferProgressListener
+{
+  /**
+   * Phases of a file transfer
+   */
+  enum Phase
+  {
+    // expansion of the local files of a PUT, or listing of the sizes of
+    // the stage files of a GET
+    LIST,
+
+    // comparison of the files with the existing files of the destination,
+    // for commands without overwrite
+    FILTER,
+
+    // compression of a file, including the digest of the compressed data
+    COMPRESS,
+
+    // digest of a file that is not compressed
+    DIGEST,
+
+    // upload of a file to the stage
+    UPLOAD,
+
+    // download of a file from the stage
+    DOWNLOAD
+  }
+
+  /**
+   * Called when a phase is completed
+   *
+   * @param phase completed phase
+   * @param fileName source file name for the phases of a file, null for
+   *                 the LIST and FILTER phases of a command
+   * @param bytes number of bytes processed by the phase: the size of the
+   *              listed files for LIST, the size of the local files skipped
+   *              by a PUT for FILTER, the uncompressed size for COMPRESS and
+   *              DIGEST, and the size transferred for UPLOAD and DOWNLOAD
+   * @param millis duration of the phase in milliseconds
+   */
+  void phaseCompleted(Phase phase, String fileName, long bytes, long millis);
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checkpoint of a multipart upload, which allows a failed upload to resume
+ * with the parts that are not uploaded yet.
+ *
+ * A checkpoint holds the upload id, the part size, the encryption metadata
+ * of the object and the ETags of the completed parts. It is kept in memory
+ * for the retries of an upload, and saved to a checkpoint directory after
+ * every part if one is configured, so that a later PUT of the same file can
+ * resume the upload. A saved checkpoint is only used for the same bucket,
+ * key and local file with the same size, modification time and digest, and
+ * expires after MAX_AGE_MILLIS. Other saved checkpoints are loaded as stale
+ * so that their uploads are aborted before they are deleted.
+ *
+ * The encryption key in a checkpoint is the file key encrypted with the
+ * stage master key, as in the object metadata, so a checkpoint does not
+ * reveal more than the object itself.
+ */
+final class UploadCheckpoint
+{
+  static final SFLogger logger =
+      SFLoggerFactory.getLogger(UploadCheckpoint.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  // checkpoints older than this are not resumed, since incomplete uploads
+  // may have been removed from the stage by then
+  private static final long MAX_AGE_MILLIS = 3L * 24 * 3600 * 1000;
+
+  // file the checkpoint is saved to, null if only kept in memory
+  private final File file;
+
+  final String bucketName;
+  final String key;
+  final String uploadId;
+  final long partSize;
+
+  // encryption metadata of the object, null if not encrypted
+  final Map<String, String> encryptionMetadata;
+
+  // identity of the source of the upload
+  private final String sourcePath;
+  private final long sourceSize;
+  private final long sourceModified;
+  private final String digest;
+
+  private final long createdTime;
+
+  // true if the checkpoint cannot be resumed and its upload must be aborted
+  private boolean stale = false;
+
+  // part number to ETag of the completed parts
+  private final Map<Integer, String> partETags =
+      new TreeMap<Integer, String>();
+
+  private UploadCheckpoint(File file, String bucketName, String key,
+                           String uploadId, long partSize,
+                           Map<String, String> encryptionMetadata,
+                           String sourcePath, long sourceSize,
+                           long sourceModified, String digest,
+                           long createdTime)
+  {
+    this.file = file;
+    this.bucketName = bucketName;
+    this.key = key;
+    this.uploadId = uploadId;
+    this.partSize = partSize;
+    this.encryptionMetadata = encryptionMetadata;
+    this.sourcePath = sourcePath;
+    this.sourceSize = sourceSize;
+    this.sourceModified = sourceModified;
+    this.digest = digest;
+    this.createdTime = createdTime;
+  }
+
+  /**
+   * Create the checkpoint of a new multipart upload
+   *
+   * @param directory checkpoint directory, null to keep it in memory only
+   * @param bucketName bucket name
+   * @param key object key
+   * @param uploadId multipart upload id
+   * @param partSize part size
+   * @param encryptionMetadata encryption metadata, null if not encrypted
+   * @param sourceFile local file uploaded, null if not uploading a file
+   * @param digest digest of the uploaded data, or null
+   * @return checkpoint
+   */
+  static UploadCheckpoint create(File directory,
+                                 String bucketName,
+                                 String key,
+                                 String uploadId,
+                                 long partSize,
+                                 Map<String, String> encryptionMetadata,
+                                 File sourceFile,
+                                 String digest)
+  {
+    UploadCheckpoint checkpoint = new UploadCheckpoint(
+        directory == null || sourceFile == null ? null :
+            getFile(directory, bucketName, key, sourceFile),
+        bucketName, key, uploadId, partSize, encryptionMetadata,
+        sourceFile == null ? null : sourceFile.getAbsolutePath(),
+        sourceFile == null ? -1 : sourceFile.length(),
+        sourceFile == null ? -1 : sourceFile.lastModified(),
+        digest, System.currentTimeMillis());
+
+    checkpoint.save();
+
+    return checkpoint;
+  }
+
+  /**
+   * Load the saved checkpoint of an upload of a local file
+   *
+   * @param directory checkpoint directory
+   * @param bucketName bucket name
+   * @param key object key
+   * @param sourceFile local file to upload
+   * @param digest digest of the data to upload, or null
+   * @return checkpoint, which is stale if it is expired or for another
+   *         version of the file, null if there is no readable checkpoint
+   */
+  static UploadCheckpoint load(File directory,
+                               String bucketName,
+                               String key,
+                               File sourceFile,
+                               String digest)
+  {
+    File file = getFile(directory, bucketName, key, sourceFile);
+
+    if (!file.exists())
+    {
+      return null;
+    }
+
+    try
+    {
+      JsonNode rootNode = mapper.readTree(file);
+
+      Map<String, String> encryptionMetadata = null;
+      if (rootNode.has("encryption"))
+      {
+        encryptionMetadata = new TreeMap<String, String>();
+
+        Iterator<Map.Entry<String, JsonNode>> fields =
+            rootNode.path("encryption").fields();
+        while (fields.hasNext())
+        {
+          Map.Entry<String, JsonNode> field = fields.next();
+          encryptionMetadata.put(field.getKey(), field.getValue().asText());
+        }
+      }
+
+      UploadCheckpoint checkpoint = new UploadCheckpoint(file,
+          rootNode.path("bucket").asText(),
+          rootNode.path("key").asText(),
+          rootNode.path("uploadId").asText(),
+          rootNode.path("partSize").asLong(),
+          encryptionMetadata,
+          rootNode.path("sourcePath").asText(),
+          rootNode.path("sourceSize").asLong(),
+          rootNode.path("sourceModified").asLong(),
+          rootNode.path("digest").isTextual() ?
+              rootNode.path("digest").asText() : null,
+          rootNode.path("created").asLong());
+
+      Iterator<Map.Entry<String, JsonNode>> parts =
+          rootNode.path("parts").fields();
+      while (parts.hasNext())
+      {
+        Map.Entry<String, JsonNode> part = parts.next();
+        checkpoint.partETags.put(Integer.valueOf(part.getKey()),
+            part.getValue().asText());
+      }
+
+      if (!checkpoint.bucketName.equals(bucketName) ||
+          !checkpoint.key.equals(key) ||
+          !checkpoint.sourcePath.equals(sourceFile.getAbsolutePath()) ||
+          checkpoint.sourceSize != sourceFile.length() ||
+          checkpoint.sourceModified != sourceFile.lastModified() ||
+          (checkpoint.digest == null ?
+              digest != null : !checkpoint.digest.equals(digest)))
+      {
+        logger.debug("Checkpoint {} is for another version of {}",
+            file, sourceFile);
+
+        checkpoint.stale = true;
+        return checkpoint;
+      }
+
+      if (checkpoint.createdTime < System.currentTimeMillis() - MAX_AGE_MILLIS)
+      {
+        logger.debug("Checkpoint {} expired", file);
+
+        checkpoint.stale = true;
+        return checkpoint;
+      }
+
+      logger.debug("Loaded checkpoint of upload {} with {} completed parts",
+          checkpoint.uploadId, checkpoint.partETags.size());
+
+      return checkpoint;
+    }
+    catch (IOException | RuntimeException ex)
+    {
+      logger.warn("Ignoring unreadable upload checkpoint {}: {}",
+          file, ex.getMessage());
+
+      return null;
+    }
+  }
+
+  /**
+   * Record a completed part and save the checkpoint
+   *
+   * @param partNumber part number
+   * @param eTag ETag of the part
+   */
+  synchronized void addPart(int partNumber, String eTag)
+  {
+    partETags.put(partNumber, eTag);
+    save();
+  }
+
+  /**
+   * @return true if the checkpoint is saved and can be resumed by another
+   *         PUT
+   */
+  boolean isPersistent()
+  {
+    return file != null;
+  }
+
+  /**
+   * @return true if the checkpoint is expired or for another version of the
+   *         file, in which case its upload must be aborted, not resumed
+   */
+  boolean isStale()
+  {
+    return stale;
+  }
+
+  /**
+   * Delete the saved checkpoint
+   */
+  void delete()
+  {
+    if (file != null && file.exists() && !file.delete())
+    {
+      logger.debug("Failed to delete upload checkpoint {}", file);
+    }
+  }
+
+  /**
+   * Save the checkpoint if it is persistent. Failures are only logged since
+   * at worst the upload cannot be resumed.
+   */
+  private synchronized void save()
+  {
+    if (file == null)
+    {
+      return;
+    }
+
+    ObjectNode rootNode = mapper.createObjectNode();
+    rootNode.put("bucket", bucketName);
+    rootNode.put("key", key);
+    rootNode.put("uploadId", uploadId);
+    rootNode.put("partSize", partSize);
+    rootNode.put("sourcePath", sourcePath);
+    rootNode.put("sourceSize", sourceSize);
+    rootNode.put("sourceModified", sourceModified);
+    rootNode.put("digest", digest);
+    rootNode.put("created", createdTime);
+
+    if (encryptionMetadata != null)
+    {
+      ObjectNode encryptionNode = rootNode.putObject("encryption");
+      for (Map.Entry<String, String> entry : encryptionMetadata.entrySet())
+      {
+        encryptionNode.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    ObjectNode partsNode = rootNode.putObject("parts");
+    for (Map.Entry<Integer, String> part : partETags.entrySet())
+    {
+      partsNode.put(String.valueOf(part.getKey()), part.getValue());
+    }
+
+    File tempFile = null;
+
+    try
+    {
+      File dir = file.getParentFile();
+      if (!dir.exists() && !dir.mkdirs())
+      {
+        throw new IOException("Failed to create directory " + dir);
+      }
+
+      // write a temp file and rename it so that the checkpoint is never
+      // partially written
+      tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+      mapper.writeValue(tempFile, rootNode);
+
+      Files.move(tempFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException ex)
+    {
+      logger.warn("Failed to save upload checkpoint {}: {}",
+          file, ex.getMessage());
+
+      if (tempFile != null && tempFile.exists() && !tempFile.delete())
+      {
+        logger.debug("Failed to delete {}", tempFile);
+      }
+    }
+  }
+
+  private static File getFile(File directory, String bucketName, String key,
+                              File sourceFile)
+  {
+    return new File(directory, DigestUtils.sha256Hex(bucketName + "/" + key +
+        "\u0000" + sourceFile.getAbsolutePath()) + ".json");
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import net.snowflake.client.jdbc.SnowflakeFileTransferAgent.FileCompressionType;
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+import net.snowflake.common.core.SqlState;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of uploaded files with a codec and a level.
+ *
+ * Codecs are looked up by the name of their compression type among the
+ * built-in GZIP and DEFLATE codecs and the codecs found on the class path
+ * by the ServiceLoader, which take precedence.
+ */
+final class UploadCompression
+{
+  static final SFLogger logger =
+      SFLoggerFactory.getLogger(UploadCompression.class);
+
+  static final String DEFAULT_CODEC = "gzip";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Built-in codec of java.util.zip
+   */
+  private static class DeflaterCodec implements UploadCompressionCodec
+  {
+    private final FileCompressionType compressionType;
+
+    DeflaterCodec(FileCompressionType compressionType)
+    {
+      this.compressionType = compressionType;
+    }
+
+    @Override
+    public FileCompressionType getCompressionType()
+    {
+      return compressionType;
+    }
+
+    @Override
+    public boolean isConcatenable()
+    {
+      // concatenated gzip members are a valid gzip stream, concatenated
+      // zlib streams are not
+      return compressionType == FileCompressionType.GZIP;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out, final int level)
+        throws IOException
+    {
+      if (compressionType == FileCompressionType.GZIP)
+      {
+        return new GZIPOutputStream(out, BUFFER_SIZE)
+        {
+          {
+            def.setLevel(level);
+          }
+        };
+      }
+
+      final Deflater deflater = new Deflater(level);
+
+      return new DeflaterOutputStream(out, deflater, BUFFER_SIZE)
+      {
+        @Override
+        public void close() throws IOException
+        {
+          try
+          {
+            super.close();
+          }
+          finally
+          {
+            // the deflater is not released by the stream if it is not the
+            // default one
+            deflater.end();
+          }
+        }
+      };
+    }
+  }
+
+  private static Map<String, UploadCompressionCodec> codecs;
+
+  private final UploadCompressionCodec codec;
+
+  private final int level;
+
+  private UploadCompression(UploadCompressionCodec codec, int level)
+  {
+    this.codec = codec;
+    this.level = level;
+  }
+
+  /**
+   * Get the compression with a codec and a level
+   *
+   * @param codecName name of the compression type of the codec, e.g. gzip
+   * @param level compression level, -1 for the default level of the codec
+   * @return compression
+   * @throws SnowflakeSQLException if the codec is not found or its
+   *                               compression type is not supported, or
+   *                               if the level is not valid
+   */
+  static UploadCompression get(String codecName, int level)
+      throws SnowflakeSQLException
+  {
+    UploadCompressionCodec codec =
+        getCodecs().get(codecName.trim().toUpperCase());
+
+    if (codec == null)
+    {
+      throw new SnowflakeSQLException(SqlState.FEATURE_NOT_SUPPORTED,
+          ErrorCode.COMPRESSION_TYPE_NOT_KNOWN.getMessageCode(), codecName);
+    }
+
+    if (!codec.getCompressionType().isSupported())
+    {
+      throw new SnowflakeSQLException(SqlState.FEATURE_NOT_SUPPORTED,
+          ErrorCode.COMPRESSION_TYPE_NOT_SUPPORTED.getMessageCode(),
+          codec.getCompressionType().name());
+    }
+
+    if (level < -1 ||
+        (codec instanceof DeflaterCodec && level > Deflater.BEST_COMPRESSION))
+    {
+      throw new SnowflakeSQLException(SqlState.INVALID_PARAMETER_VALUE,
+          ErrorCode.INVALID_PARAMETER_TYPE.getMessageCode(), level,
+          "compression level");
+    }
+
+    return new UploadCompression(codec, level);
+  }
+
+  private static synchronized Map<String, UploadCompressionCodec> getCodecs()
+  {
+    if (codecs == null)
+    {
+      codecs = new LinkedHashMap<String, UploadCompressionCodec>();
+
+      codecs.put(FileCompressionType.GZIP.name(),
+          new DeflaterCodec(FileCompressionType.GZIP));
+      codecs.put(FileCompressionType.DEFLATE.name(),
+          new DeflaterCodec(FileCompressionType.DEFLATE));
+
+      Iterator<UploadCompressionCodec> loaded = ServiceLoader.load(
+          UploadCompressionCodec.class,
+          UploadCompression.class.getClassLoader()).iterator();
+
+      while (true)
+      {
+        UploadCompressionCodec codec;
+
+        try
+        {
+          if (!loaded.hasNext())
+          {
+            break;
+          }
+
+          codec = loaded.next();
+        }
+        catch (ServiceConfigurationError ex)
+        {
+          logger.warn("Failed to load compression codec: {}",
+              ex.getMessage());
+          continue;
+        }
+
+        logger.debug("Loaded {} compression codec {}",
+            codec.getCompressionType(), codec.getClass().getName());
+
+        codecs.put(codec.getCompressionType().name(), codec);
+      }
+    }
+
+    return codecs;
+  }
+
+  /**
+   * @return compression type of the compressed data
+   */
+  FileCompressionType getCompressionType()
+  {
+    return codec.getCompressionType();
+  }
+
+  /**
+   * @return true if big files can be compressed in blocks
+   */
+  boolean isConcatenable()
+  {
+    return codec.isConcatenable();
+  }
+
+  /**
+   * @param out stream the compressed data is written to
+   * @return stream compressing the data written to it
+   * @throws IOException if failed to write to the output stream
+   */
+  OutputStream compress(OutputStream out) throws IOException
+  {
+    return codec.compress(out, level);
+  }
+
+  /**
+   * @return name of the codec and the level, which identifies the
+   *         compressed content of a file, e.g. for caching its digest
+   */
+  String getName()
+  {
+    return codec.getCompressionType().name().toLowerCase() +
+        (level < 0 ? "" : String.valueOf(level));
+  }
+
+  @Override
+  public String toString()
+  {
+    return getName();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Codec compressing the files uploaded by PUT with auto compression.
+ *
+ * GZIP and DEFLATE are built in. Other codecs, e.g. a ZSTD codec backed by a
+ * native library, are plugged in with the ServiceLoader mechanism: the
+ * implementation class is listed in a
+ * META-INF/services/net.snowflake.client.jdbc.UploadCompressionCodec file of
+ * its jar, and is selected by the name of its compression type with the
+ * putCompressionCodec connection property, or for the PUT commands of a
+ * single statement with set-sf-property putCompressionCodec followed by the
+ * name. Only GZIP and DEFLATE ship with the driver, so without a plugged in
+ * codec the fastest compression is a low level, e.g. putCompressionLevel 1.
+ *
+ * The compressed content of a file must be the same every time the file is
+ * compressed with the same level, since PUT compares the digest of the
+ * compressed content with the digest of existing files.
+ */
+public interface UploadCompressionCodec
+{
+  /**
+   * @return compression type of the compressed data, which gives the file
+   *         extension and must be supported by the stage
+   */
+  SnowflakeFileTransferAgent.FileCompressionType getCompressionType();
+
+  /**
+   * @return true if the concatenation of compressed streams is a valid
+   *         compressed stream of the concatenated data, which allows big
+   *         files to be compressed in blocks by several threads
+   */
+  boolean isConcatenable();
+
+  /**
+   * Create a stream compressing the data written to it. Closing the stream
+   * must finish the compressed data and close the output stream.
+   *
+   * @param out stream the compressed data is written to
+   * @param level compression level, -1 for the default level of the codec
+   * @return compressing stream
+   * @throws IOException if failed to write to the output stream
+   */
+  OutputStream compress(OutputStream out, int level) throws IOException;
+}
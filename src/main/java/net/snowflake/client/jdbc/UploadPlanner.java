@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import net.snowflake.client.log.SFLogger;
+import net.snowflake.client.log.SFLoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans the upload of the files of a PUT command.
+ *
+ * All files are uploaded from a single queue by a bounded number of threads,
+ * largest first, so that small files are uploaded next to the big files
+ * instead of waiting for them, and no big file is left running alone at the
+ * end. Each file gets a share of the parallel budget for its compression and
+ * part uploads in proportion to its estimated cost, which accounts for its
+ * size and its number of parts, and a share of the memory budget for
+ * buffering its compressed data in the same proportion.
+ *
+ * The part size of multipart uploads is chosen from the upload throughput
+ * measured by the agent, so that a part takes a few seconds to upload
+ * while a file does not exceed the S3 limit on the number of parts.
+ */
+final class UploadPlanner
+{
+  static final SFLogger logger = SFLoggerFactory.getLogger(UploadPlanner.class);
+
+  // S3 limits of multipart uploads
+  static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+  static final int MAX_PARTS = 10000;
+
+  static final int MAX_PART_SIZE = 512 * 1024 * 1024;
+
+  // objects smaller than this are uploaded with a single request
+  static final int MIN_MULTIPART_THRESHOLD = 16 * 1024 * 1024;
+
+  // min memory for buffering the compressed data of a file
+  private static final long MIN_BUFFER_SIZE = 16 * 1024 * 1024;
+
+  // time it should take to upload a part
+  private static final double TARGET_PART_SECONDS = 4.0;
+
+  // fixed cost of a request in seconds
+  private static final double REQUEST_SECONDS = 0.1;
+
+  // throughput of a single upload thread in bytes per second until
+  // uploads have been measured
+  private static final double DEFAULT_THROUGHPUT = 8.0 * 1024 * 1024;
+
+  // weight of the last measurement in the throughput estimate
+  private static final double SMOOTHING = 0.3;
+
+  /**
+   * Estimated throughput of a single upload thread, refined with the
+   * uploads that have been measured
+   */
+  static final class ThroughputEstimate
+  {
+    private double threadThroughput = DEFAULT_THROUGHPUT;
+
+    /**
+     * Record an upload to refine the throughput estimate. Uploads too small
+     * to be dominated by the transfer time are ignored.
+     *
+     * @param bytes number of bytes uploaded
+     * @param millis time of the upload in milliseconds
+     * @param threads number of threads used by the upload
+     */
+    synchronized void recordUpload(long bytes, long millis, int threads)
+    {
+      if (bytes < MIN_PART_SIZE || millis <= 0)
+      {
+        return;
+      }
+
+      double measured = bytes * 1000.0 / millis / Math.max(threads, 1);
+
+      threadThroughput = SMOOTHING * measured +
+          (1 - SMOOTHING) * threadThroughput;
+
+      logger.debug("Upload of {} bytes took {} ms, estimated throughput " +
+          "per thread: {} bytes/s", bytes, millis, (long) threadThroughput);
+    }
+
+    /**
+     * @return estimated throughput of a single upload thread in bytes per
+     *         second
+     */
+    synchronized double getThreadThroughput()
+    {
+      return threadThroughput;
+    }
+  }
+
+  /**
+   * Upload of a file in the plan
+   */
+  static final class FilePlan
+  {
+    final String fileName;
+    final long size;
+
+    // number of threads for compressing and uploading the file
+    final int parallel;
+
+    // max size of compressed data buffered in memory
+    final long maxBufferSize;
+
+    FilePlan(String fileName, long size, int parallel, long maxBufferSize)
+    {
+      this.fileName = fileName;
+      this.size = size;
+      this.parallel = parallel;
+      this.maxBufferSize = maxBufferSize;
+    }
+  }
+
+  private final int parallel;
+
+  private final long memoryBudget;
+
+  private final double throughput;
+
+  private long partSize = MIN_PART_SIZE;
+
+  /**
+   * @param parallel number of threads of the PUT command
+   * @param memoryBudget memory for buffering compressed data
+   * @param estimate throughput estimate of the agent
+   */
+  UploadPlanner(int parallel, long memoryBudget, ThroughputEstimate estimate)
+  {
+    this.parallel = Math.max(parallel, 1);
+    this.memoryBudget = memoryBudget;
+    this.throughput = estimate.getThreadThroughput();
+  }
+
+  /**
+   * Plan the upload of the given files
+   *
+   * @param fileSizes map from file name to file size
+   * @return files in the order they should be uploaded, with the number of
+   *         threads each should use
+   */
+  List<FilePlan> plan(Map<String, Long> fileSizes)
+  {
+    long maxSize = 0;
+    for (Long size : fileSizes.values())
+    {
+      maxSize = Math.max(maxSize, size);
+    }
+
+    // parts take TARGET_PART_SECONDS at the throughput of a thread, within
+    // the S3 limits for the biggest file
+    partSize = (long) (throughput * TARGET_PART_SECONDS);
+    partSize = Math.max(partSize, (maxSize + MAX_PARTS - 1) / MAX_PARTS);
+    partSize = Math.min(Math.max(partSize, MIN_PART_SIZE), MAX_PART_SIZE);
+
+    // round up to a whole MB
+    partSize = (partSize + (1 << 20) - 1) & ~((1L << 20) - 1);
+
+    double totalCost = 0;
+    for (Long size : fileSizes.values())
+    {
+      totalCost += cost(size);
+    }
+
+    List<FilePlan> plans = new ArrayList<FilePlan>(fileSizes.size());
+
+    for (Map.Entry<String, Long> file : fileSizes.entrySet())
+    {
+      long size = file.getValue();
+
+      // share of the budget in proportion to the cost of the file, but
+      // no more threads than parts
+      int fileParallel = (int) Math.round(parallel * cost(size) / totalCost);
+      fileParallel = (int) Math.min(fileParallel, getPartCount(size));
+      fileParallel = Math.min(Math.max(fileParallel, 1), parallel);
+
+      plans.add(new FilePlan(file.getKey(), size, fileParallel,
+          Math.max(MIN_BUFFER_SIZE, memoryBudget * fileParallel / parallel)));
+    }
+
+    Collections.sort(plans, new Comparator<FilePlan>()
+    {
+      @Override
+      public int compare(FilePlan plan1, FilePlan plan2)
+      {
+        return Long.compare(plan2.size, plan1.size);
+      }
+    });
+
+    logger.debug("Planned upload of {} files with {} threads, part size: {}",
+        plans.size(), parallel, partSize);
+
+    return plans;
+  }
+
+  /**
+   * @return part size of multipart uploads, valid after planning
+   */
+  long getPartSize()
+  {
+    return partSize;
+  }
+
+  /**
+   * @return size above which files are uploaded in parts, valid after
+   *         planning
+   */
+  long getMultipartThreshold()
+  {
+    return Math.max(MIN_MULTIPART_THRESHOLD, partSize);
+  }
+
+  private long getPartCount(long size)
+  {
+    return size < getMultipartThreshold() ? 1 :
+        (size + partSize - 1) / partSize;
+  }
+
+  /**
+   * @param size file size
+   * @return estimated time to upload the file with a single thread
+   */
+  private double cost(long size)
+  {
+    return size / throughput + getPartCount(size) * REQUEST_SECONDS;
+  }
+}
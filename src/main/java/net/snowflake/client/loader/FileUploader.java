@@ -4,8 +4,10 @@
 
 package net.snowflake.client.loader;
 
+import net.snowflake.client.core.SFSession;
 import net.snowflake.client.jdbc.SnowflakeConnectionV1;
 import net.snowflake.client.jdbc.SnowflakeFileTransferAgent;
+import net.snowflake.client.jdbc.TransferGovernor;
 import java.io.File;
 import java.sql.ResultSet;
 import java.sql.Statement;
@@ -42,11 +44,28 @@ public class FileUploader implements Runnable {
      _thread.start();
   }
 
+  /**
+   * Make the PUTs of the loader yield to the interactive transfers of
+   * the process
+   */
+  private void setBulkPriority() {
+    if (_loader.getPutConnection() instanceof SnowflakeConnectionV1) {
+      SFSession session =
+          ((SnowflakeConnectionV1) _loader.getPutConnection()).getSfSession();
+
+      if (session != null) {
+        session.setTransferPriority(TransferGovernor.Priority.BULK);
+      }
+    }
+  }
+
   @Override
   public void run() {
 
     Throwable previousException = null;
     try {
+      setBulkPriority();
+
       for (int attempt = 0; attempt <= RETRY; attempt++) {
 
         if (attempt == RETRY) {
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that connecting and running a query does not load the file transfer
+ * classes nor the AWS SDK, which are only loaded by the first PUT or GET.
+ *
+ * The driver is loaded by its own class loader, so that the classes loaded
+ * by other tests of the same JVM do not count, and talks to a local server
+ * answering the login and query requests.
+ */
+public class FileTransferClassLoadingTest
+{
+  private static final String LOGIN_RESPONSE =
+      "{\"success\":true,\"data\":{\"token\":\"session-token\"," +
+      "\"masterToken\":\"master-token\",\"validityInSeconds\":3600," +
+      "\"masterValidityInSeconds\":14400,\"parameters\":[]," +
+      "\"sessionInfo\":{\"databaseName\":null,\"schemaName\":null," +
+      "\"roleName\":\"PUBLIC\"}}}";
+
+  private static final String QUERY_RESPONSE =
+      "{\"success\":true,\"data\":{\"queryId\":\"query-id\"," +
+      "\"statementTypeId\":4096,\"parameters\":[]," +
+      "\"rowtype\":[{\"name\":\"RESULT\",\"type\":\"text\"," +
+      "\"length\":16,\"nullable\":false}]," +
+      "\"rowset\":[[\"ok\"]],\"total\":1,\"returned\":1}}";
+
+  private static final String EMPTY_RESPONSE =
+      "{\"success\":true,\"data\":{}}";
+
+  private HttpServer server;
+
+  // paths of the requests received by the server
+  private final List<String> paths =
+      Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() throws IOException
+  {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+    server.createContext("/", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        String path = exchange.getRequestURI().getPath();
+        paths.add(path);
+
+        IOUtils.toByteArray(exchange.getRequestBody());
+
+        String response = EMPTY_RESPONSE;
+        if (path.endsWith("/login-request"))
+        {
+          response = LOGIN_RESPONSE;
+        }
+        else if (path.endsWith("/query-request"))
+        {
+          response = QUERY_RESPONSE;
+        }
+
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+
+        try (OutputStream out = exchange.getResponseBody())
+        {
+          out.write(body);
+        }
+      }
+    });
+
+    server.start();
+  }
+
+  @After
+  public void tearDown()
+  {
+    server.stop(0);
+  }
+
+  @Test
+  public void testQueryDoesNotLoadFileTransferClasses() throws Exception
+  {
+    RecordingClassLoader loader = new RecordingClassLoader(getClassPath(),
+        ClassLoader.getSystemClassLoader().getParent());
+
+    Driver driver = (Driver) loader.loadClass(
+        SnowflakeDriver.class.getName()).newInstance();
+
+    Properties properties = new Properties();
+    properties.put("user", "user");
+    properties.put("password", "password");
+    properties.put("account", "account");
+    properties.put("ssl", "off");
+
+    String url = "jdbc:snowflake://" +
+        server.getAddress().getAddress().getHostAddress() + ":" +
+        server.getAddress().getPort();
+
+    try (Connection connection = driver.connect(url, properties);
+         Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("select 'ok'"))
+    {
+      assertTrue(resultSet.next());
+      assertEquals("ok", resultSet.getString(1));
+    }
+
+    assertTrue(paths.contains("/queries/v1/query-request"));
+
+    Set<String> loadedClasses = loader.getLoadedClasses();
+
+    // the driver was loaded by the recording class loader
+    assertTrue(loadedClasses.contains(SnowflakeDriver.class.getName()));
+
+    for (String className : loadedClasses)
+    {
+      assertFalse("loaded " + className,
+          className.startsWith("com.amazonaws.") ||
+          className.startsWith(
+              SnowflakeFileTransferAgent.class.getName()));
+    }
+  }
+
+  /**
+   * @return class path of the test
+   * @throws MalformedURLException if an entry is not a valid path
+   */
+  private static URL[] getClassPath() throws MalformedURLException
+  {
+    String[] entries =
+        System.getProperty("java.class.path").split(File.pathSeparator);
+
+    URL[] urls = new URL[entries.length];
+    for (int idx = 0; idx < entries.length; idx++)
+    {
+      urls[idx] = new File(entries[idx]).toURI().toURL();
+    }
+
+    return urls;
+  }
+
+  /**
+   * Class loader recording the names of the classes it loads
+   */
+  private static class RecordingClassLoader extends URLClassLoader
+  {
+    private final Set<String> loadedClasses =
+        Collections.synchronizedSet(new HashSet<String>());
+
+    RecordingClassLoader(URL[] urls, ClassLoader parent)
+    {
+      super(urls, parent);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException
+    {
+      Class<?> clazz = super.findClass(name);
+      loadedClasses.add(name);
+      return clazz;
+    }
+
+    Set<String> getLoadedClasses()
+    {
+      synchronized (loadedClasses)
+      {
+        return new HashSet<String>(loadedClasses);
+      }
+    }
+  }
+}
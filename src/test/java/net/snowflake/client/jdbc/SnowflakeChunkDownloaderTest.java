@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the download of result chunks whose connection fails in the
+ * middle of the body
+ */
+public class SnowflakeChunkDownloaderTest
+{
+  private static final String ETAG = "\"chunk\"";
+
+  private static final int NETWORK_TIMEOUT_MILLIS = 60000;
+
+  private ServerSocket serverSocket;
+
+  private ExecutorService serverExecutor;
+
+  // gzip encoded body of the chunk
+  private byte[] body;
+
+  // Range headers of the requests, null for requests without range
+  private final List<String> ranges =
+      Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() throws IOException
+  {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    serverExecutor = Executors.newCachedThreadPool();
+
+    serverExecutor.submit(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        while (!serverSocket.isClosed())
+        {
+          try
+          {
+            final Socket socket = serverSocket.accept();
+
+            serverExecutor.submit(new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                serve(socket);
+              }
+            });
+          }
+          catch (IOException ex)
+          {
+            // server closed
+          }
+        }
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws IOException
+  {
+    serverSocket.close();
+    serverExecutor.shutdownNow();
+  }
+
+  /**
+   * The connection of a gzip encoded chunk is closed in the middle of the
+   * body. The rest of the chunk must be requested from the last byte of
+   * the encoded body received, not from the number of decompressed bytes.
+   */
+  @Test
+  public void testResumeGzipChunkAfterReset() throws Exception
+  {
+    byte[] json = createBody();
+
+    String url = getChunkUrl();
+
+    HttpGet request =
+        SnowflakeChunkDownloader.createChunkRequest(url, null, null, 0, null);
+    HttpResponse response =
+        SnowflakeChunkDownloader.getResultChunk(request,
+            NETWORK_TIMEOUT_MILLIS);
+
+    assertEquals(200, response.getStatusLine().getStatusCode());
+
+    // the body is not decompressed by the client
+    assertEquals("gzip",
+        response.getFirstHeader("Content-Encoding").getValue());
+
+    byte[] result;
+    try (InputStream in = new GZIPInputStream(
+        new SnowflakeChunkDownloader.ResumableChunkInputStream(request,
+            response, url, null, null, NETWORK_TIMEOUT_MILLIS), 65536))
+    {
+      result = IOUtils.toByteArray(in);
+    }
+
+    assertArrayEquals(json, result);
+    assertEquals(2, ranges.size());
+    assertEquals(null, ranges.get(0));
+    assertEquals("bytes=" + body.length / 2 + "-", ranges.get(1));
+  }
+
+  /**
+   * The read of the body of a chunk is interrupted, as when the statement is
+   * cancelled or the downloader shut down. The chunk must not be resumed.
+   */
+  @Test
+  public void testNoResumeAfterInterruptedRead() throws Exception
+  {
+    createBody();
+
+    String url = getChunkUrl();
+
+    HttpGet request =
+        SnowflakeChunkDownloader.createChunkRequest(url, null, null, 0, null);
+
+    InputStream content = new SequenceInputStream(
+        new ByteArrayInputStream(body, 0, body.length / 2),
+        new InputStream()
+        {
+          @Override
+          public int read() throws IOException
+          {
+            throw new InterruptedIOException("download cancelled");
+          }
+        });
+
+    BasicHttpResponse response =
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setHeader("ETag", ETAG);
+    response.setEntity(new InputStreamEntity(content, body.length));
+
+    IOException failure = null;
+    try (InputStream in =
+             new SnowflakeChunkDownloader.ResumableChunkInputStream(request,
+                 response, url, null, null, NETWORK_TIMEOUT_MILLIS))
+    {
+      IOUtils.toByteArray(in);
+    }
+    catch (IOException ex)
+    {
+      failure = ex;
+    }
+
+    assertTrue(failure instanceof InterruptedIOException);
+    assertEquals(0, ranges.size());
+  }
+
+  /**
+   * Create the gzip encoded body served as the chunk
+   *
+   * @return JSON rows of the chunk before encoding
+   * @throws IOException if the rows cannot be compressed
+   */
+  private byte[] createBody() throws IOException
+  {
+    StringBuilder rows = new StringBuilder();
+    for (int index = 0; index < 20000; index++)
+    {
+      rows.append("[\"").append(index).append("\",\"row ")
+          .append(index * 7919L % 10007).append("\"],\n");
+    }
+
+    byte[] json = rows.toString().getBytes(StandardCharsets.UTF_8);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed))
+    {
+      gzip.write(json);
+    }
+    body = compressed.toByteArray();
+
+    return json;
+  }
+
+  private String getChunkUrl()
+  {
+    return "http://" + serverSocket.getInetAddress().getHostAddress() +
+        ":" + serverSocket.getLocalPort() + "/chunk";
+  }
+
+  /**
+   * Serve the requests of a connection. The body of the first request is
+   * cut in the middle, and the connection closed.
+   *
+   * @param socket connection
+   */
+  private void serve(Socket socket)
+  {
+    try
+    {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          socket.getInputStream(), StandardCharsets.ISO_8859_1));
+      OutputStream out = socket.getOutputStream();
+
+      String requestLine;
+      while ((requestLine = reader.readLine()) != null &&
+             !requestLine.isEmpty())
+      {
+        String range = null;
+        String ifMatch = null;
+
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty())
+        {
+          int colon = line.indexOf(':');
+          String name = line.substring(0, colon).trim();
+          String value = line.substring(colon + 1).trim();
+
+          if (name.equalsIgnoreCase("Range"))
+          {
+            range = value;
+          }
+          else if (name.equalsIgnoreCase("If-Match"))
+          {
+            ifMatch = value;
+          }
+        }
+
+        ranges.add(range);
+
+        if (ranges.size() == 1)
+        {
+          writeHeaders(out, "200 OK", body.length, null);
+          out.write(body, 0, body.length / 2);
+          out.flush();
+          socket.close();
+          return;
+        }
+
+        if (range == null)
+        {
+          writeHeaders(out, "200 OK", body.length, null);
+          out.write(body);
+        }
+        else if (!ETAG.equals(ifMatch))
+        {
+          writeHeaders(out, "412 Precondition Failed", 0, null);
+        }
+        else
+        {
+          int start = Integer.parseInt(
+              range.substring("bytes=".length(), range.length() - 1));
+
+          writeHeaders(out, "206 Partial Content", body.length - start,
+              "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+          out.write(body, start, body.length - start);
+        }
+
+        out.flush();
+      }
+    }
+    catch (IOException ex)
+    {
+      // connection closed by the client
+    }
+    finally
+    {
+      IOUtils.closeQuietly(socket);
+    }
+  }
+
+  private static void writeHeaders(OutputStream out, String status,
+                                   int contentLength, String contentRange)
+      throws IOException
+  {
+    StringBuilder headers = new StringBuilder();
+    headers.append("HTTP/1.1 ").append(status).append("\r\n");
+    headers.append("Content-Length: ").append(contentLength).append("\r\n");
+    headers.append("Content-Encoding: gzip\r\n");
+    headers.append("ETag: ").append(ETAG).append("\r\n");
+
+    if (contentRange != null)
+    {
+      headers.append("Content-Range: ").append(contentRange).append("\r\n");
+    }
+
+    headers.append("\r\n");
+
+    out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+}
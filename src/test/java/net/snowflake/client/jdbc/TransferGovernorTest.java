@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012-2017 Snowflake Computing Inc. All rights reserved.
+ */
+
+package net.snowflake.client.jdbc;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the transfer slots of TransferGovernor with fewer slots than
+ * transfer threads
+ */
+public class TransferGovernorTest
+{
+  private static final TransferGovernor.Priority PRIORITY =
+      TransferGovernor.Priority.INTERACTIVE;
+
+  private static final int PARALLEL = 4;
+
+  private static final int MAX_CONCURRENT_TRANSFERS = 2;
+
+  private static final long TIMEOUT_SECONDS = 30;
+
+  @After
+  public void tearDown()
+  {
+    TransferGovernor.setMaxConcurrentTransfers(0);
+  }
+
+  @Test
+  public void testConcurrentTransfersLimited() throws Exception
+  {
+    TransferGovernor.setMaxConcurrentTransfers(MAX_CONCURRENT_TRANSFERS);
+
+    final TransferGovernor governor = TransferGovernor.getInstance();
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+
+    ExecutorService executor = SnowflakeUtil.createDefaultExecutorService(
+        "transfer-governor-test-", PARALLEL);
+
+    try
+    {
+      List<Future<Void>> transfers = new ArrayList<Future<Void>>();
+
+      for (int index = 0; index < 5 * PARALLEL; index++)
+      {
+        transfers.add(executor.submit(new Callable<Void>()
+        {
+          @Override
+          public Void call() throws Exception
+          {
+            governor.acquire(PRIORITY);
+            try
+            {
+              int count = active.incrementAndGet();
+
+              synchronized (maxActive)
+              {
+                maxActive.set(Math.max(maxActive.get(), count));
+              }
+
+              Thread.sleep(10);
+              active.decrementAndGet();
+            }
+            finally
+            {
+              governor.release(PRIORITY);
+            }
+
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> transfer : transfers)
+      {
+        transfer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    assertTrue(maxActive.get() <= MAX_CONCURRENT_TRANSFERS);
+    assertEquals(0, TransferGovernor.getActiveTransfers());
+  }
+
+  /**
+   * A PUT or GET thread holds a transfer slot while it waits for the
+   * transfer manager. The work of the transfer manager must make progress
+   * while the parts of other transfers of the same client wait for a slot,
+   * even if there are more waiting parts than threads.
+   */
+  @Test
+  public void testTransferManagerNotBlockedByWaitingParts() throws Exception
+  {
+    TransferGovernor.setMaxConcurrentTransfers(1);
+
+    final TransferGovernor governor = TransferGovernor.getInstance();
+
+    SnowflakeS3Client client = new SnowflakeS3Client(
+        new BasicAWSCredentials("keyId", "secretKey"),
+        new ClientConfiguration(), null, null, PARALLEL);
+
+    try
+    {
+      List<Future<Void>> parts = new ArrayList<Future<Void>>();
+
+      // slot of a transfer waiting for the transfer manager
+      governor.acquire(PRIORITY);
+      try
+      {
+        for (int index = 0; index < 2 * PARALLEL; index++)
+        {
+          parts.add(client.getPartExecutor().submit(new Callable<Void>()
+          {
+            @Override
+            public Void call() throws Exception
+            {
+              governor.acquire(PRIORITY);
+              governor.release(PRIORITY);
+              return null;
+            }
+          }));
+        }
+
+        Future<Boolean> transfer = client.getTransferExecutor().submit(
+            new Callable<Boolean>()
+            {
+              @Override
+              public Boolean call()
+              {
+                return true;
+              }
+            });
+
+        assertTrue(transfer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      }
+      finally
+      {
+        governor.release(PRIORITY);
+      }
+
+      for (Future<Void> part : parts)
+      {
+        part.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      }
+
+      assertEquals(0, TransferGovernor.getActiveTransfers());
+    }
+    finally
+    {
+      client.shutdown();
+    }
+  }
+}